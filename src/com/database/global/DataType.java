@@ -9,4 +9,15 @@ public class DataType {
     public final static byte INTEGER = 4;
     public final static byte TEXT = 5;
     public final static byte LONG = 8;
+
+    //记录头中 TEXT 列的类型码为 TEXT_SERIAL + 2 * 字节数，总是不小于13的奇数，与上面的定长类型码不重叠
+    public final static int TEXT_SERIAL = 13;
+
+    public static int textSerialType(int len){
+        return TEXT_SERIAL + 2 * len;
+    }
+
+    public static int textLength(int serialType){
+        return (serialType - TEXT_SERIAL) / 2;
+    }
 }
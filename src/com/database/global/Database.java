@@ -63,11 +63,11 @@ public class Database {
 		this.pager = pager;
 	}
 
-	/** 设置和获取数据库名字 */
+	/** 获取数据库文件的页面数 */
 	public int getDbSize() {
 		File file = new File(getDBFile());
 		if(file.exists() && file.isFile()){
-			this.dbSize = (int)file.getTotalSpace()%SpaceAllocation.PAGE_SIZE;
+			this.dbSize = (int)(file.length()/SpaceAllocation.PAGE_SIZE);
 		}
 		return dbSize;
 	}
@@ -138,14 +138,18 @@ public class Database {
 			execute.queryDo(result,null);
 			return 1;//打开不成功
 		}else{
-			this.dbSize = (int)(dbFile.getTotalSpace()%SpaceAllocation.PAGE_SIZE);
+			this.dbSize = (int)(dbFile.length()/SpaceAllocation.PAGE_SIZE);
 //			this.pager.setMxPgno(this.dbSize <= 0 ? 0: this.dbSize);
 			this.dbName = dbName;
 			setStat(1);
 
+			/* 使用文件中记录的页面大小，旧的数据库文件没有记录，为1KB */
+			int pageSize = pager.readPageSize();
+			pager.setPageSize(SpaceAllocation.isValidPageSize(pageSize) ? pageSize : SpaceAllocation.MIN_PAGE_SIZE);
+
 			/* 获取page1中的表和树的映射关系 */
 			page1 = pager.aquirePage(1);
-			this.pager.setMxPgno(Utils.loadIntFromBytes(page1.getData(), Position.MAX_PGNO_IN_FIRST_PAGE));
+			this.pager.setMxPgno(page1.getInt(Position.MAX_PGNO_IN_FIRST_PAGE));
 			List<Entry<Integer,String>> entryList = pager.readRecord(1);
 			if(entryList != null)
 			{
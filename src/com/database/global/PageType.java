@@ -8,4 +8,5 @@ public class PageType {
     public static final byte TABLE_INTERNAL = 0x02;     //2
     public static final byte TABLE_ROOT = 0x01;         //1
     public static final byte TABLE_OVERFLOW = 0x04;     //4
+    public static final byte FREELIST_TRUNK = 0x05;     //5 空闲链表主干页
 }
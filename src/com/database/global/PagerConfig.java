@@ -0,0 +1,46 @@
+package com.database.global;
+
+/**
+ * Pager 相关的配置项，启动时可以通过 -D 系统属性覆盖默认值
+ */
+public class PagerConfig {
+    //页面 I/O 方式
+    public static final int IO_RAF = 0;                 //RandomAccessFile 读写
+    public static final int IO_MMAP = 1;                //FileChannel.map 内存映射
+
+    public static int IO_MODE = "raf".equalsIgnoreCase(System.getProperty("db.io")) ? IO_RAF : IO_MMAP;
+    public static int MMAP_SEGMENT_SIZE = Integer.getInteger("db.mmap.segment", 1 << 20);     //每个映射段的大小，必须是页面大小的整数倍
+
+    //新建数据库的页面大小，已有的数据库使用文件中记录的页面大小
+    public static int PAGE_SIZE = Integer.getInteger("db.pageSize", 4096);
+
+    //页面缓存
+    public static long CACHE_SIZE = Long.getLong("db.cache.size", 8L << 20);                    //页面缓存可使用的内存（字节）
+    public static int HEAP_PRESSURE_PCT = Integer.getInteger("db.cache.heapPressure", 85);     //老年代使用超过该百分比时释放缓存
+    public static String CACHE_POLICY = System.getProperty("db.cache.policy", "2q");            //页面置换策略：lru、2q、lru-2
+    public static int CACHE_SHARDS = Integer.getInteger("db.cache.shards", 16);                 //页表分片数的上限，1 表示不分片
+    public static boolean PAGE_ARENA = !"false".equalsIgnoreCase(System.getProperty("db.cache.offheap")); //缓存页面是否使用堆外内存
+    public static int ARENA_CHUNK_SIZE = Integer.getInteger("db.cache.arenaChunk", 4 << 20);   //堆外内存每次分配的大小（字节）
+
+    //后台写回
+    public static boolean CHECKPOINT = Boolean.getBoolean("db.checkpoint");                      //是否启动后台写回线程
+    public static int CHECKPOINT_INTERVAL = Integer.getInteger("db.checkpoint.interval", 100);  //检查脏页面的间隔（毫秒）
+    public static int DIRTY_HIGH_PCT = Integer.getInteger("db.checkpoint.high", 30);            //脏页面超过缓存的该百分比时开始写回
+    public static int DIRTY_LOW_PCT = Integer.getInteger("db.checkpoint.low", 10);              //写回到脏页面低于该百分比为止
+    public static int DIRTY_MAX_AGE = Integer.getInteger("db.checkpoint.age", 1000);            //脏页面最长保留时间（毫秒）
+    public static int CHECKPOINT_BATCH = Integer.getInteger("db.checkpoint.batch", 64);         //每次持有 Pager 锁时最多写回的页面数
+
+    //预写日志
+    public static boolean WAL = !"false".equalsIgnoreCase(System.getProperty("db.wal"));         //是否使用预写日志，关闭时 commit 直接改写数据库文件
+    public static int WAL_AUTOCHECKPOINT = Integer.getInteger("db.wal.autocheckpoint", 1000);   //日志超过该帧数时提交后做一次检查点，0 表示不自动检查点
+    public static int SNAPSHOT_CACHE = Integer.getInteger("db.wal.snapshotCache", 1024);        //快照读共享的页面版本缓存的页面数
+
+    //顺序扫描预读
+    public static int READAHEAD = Integer.getInteger("db.readahead", 8);                       //初始预读页面数，0 表示不预读
+    public static int READAHEAD_MIN = Integer.getInteger("db.readahead.min", 0);               //预读窗口的下限
+    public static int READAHEAD_MAX = Integer.getInteger("db.readahead.max", 64);              //预读窗口的上限
+
+    //增量 vacuum
+    public static boolean AUTO_VACUUM = Boolean.getBoolean("db.autovacuum");                     //新建的数据库是否在提交后把文件末尾的页面移到空闲页面并截断文件
+    public static int VACUUM_STEP = Integer.getInteger("db.vacuum.step", 16);                  //每次提交后最多移走的页面数
+}
@@ -4,9 +4,17 @@ package com.database.global;
  * Created by zoe on 2016/12/2.
  */
 public class SpaceAllocation {
-    public static int PAGE_SIZE = 1024;
+    public static int PAGE_SIZE = 1024;         //当前数据库的页面大小，打开数据库时由 page 1 头部决定
+    public static final int MIN_PAGE_SIZE = 1024;
+    public static final int MAX_PAGE_SIZE = 65536;
     public static int SECTOR_SIZE = 512;
     public static int PAGE_RESERVED = 0;
     public static int PAGE_HEADER_SIZE = 50;
-    public static int RECORD_HEADER = 4+4;      //rowid，hdrsz
+
+    /**
+     * @return pageSize 是否是合法的页面大小：1KB 到 64KB 之间的2的幂
+     */
+    public static boolean isValidPageSize(int pageSize){
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && (pageSize & (pageSize - 1)) == 0;
+    }
 }
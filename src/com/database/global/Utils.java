@@ -1,5 +1,7 @@
 package com.database.global;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by zoe on 2016/12/5.
  */
@@ -100,6 +102,54 @@ public class Utils {
 
         }
     }
+    /**
+     * @param value 非负的整型值
+     * @return fillVarInt 填充 value 所需的字节数
+     */
+    public static int varIntLength(int value){
+        if((value & ~0x7f) == 0)
+            return 1;
+        if((value & ~0x3fff) == 0)
+            return 2;
+        if((value & ~0x1fffff) == 0)
+            return 3;
+        if((value & ~0x0fffffff) == 0)
+            return 4;
+        return 5;
+    }
+
+    /**
+     * @return data 中从 start 开始的变长整型值所占的字节数
+     */
+    public static int loadVarIntLength(byte[] data, int start){
+        int len = 1;
+        while(len < 5 && (data[start + len - 1] & 0x80) != 0)
+            len++;
+        return len;
+    }
+    /**
+     * 读取 buf 中绝对位置 start 处的变长整型值，不改变 buf 的 position
+     */
+    public static int loadVarIntFromBuffer(ByteBuffer buf, int start){
+        int value = 0;
+        for(int i = 0; i < 5; i++){
+            byte b = buf.get(start + i);
+            value = (value << 7) | (b & 0x7f);
+            if((b & 0x80) == 0)
+                break;
+        }
+        return value;
+    }
+
+    /**
+     * @return buf 中绝对位置 start 处的变长整型值所占的字节数
+     */
+    public static int loadVarIntLength(ByteBuffer buf, int start){
+        int len = 1;
+        while(len < 5 && (buf.get(start + len - 1) & 0x80) != 0)
+            len++;
+        return len;
+    }
     /**
      * 填充变长的长整型值
      * @param value 所要填充的整型值
@@ -196,7 +246,7 @@ public class Utils {
     }
 
     public static int loadIntFromBytes(byte[] data, int start){
-        assert(start + 4 < data.length);
+        assert(start + 4 <= data.length);
 
         int intValue = 0;
         for(int i = 0; i< 4; i++){
@@ -223,7 +273,7 @@ public class Utils {
         }
         //2 B
         if((data[start + 1] & 0x80) == 0 ){
-            intValue |= ((data[start] & 0x7f) << 7) | data[1];
+            intValue |= ((data[start] & 0x7f) << 7) | data[start + 1];
             return intValue;
         }
         //3 B
@@ -253,7 +303,7 @@ public class Utils {
     }
 
     public static short loadShortFromBytes(byte[] data, int start){
-        assert(start + 2 > data.length);
+        assert(start + 2 <= data.length);
 
         short shortValue = 0;
         for(int i = 0; i<  2; i++){
@@ -301,7 +351,7 @@ public class Utils {
      * @return
      */
     public static long loadLongFromBytes(byte[] data, int start){
-        assert(start + 8 > data.length);
+        assert(start + 8 <= data.length);
 
         int low = 0;
         int high = 0;
@@ -0,0 +1,369 @@
+package com.database.main;
+
+import com.database.global.Database;
+import com.database.global.PageType;
+import com.database.myBplusTree.BplusNode;
+import com.database.myBplusTree.BplusTree;
+import com.database.pager.Page;
+import com.database.pager.Pager;
+import com.database.pager.Position;
+import com.database.pager.TableSchema;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+/**
+ * BplusTree 性能测试
+ */
+public class BenchBplusTree {
+    private static TableSchema schema = TestPager.getSchema();
+
+    public static void main(String[] args) throws IOException {
+        String bench = args.length > 0 ? args[0] : "ops";
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        if("ops".equals(bench))
+            benchOps(n > 0 ? n : 20000);
+        else if("descend".equals(bench))
+            benchDescend(n > 0 ? n : 100000);
+        else if("fanout".equals(bench))
+            benchFanout(n > 0 ? n : 1000000);
+        else if("bulk".equals(bench))
+            benchBulk(n > 0 ? n : 3000000);
+    }
+
+    /**
+     * insertOrUpdate：按 rowid 递增和随机两种顺序插入 n 行，每次插入都会提交；
+     * get：在建好的树上随机查找 n 次，其中一半 rowid 存在
+     */
+    public static void benchOps(int n) throws IOException {
+        for(int order : new int[]{4, 16, 64}){
+            for(int round = 0; round < 2; round++){
+                for(boolean random : new boolean[]{false, true}){
+                    File file = File.createTempFile("benchTree", ".db");
+                    file.deleteOnExit();
+                    Database db = new Database();
+                    db.setDBFile(file);
+                    Pager pager = db.getPager();
+                    Page first = pager.aquireNewPage();
+                    pager.updateHeader(first);
+                    BplusTree tree = new BplusTree(order, db, schema);
+
+                    int[] rowids = new int[n];
+                    for(int i = 0; i < n; i++)
+                        rowids[i] = i + 1;
+                    Random rnd = new Random(order);
+                    for(int i = n - 1; random && i > 0; i--){
+                        int j = rnd.nextInt(i + 1);
+                        int t = rowids[i];
+                        rowids[i] = rowids[j];
+                        rowids[j] = t;
+                    }
+
+                    int inserted = 0;
+                    long start = System.nanoTime();
+                    try{
+                        for(; inserted < n; inserted++){
+                            int rowid = rowids[inserted];
+                            tree.insertOrUpdate(rowid, rowid + ",name" + rowid + ",20");
+                        }
+                    }catch (RuntimeException | Error e){
+                        System.out.printf("order %-3d %-6s insert failed after %d rows: %s%n",
+                                order, random ? "random" : "seq", inserted, e);
+                    }
+                    long insert = System.nanoTime() - start;
+
+                    boolean[] present = new boolean[2 * n + 1];
+                    for(int i = 0; i < inserted; i++)
+                        present[rowids[i]] = true;
+                    int nGet = inserted == 0 ? 0 : n;
+                    int[] lookups = new int[nGet];
+                    for(int i = 0; i < nGet; i++)
+                        lookups[i] = 1 + rnd.nextInt(2 * n);
+                    String[] values = new String[nGet];
+                    start = System.nanoTime();
+                    try{
+                        for(int i = 0; i < nGet; i++)
+                            values[i] = tree.get(lookups[i]);
+                    }catch (RuntimeException | Error e){
+                        System.out.printf("order %-3d %-6s get failed: %s%n", order, random ? "random" : "seq", e);
+                        nGet = 0;
+                    }
+                    long get = System.nanoTime() - start;
+                    int found = 0;
+                    int wrong = 0;
+                    for(int i = 0; i < nGet; i++){
+                        if(values[i] != null)
+                            found++;
+                        if((values[i] != null) != present[lookups[i]] || values[i] != null && !values[i].startsWith(lookups[i] + ","))
+                            wrong++;
+                    }
+                    pager.close();
+                    System.out.printf("order %-3d round %d %-6s rows=%d insert=%.1f us/op get=%.0f ns/op found=%d wrong=%d%n",
+                            order, round, random ? "random" : "seq", inserted,
+                            inserted == 0 ? 0.0 : insert / 1000.0 / inserted, nGet == 0 ? 0.0 : (double)get / nGet, found, wrong);
+                }
+            }
+        }
+    }
+
+    /**
+     * 内部结点的解析：order 64 的树按 rowid 递增插入 n 行，
+     * decode：反复从已在缓存中的内部页面构造结点，统计每个结点和每个子结点页号的耗时；
+     * cold：重新打开文件，页面读入缓存后用新的根结点随机查找 n 次，结点在第一次经过时构造，
+     * 同时用 Pager.getFetchCount 统计第一次查找和前 100 次查找平均获取的页面数
+     */
+    public static void benchDescend(int n) throws IOException {
+        File file = File.createTempFile("benchDescend", ".db");
+        file.deleteOnExit();
+        Database db = new Database();
+        db.setDBFile(file);
+        Pager pager = db.getPager();
+        Page first = pager.aquireNewPage();
+        pager.updateHeader(first);
+        BplusTree tree = new BplusTree(64, db, schema);
+        int rootPgno = tree.getRoot().page.getPgno();
+        long start = System.nanoTime();
+        for(int rowid = 1; rowid <= n; rowid++)
+            tree.insertOrUpdate(rowid, rowid + ",name" + rowid + ",20");
+        System.out.printf("built rows=%d height=%d pages=%d in %.1f s%n",
+                n, tree.getHeight(), pager.getMxPgno(), (System.nanoTime() - start) / 1e9);
+
+        List<Integer> internal = new ArrayList<Integer>();
+        internal.add(rootPgno);
+        for(int i = 0; i < internal.size(); i++){
+            BplusNode node = new BplusNode(pager, pager.aquirePage(internal.get(i)), schema);
+            for(int c = 0; c < node.getKeyCount(); c++){
+                Page child = pager.aquirePage(node.getChildPgno(c));
+                if(child.getPageType() != PageType.TABLE_LEAF)
+                    internal.add(child.getPgno());
+                pager.freePage(child.getPgno());
+            }
+            pager.freePage(node.page.getPgno());
+        }
+        for(int round = 0; round < 3; round++){
+            int nNode = 0;
+            long nEntry = 0;
+            long sum = 0;
+            start = System.nanoTime();
+            while(nNode < 200000){
+                for(int pgno : internal){
+                    Page page = pager.aquirePage(pgno);
+                    BplusNode node = new BplusNode(pager, page, schema);
+                    sum += node.getChildPgno(node.getKeyCount() - 1);
+                    nEntry += node.getKeyCount();
+                    nNode++;
+                    pager.freePage(pgno);
+                }
+            }
+            long time = System.nanoTime() - start;
+            System.out.printf("round %d decode internal=%d %.0f ns/node %.1f ns/child (%d)%n",
+                    round, internal.size(), (double)time / nNode, (double)time / nEntry, sum % 10);
+        }
+        pager.close();
+
+        for(int round = 0; round < 3; round++){
+            Database reopened = new Database();
+            reopened.setDBFile(file);
+            Pager p = reopened.getPager();
+            Page p1 = p.aquirePage(1);
+            p.setMxPgno(p1.getInt(Position.MAX_PGNO_IN_FIRST_PAGE));
+            for(int pgno = 1; pgno <= p.getMxPgno(); pgno++){
+                p.aquirePage(pgno);
+                p.freePage(pgno);
+            }
+            Page rootPage = p.aquirePage(rootPgno);
+            BplusNode root = new BplusNode(p, rootPage, TableSchema.getTreeInternalSchema());
+            BplusTree t = new BplusTree(rootPage.getOrder(), reopened, root, root, schema);
+            Random rnd = new Random(round);
+            int found = 0;
+            long fetch = p.getFetchCount();
+            long firstFetch = 0;
+            long fetch100 = 0;
+            start = System.nanoTime();
+            for(int i = 0; i < n; i++){
+                if(t.get(1 + rnd.nextInt(n)) != null)
+                    found++;
+                if(i == 0)
+                    firstFetch = p.getFetchCount() - fetch;
+                else if(i == 99)
+                    fetch100 = p.getFetchCount() - fetch;
+            }
+            long time = System.nanoTime() - start;
+            fetch = p.getFetchCount() - fetch;
+            p.close();
+            System.out.printf("round %d cold gets=%d %.0f ns/op found=%d pages: first get=%d first 100=%.1f/op all=%.2f/op%n",
+                    round, n, (double)time / n, found, firstFetch, fetch100 / 100.0, (double)fetch / n);
+        }
+    }
+
+    /**
+     * 树阶对树高和吞吐量的影响：树阶 3、16、64 和按页面填充分裂各按 rowid 递增插入 n 行，每次插入都会提交，
+     * 再随机查找 min(n, 200000) 次，统计树高、页面数和平均每页的行数
+     */
+    public static void benchFanout(int n) throws IOException {
+        for(int order : new int[]{3, 16, 64, BplusTree.FILL_ORDER}){
+            File file = File.createTempFile("benchFanout", ".db");
+            file.deleteOnExit();
+            Database db = new Database();
+            db.setDBFile(file);
+            Pager pager = db.getPager();
+            Page first = pager.aquireNewPage();
+            pager.updateHeader(first);
+            BplusTree tree = new BplusTree(order, db, schema);
+
+            long start = System.nanoTime();
+            for(int rowid = 1; rowid <= n; rowid++)
+                tree.insertOrUpdate(rowid, rowid + ",name" + rowid + ",20");
+            long insert = System.nanoTime() - start;
+
+            int nGet = Math.min(n, 200000);
+            Random rnd = new Random(order);
+            int found = 0;
+            start = System.nanoTime();
+            for(int i = 0; i < nGet; i++){
+                if(tree.get(1 + rnd.nextInt(n)) != null)
+                    found++;
+            }
+            long get = System.nanoTime() - start;
+            System.out.printf("order %-4s rows=%d height=%d pages=%d rows/page=%.1f insert=%.1f us/op (%.0f rows/s) get=%.0f ns/op found=%d%n",
+                    order == BplusTree.FILL_ORDER ? "fill" : String.valueOf(order), n, tree.getHeight(), pager.getMxPgno(),
+                    (double)n / pager.getMxPgno(), insert / 1000.0 / n, n * 1e9 / insert,
+                    (double)get / nGet, found);
+            pager.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * 批量装入：按页面填充分裂的空表用 bulkLoad 装入 n 行，与逐行 insertOrUpdate 装入 min(n, 100000) 行比较，
+     * 然后检查每个页面的父页号和叶子链，重新打开后随机查找 min(n, 200000) 次，再逐行插入 1000 行
+     */
+    public static void benchBulk(int n) throws IOException {
+        int nInsert = Math.min(n, 100000);
+        File insertFile = File.createTempFile("benchInsert", ".db");
+        insertFile.deleteOnExit();
+        Database insertDb = new Database();
+        insertDb.setDBFile(insertFile);
+        Pager insertPager = insertDb.getPager();
+        insertPager.updateHeader(insertPager.aquireNewPage());
+        BplusTree insertTree = new BplusTree(BplusTree.FILL_ORDER, insertDb, schema);
+        long start = System.nanoTime();
+        for(int rowid = 1; rowid <= nInsert; rowid++)
+            insertTree.insertOrUpdate(rowid, rowid + ",name" + rowid + ",20");
+        long insert = System.nanoTime() - start;
+        System.out.printf("insertOrUpdate rows=%d %.2f s (%.0f rows/s) height=%d pages=%d%n",
+                nInsert, insert / 1e9, nInsert * 1e9 / insert, insertTree.getHeight(), insertPager.getMxPgno());
+        insertPager.close();
+        insertFile.delete();
+
+        File file = File.createTempFile("benchBulk", ".db");
+        file.deleteOnExit();
+        Database db = new Database();
+        db.setDBFile(file);
+        Pager pager = db.getPager();
+        pager.updateHeader(pager.aquireNewPage());
+        BplusTree tree = new BplusTree(BplusTree.FILL_ORDER, db, schema);
+        int rootPgno = tree.getRoot().page.getPgno();
+        start = System.nanoTime();
+        int loaded = tree.bulkLoad(rows(n));
+        long bulk = System.nanoTime() - start;
+        System.out.printf("bulkLoad       rows=%d %.2f s (%.0f rows/s) height=%d pages=%d rows/page=%.1f%n",
+                loaded, bulk / 1e9, loaded * 1e9 / bulk, tree.getHeight(), pager.getMxPgno(), (double)loaded / pager.getMxPgno());
+        System.out.println("links " + (checkLinks(pager, rootPgno) ? "ok" : "BROKEN"));
+        pager.close();
+
+        Database reopened = new Database();
+        reopened.setDBFile(file);
+        Pager p = reopened.getPager();
+        Page p1 = p.aquirePage(1);
+        p.setMxPgno(p1.getInt(Position.MAX_PGNO_IN_FIRST_PAGE));
+        Page rootPage = p.aquirePage(rootPgno);
+        BplusNode root = new BplusNode(p, rootPage, TableSchema.getTreeInternalSchema());
+        BplusNode head = new BplusNode(p, p.aquirePage(rootPage.getHead()), schema);
+        BplusTree t = new BplusTree(rootPage.getOrder(), reopened, root, head, schema);
+        int nGet = Math.min(n, 200000);
+        Random rnd = new Random(n);
+        int wrong = 0;
+        start = System.nanoTime();
+        for(int i = 0; i < nGet; i++){
+            int rowid = 1 + rnd.nextInt(n + 1000);
+            String value = t.get(rowid);
+            if((value != null) != (rowid <= n) || value != null && !value.startsWith(rowid + ","))
+                wrong++;
+        }
+        long get = System.nanoTime() - start;
+        for(int rowid = n + 1; rowid <= n + 1000; rowid++)
+            t.insertOrUpdate(rowid, rowid + ",name" + rowid + ",20");
+        for(int rowid = n - 500; rowid <= n + 1000; rowid++){
+            String value = t.get(rowid);
+            if(value == null || !value.startsWith(rowid + ","))
+                wrong++;
+        }
+        System.out.printf("reopened get=%.0f ns/op, 1000 inserts after load, links %s, wrong=%d%n",
+                (double)get / nGet, checkLinks(p, rootPgno) ? "ok" : "BROKEN", wrong);
+        p.close();
+        file.delete();
+    }
+
+    private static Iterator<Entry<Integer, String>> rows(final int n) {
+        return new Iterator<Entry<Integer, String>>() {
+            int rowid = 0;
+
+            public boolean hasNext() {
+                return rowid < n;
+            }
+
+            public Entry<Integer, String> next() {
+                rowid++;
+                return new SimpleEntry<Integer, String>(rowid, rowid + ",name" + rowid + ",20");
+            }
+        };
+    }
+
+    /**
+     * 从根页逐层检查：子页面的父页号指向父页面，叶子链按顺序连接且与最下层的子结点一致
+     */
+    private static boolean checkLinks(Pager pager, int rootPgno) {
+        List<Integer> level = new ArrayList<Integer>();
+        level.add(rootPgno);
+        while(true){
+            List<Integer> next = new ArrayList<Integer>();
+            boolean leaves = false;
+            for(int pgno : level){
+                Page page = pager.aquirePage(pgno);
+                if(page.getPageType() == PageType.TABLE_LEAF){
+                    leaves = true;
+                }else{
+                    for(int i = 0; i < page.getnCell(); i++){
+                        int child = page.getChildPgno(i);
+                        Page c = pager.aquirePage(child);
+                        boolean ok = c.getpParent() == pgno;
+                        pager.freePage(child);
+                        if(!ok)
+                            return false;
+                        next.add(child);
+                    }
+                }
+                pager.freePage(pgno);
+            }
+            if(leaves){
+                for(int i = 0; i < level.size(); i++){
+                    Page page = pager.aquirePage(level.get(i));
+                    boolean ok = page.getpPrev() == (i == 0 ? 0 : level.get(i - 1))
+                            && page.getpNext() == (i == level.size() - 1 ? 0 : level.get(i + 1));
+                    pager.freePage(page.getPgno());
+                    if(!ok)
+                        return false;
+                }
+                return true;
+            }
+            level = next;
+        }
+    }
+}
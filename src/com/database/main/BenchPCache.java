@@ -0,0 +1,228 @@
+package com.database.main;
+
+import com.database.global.PagerConfig;
+import com.database.global.SpaceAllocation;
+import com.database.pager.PCache;
+import com.database.pager.Page;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PCache 性能测试
+ */
+public class BenchPCache {
+    public static void main(String[] args){
+        String which = args.length > 0 ? args[0] : "fetch";
+        if(which.equals("fetch"))
+            benchFetch();
+        else if(which.equals("policy"))
+            benchPolicy();
+        else if(which.equals("cost"))
+            benchPolicyCost();
+        else if(which.equals("resize"))
+            benchResize();
+        else if(which.equals("concurrent"))
+            benchConcurrent(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+    }
+
+    /**
+     * 随着缓存页面数增加，fetch 命中与未命中的平均耗时
+     */
+    public static void benchFetch(){
+        int[] sizes = {1000, 10000, 50000, 100000};
+        for(int round = 0; round < 2; round++){
+            for(int nPage : sizes){
+                PCache pCache = new PCache();
+                for(int pgno = 1; pgno <= nPage; pgno++)
+                    pCache.fetch(pgno);
+
+                Random random = new Random(nPage);
+                int nHit = 1000000;
+                long start = System.nanoTime();
+                long sum = 0;
+                for(int i = 0; i < nHit; i++){
+                    Page page = pCache.fetch(1 + random.nextInt(nPage));
+                    sum += page.getPgno();
+                    pCache.unpin(page);
+                }
+                long hit = System.nanoTime() - start;
+
+                int nMiss = 10000;
+                start = System.nanoTime();
+                for(int i = 1; i <= nMiss; i++){
+                    Page page = pCache.fetch(nPage + i);
+                    sum += page.getPgno();
+                    pCache.unpin(page);
+                }
+                long miss = System.nanoTime() - start;
+
+                System.out.printf("round %d pages=%-7d hit=%.1f ns/op miss=%.1f ns/op (%d)%n",
+                        round, nPage, (double)hit / nHit, (double)miss / nMiss, sum % 10);
+            }
+        }
+    }
+
+    /**
+     * 点查询与全表扫描混合负载下各置换策略的命中率
+     * 点查询：根页面1 + 内部页面2~10 之一 + 热点叶子11~70 之一；每 200 次点查询穿插一次 1000 页的扫描
+     * 缓存 100 页，热点页面共 70 页
+     */
+    public static void benchPolicy(){
+        String[] policies = {"lru", "2q", "lru-2"};
+        for(String name : policies){
+            PagerConfig.CACHE_POLICY = name;
+            PCache pCache = new PCache();
+            pCache.setCacheSize(100);
+            Random random = new Random(42);
+            long[] lookup = new long[2];            //命中数，访问数
+            long[] scan = new long[2];
+            long start = System.nanoTime();
+            for(int i = 1; i <= 20000; i++){
+                access(pCache, 1, lookup);
+                access(pCache, 2 + random.nextInt(9), lookup);
+                access(pCache, 11 + random.nextInt(60), lookup);
+                if(i % 200 == 0){
+                    for(int pgno = 1000; pgno < 2000; pgno++)
+                        access(pCache, pgno, scan);
+                }
+            }
+            long time = System.nanoTime() - start;
+            System.out.printf("%-6s lookup hit=%.2f%% scan hit=%.2f%% total hit=%.2f%% (%.1f ms)%n", name,
+                    100.0 * lookup[0] / lookup[1], 100.0 * scan[0] / scan[1],
+                    100.0 * (lookup[0] + scan[0]) / (lookup[1] + scan[1]), time / 1e6);
+        }
+    }
+
+    /**
+     * 各置换策略每次访问的耗时：缓存已满，在两倍于缓存的页号中随机访问，约一半未命中，
+     * 命中时 pin/unpin 调整页面在策略中的位置，未命中时还要选出被置换的页面
+     * LRU、2Q 只操作链表；LRU-K 访问满 K 次的页面在按倒数第 K 次访问时间排序的堆中，耗时随缓存页面数按 log n 增长
+     */
+    public static void benchPolicyCost(){
+        String[] policies = {"lru", "2q", "lru-2"};
+        int[] sizes = {1000, 10000, 100000};
+        String policy = PagerConfig.CACHE_POLICY;
+        for(int round = 0; round < 2; round++){
+            for(int nPage : sizes){
+                StringBuilder sb = new StringBuilder();
+                for(String name : policies){
+                    PagerConfig.CACHE_POLICY = name;
+                    PCache pCache = new PCache();
+                    pCache.setCacheSize(nPage);
+                    Random random = new Random(nPage);
+                    for(int i = 0; i < 4 * nPage; i++)
+                        pCache.unpin(pCache.fetch(1 + random.nextInt(2 * nPage)));
+                    int nOp = 1000000;
+                    long sum = 0;
+                    long start = System.nanoTime();
+                    for(int i = 0; i < nOp; i++){
+                        Page page = pCache.fetch(1 + random.nextInt(2 * nPage));
+                        sum += page.getPgno();
+                        pCache.unpin(page);
+                    }
+                    long time = System.nanoTime() - start;
+                    sb.append(String.format(" %s=%.0f ns/op", name, (double)time / nOp));
+                    if(sum == 0)
+                        sb.append('!');
+                }
+                System.out.printf("round %d pages=%-7d%s%n", round, nPage, sb);
+            }
+        }
+        PagerConfig.CACHE_POLICY = policy;
+    }
+
+    /**
+     * 运行时调整缓存大小与释放内存
+     */
+    public static void benchResize(){
+        PCache pCache = new PCache();
+        pCache.setCacheBytes(64L << 20);
+        for(int pgno = 1; pgno <= 50000; pgno++)
+            pCache.unpin(pCache.fetch(pgno));
+        System.out.println("64MB: max=" + pCache.getMaxPage() + " cached=" + pCache.getPageCount() + reserved(pCache));
+
+        long start = System.nanoTime();
+        pCache.setCacheBytes(8L << 20);
+        System.out.printf("8MB: max=%d cached=%d%s (%.1f ms)%n", pCache.getMaxPage(), pCache.getPageCount(),
+                reserved(pCache), (System.nanoTime() - start) / 1e6);
+
+        long released = pCache.releaseMemory(4L << 20);
+        System.out.println("releaseMemory(4MB): released=" + released + " cached=" + pCache.getPageCount() + reserved(pCache));
+
+        pCache.setCacheBytes(256L << 20);
+        for(int pgno = 1; pgno <= 100000; pgno++)
+            pCache.unpin(pCache.fetch(pgno));
+        System.out.println("256MB: max=" + pCache.getMaxPage() + " cached=" + pCache.getPageCount() + reserved(pCache));
+    }
+
+    private static String reserved(PCache pCache){
+        return pCache.getArena().isOffHeap() ? " reserved=" + (pCache.getArena().getReserved() >> 20) + "MB" : "";
+    }
+
+    /**
+     * 多线程 fetch + unpin 的吞吐量，分别在不分片（CACHE_SHARDS=1）和分片的缓存上运行
+     * 缓存 16384 页，访问 1~18000 中的随机页号，约 10% 未命中
+     * @param millis 每种线程数运行的时间
+     */
+    public static void benchConcurrent(int millis){
+        int[] shardCounts = {1, 16};
+        int[] threadCounts = {1, 2, 4, 8, 16, 32};
+        int shardLimit = PagerConfig.CACHE_SHARDS;
+        for(int nShard : shardCounts){
+            PagerConfig.CACHE_SHARDS = nShard;
+            final PCache pCache = new PCache();
+            pCache.setCacheSize(16384);
+            for(int pgno = 1; pgno <= 16384; pgno++)
+                pCache.unpin(pCache.fetch(pgno));
+            for(int nThread : threadCounts){
+                final AtomicLong nOp = new AtomicLong();
+                final long deadline = System.nanoTime() + millis * 1000000L;
+                Thread[] threads = new Thread[nThread];
+                for(int t = 0; t < nThread; t++){
+                    final long seed = t;
+                    threads[t] = new Thread(){
+                        @Override
+                        public void run() {
+                            Random random = new Random(seed);
+                            long n = 0;
+                            while((n & 1023) != 0 || System.nanoTime() < deadline){
+                                Page page = pCache.fetch(1 + random.nextInt(18000));
+                                pCache.unpin(page);
+                                n++;
+                            }
+                            nOp.addAndGet(n);
+                        }
+                    };
+                }
+                long start = System.nanoTime();
+                for(Thread thread : threads)
+                    thread.start();
+                for(Thread thread : threads){
+                    try{
+                        thread.join();
+                    }catch (InterruptedException e){
+                        e.printStackTrace();
+                    }
+                }
+                long time = System.nanoTime() - start;
+                System.out.printf("shards=%-2d threads=%-2d %.2f Mops/s%n", pCache.getShardCount(), nThread,
+                        nOp.get() * 1000.0 / time);
+            }
+        }
+        PagerConfig.CACHE_SHARDS = shardLimit;
+    }
+
+    /**
+     * 与 Pager.aquirePage 相同：页面内容尚未装入（offset 为页面大小）时视为未命中
+     */
+    private static void access(PCache pCache, int pgno, long[] stat){
+        Page page = pCache.fetch(pgno);
+        if(page.getOffset() != SpaceAllocation.PAGE_SIZE)
+            stat[0]++;
+        else
+            page.setOffset(SpaceAllocation.PAGE_SIZE - 1);
+        stat[1]++;
+        pCache.unpin(page);
+    }
+}
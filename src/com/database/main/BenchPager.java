@@ -0,0 +1,997 @@
+package com.database.main;
+
+import com.database.global.Database;
+import com.database.global.PageType;
+import com.database.global.PagerConfig;
+import com.database.global.SpaceAllocation;
+import com.database.pager.PCache;
+import com.database.pager.Page;
+import com.database.pager.PageMoveListener;
+import com.database.pager.Pager;
+import com.database.pager.Position;
+import com.database.pager.RafPageIO;
+import com.database.pager.RecordCursor;
+import com.database.pager.TableSchema;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pager 性能测试
+ */
+public class BenchPager {
+    private static TableSchema schema = TestPager.getSchema();
+
+    public static void main(String[] args) throws IOException {
+        String bench = args.length > 0 ? args[0] : "scan";
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        if("flush".equals(bench))
+            benchFlush(n > 0 ? n : 10000, 100);
+        else if("checkpoint".equals(bench))
+            benchCheckpoint(n > 0 ? n : 200000, 20000);
+        else if("arena".equals(bench))
+            benchArena(n > 0 ? n : 5000000);
+        else if("pagesize".equals(bench))
+            benchPageSize(n > 0 ? n : 1000000);
+        else if("commit".equals(bench))
+            benchCommit(n > 0 ? n : 2000);
+        else if("snapshot".equals(bench))
+            benchSnapshot(n > 0 ? n : 3000);
+        else if("freelist".equals(bench))
+            benchFreelist(n > 0 ? n : 100000);
+        else if("slotted".equals(bench))
+            benchSlotted(n > 0 ? n : 200000);
+        else if("vacuum".equals(bench))
+            benchVacuum(n > 0 ? n : 20000);
+        else if("varrecord".equals(bench))
+            benchVarRecord(n > 0 ? n : 200000);
+        else if("cursor".equals(bench))
+            benchCursor(n > 0 ? n : 5000);
+        else if("point".equals(bench))
+            benchPoint(n > 0 ? n : 200000);
+        else if("readahead".equals(bench))
+            benchReadAhead(n > 0 ? n : 50000, args.length > 2 ? args[2] : null);
+        else
+            benchScan(n > 0 ? n : 20000);
+    }
+
+    /**
+     * 比较 RandomAccessFile 与内存映射两种方式下全表扫描的耗时
+     * cold：新打开的 Pager，缓存为空；warm：同一个 Pager 再扫描一遍
+     */
+    public static void benchScan(int nPage) throws IOException {
+        File file = File.createTempFile("benchScan", ".db");
+        file.deleteOnExit();
+        buildFile(file, nPage);
+        System.out.println("pages: " + nPage + ", file: " + file.length() / 1024 + " KB");
+
+        String[] names = {"raf", "mmap"};
+        int[] modes = {PagerConfig.IO_RAF, PagerConfig.IO_MMAP};
+        for(int round = 0; round < 3; round++){
+            for(int i = 0; i < modes.length; i++){
+                PagerConfig.IO_MODE = modes[i];
+                Database db = new Database();
+                db.setDBFile(file);
+                Pager pager = db.getPager();
+
+                long start = System.nanoTime();
+                int rows = scan(pager, nPage);
+                long cold = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                scan(pager, nPage);
+                long warm = System.nanoTime() - start;
+                pager.close();
+
+                System.out.printf("round %d %-5s rows=%d cold=%.1f ms warm=%.1f ms%n",
+                        round, names[i], rows, cold / 1e6, warm / 1e6);
+            }
+        }
+    }
+
+    /**
+     * 模拟逐条插入：每条记录追加到最后一个叶子页面，每插入 flushEvery 条调用一次 flush，
+     * 统计 flush 的总耗时
+     */
+    public static void benchFlush(int nRecord, int flushEvery) throws IOException {
+        for(int round = 0; round < 3; round++){
+            File file = File.createTempFile("benchFlush", ".db");
+            file.deleteOnExit();
+            Database db = new Database();
+            db.setDBFile(file);
+            Pager pager = db.getPager();
+
+            Page first = pager.aquirePage(1);
+            first.setPageType(PageType.TABLE_LEAF);
+            pager.updateHeader(first);
+            Page page = pager.aquireNewPage();
+            page.setPageType(PageType.TABLE_LEAF);
+
+            long flushTime = 0;
+            int nFlush = 0;
+            long start = System.nanoTime();
+            for(int rowid = 1; rowid <= nRecord; rowid++){
+                if(page.getUsable() < schema.getSize()){
+                    pager.freePage(page.getPgno());
+                    page = pager.aquireNewPage();
+                    page.setPageType(PageType.TABLE_LEAF);
+                }
+                pager.appendData(page, new SimpleEntry<Integer, byte[]>(rowid, schema.getBytes(rowid, rowid + ",name" + rowid + ",20")));
+                if(rowid % flushEvery == 0 || rowid == nRecord){
+                    long t = System.nanoTime();
+                    pager.flush();
+                    flushTime += System.nanoTime() - t;
+                    nFlush++;
+                }
+            }
+            long total = System.nanoTime() - start;
+            pager.close();
+
+            System.out.printf("round %d records=%d pages=%d file=%d KB flushes=%d flush=%.1f ms (%.0f records/s) total=%.1f ms%n",
+                    round, nRecord, pager.getMxPgno(), file.length() / 1024, nFlush,
+                    flushTime / 1e6, nRecord / (flushTime / 1e9), total / 1e6);
+        }
+    }
+
+    /**
+     * 比较有无后台写回线程时的插入：缓存只有 256 个页面，每插入 flushEvery 条调用一次 flush，
+     * 统计前台 flush 的最长停顿、总耗时，以及缓存因没有干净页面而超出上限的页面数
+     */
+    public static void benchCheckpoint(int nRecord, int flushEvery) throws IOException {
+        for(int round = 0; round < 2; round++){
+            for(boolean background : new boolean[]{false, true}){
+                File file = File.createTempFile("benchCheckpoint", ".db");
+                file.deleteOnExit();
+                Database db = new Database();
+                db.setDBFile(file);
+                Pager pager = db.getPager();
+                pager.getPCache().setCacheSize(256);
+                if(background)
+                    pager.startCheckpointer();
+
+                Page first = pager.aquirePage(1);
+                first.setPageType(PageType.TABLE_LEAF);
+                pager.updateHeader(first);
+                Page page = pager.aquireNewPage();
+                page.setPageType(PageType.TABLE_LEAF);
+
+                long flushTime = 0, maxFlush = 0;
+                int maxCached = 0;
+                long start = System.nanoTime();
+                for(int rowid = 1; rowid <= nRecord; rowid++){
+                    if(page.getUsable() < schema.getSize()){
+                        pager.freePage(page.getPgno());
+                        page = pager.aquireNewPage();
+                        page.setPageType(PageType.TABLE_LEAF);
+                        maxCached = Math.max(maxCached, pager.getPCache().getPageCount());
+                    }
+                    pager.appendData(page, new SimpleEntry<Integer, byte[]>(rowid, schema.getBytes(rowid, rowid + ",name" + rowid + ",20")));
+                    if(rowid % flushEvery == 0 || rowid == nRecord){
+                        long t = System.nanoTime();
+                        pager.flush();
+                        t = System.nanoTime() - t;
+                        flushTime += t;
+                        maxFlush = Math.max(maxFlush, t);
+                    }
+                }
+                long total = System.nanoTime() - start;
+                long written = background ? pager.getCheckpointer().getWritten() : 0;
+                pager.close();
+
+                System.out.printf("round %d %-10s records=%d pages=%d maxCached=%d flush=%.1f ms maxFlush=%.2f ms background=%d pages total=%.1f ms%n",
+                        round, background ? "background" : "foreground", nRecord, pager.getMxPgno(), maxCached,
+                        flushTime / 1e6, maxFlush / 1e6, written, total / 1e6);
+            }
+        }
+    }
+
+    /**
+     * 持续插入时的 GC 开销：缓存足够容纳全部页面，每插入 50000 条 flush 一次，
+     * 统计插入期间 GC 的次数和总耗时。堆外与堆内分别用 -Ddb.cache.offheap=true/false 运行，
+     * 可以同时加 -Xlog:gc 查看每次停顿
+     */
+    public static void benchArena(int nRecord) throws IOException {
+        File file = File.createTempFile("benchArena", ".db");
+        file.deleteOnExit();
+        Database db = new Database();
+        db.setDBFile(file);
+        Pager pager = db.getPager();
+        pager.setCacheSize((long)(nRecord / 10 + 1000) * PCache.getPageBytes());
+
+        Page first = pager.aquirePage(1);
+        first.setPageType(PageType.TABLE_LEAF);
+        pager.updateHeader(first);
+        Page page = pager.aquireNewPage();
+        page.setPageType(PageType.TABLE_LEAF);
+
+        byte[] record = schema.getBytes(1, "1,name,20");
+        long gcCount = gcCount(), gcTime = gcTime();
+        long start = System.nanoTime();
+        for(int rowid = 1; rowid <= nRecord; rowid++){
+            if(page.getUsable() < record.length){
+                pager.freePage(page.getPgno());
+                page = pager.aquireNewPage();
+                page.setPageType(PageType.TABLE_LEAF);
+            }
+            pager.appendData(page, new SimpleEntry<Integer, byte[]>(rowid, record));
+            if(rowid % 50000 == 0)
+                pager.flush();
+        }
+        pager.flush();
+        long total = System.nanoTime() - start;
+        gcCount = gcCount() - gcCount;
+        gcTime = gcTime() - gcTime;
+
+        System.out.printf("offHeap=%b records=%d pages=%d cached=%d direct=%d MB heapUsed=%d MB gc=%d gcTime=%d ms total=%.1f ms%n",
+                pager.getPCache().getArena().isOffHeap(), nRecord, pager.getMxPgno(), pager.getPCache().getPageCount(),
+                pager.getPCache().getArena().getReserved() >> 20,
+                (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20,
+                gcCount, gcTime, total / 1e6);
+        pager.close();
+    }
+
+    private static long gcCount(){
+        long n = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            n += gc.getCollectionCount();
+        return n;
+    }
+
+    private static long gcTime(){
+        long n = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            n += gc.getCollectionTime();
+        return n;
+    }
+
+    /**
+     * 不同页面大小下，nRow 行的表需要的页面数、B+树高度（按页面容量计算的扇出）和全表扫描的吞吐量
+     */
+    public static void benchPageSize(int nRow) throws IOException {
+        int internalSize = TableSchema.getTreeInternalSchema().getSize();
+        for(int pageSize = SpaceAllocation.MIN_PAGE_SIZE; pageSize <= SpaceAllocation.MAX_PAGE_SIZE; pageSize <<= 1){
+            File file = File.createTempFile("benchPageSize", ".db");
+            file.deleteOnExit();
+            Database db = new Database();
+            db.setDBFile(file);
+            Pager pager = db.getPager();
+            pager.setPageSize(pageSize);
+
+            int usable = pageSize - SpaceAllocation.PAGE_HEADER_SIZE;
+            int rowsPerLeaf = usable / (schema.getBytes(nRow, nRow + ",name" + nRow + ",20").length + 2);
+            int fanout = usable / internalSize;
+            int nLeaf = (nRow + rowsPerLeaf - 1) / rowsPerLeaf;
+            int height = 1;
+            for(long level = nLeaf; level > 1; level = (level + fanout - 1) / fanout)
+                height++;
+            buildFile(file, nLeaf + 1);
+
+            long best = Long.MAX_VALUE;
+            int rows = 0;
+            for(int round = 0; round < 3; round++){
+                pager.getPCache().clear();
+                long start = System.nanoTime();
+                rows = scan(pager, nLeaf + 1);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            pager.close();
+
+            System.out.printf("pageSize=%-6d rows/leaf=%-4d fanout=%-5d leaves=%-7d height=%d file=%d KB scan=%.1f ms (%.0f rows/s)%n",
+                    pageSize, rowsPerLeaf, fanout, nLeaf, height, file.length() / 1024,
+                    best / 1e6, rows / (best / 1e9));
+            file.delete();
+        }
+    }
+
+    /**
+     * 预读对全表扫描的影响，使用 RandomAccessFile 方式读写，每次扫描前清空缓存
+     * sequential：按页号顺序扫描；random：按随机顺序扫描，预读窗口应当缩小
+     * 指定 path 时使用（或生成）该文件，并且只按 -Ddb.readahead 的设置各扫描一次，
+     * 便于在两次运行之间清空操作系统的文件缓存，测量冷读
+     */
+    public static void benchReadAhead(int nPage, String path) throws IOException {
+        File file;
+        if(path != null){
+            file = new File(path);
+            if(!file.exists())
+                buildFile(file, nPage);
+        }else{
+            file = File.createTempFile("benchReadAhead", ".db");
+            file.deleteOnExit();
+            buildFile(file, nPage);
+        }
+        PagerConfig.IO_MODE = PagerConfig.IO_RAF;
+
+        int[] sequential = new int[nPage - 1];
+        for(int i = 0; i < sequential.length; i++)
+            sequential[i] = i + 2;
+        int[] random = sequential.clone();
+        Random rnd = new Random(nPage);
+        for(int i = random.length - 1; i > 0; i--){
+            int j = rnd.nextInt(i + 1);
+            int t = random[i];
+            random[i] = random[j];
+            random[j] = t;
+        }
+
+        int initial = PagerConfig.READAHEAD;
+        int[] windows = path != null ? new int[]{initial} : new int[]{0, initial};
+        for(int round = 0; round < (path != null ? 1 : 3); round++){
+            for(int window : windows){
+                PagerConfig.READAHEAD = window;
+                for(int k = 0; k < 2; k++){
+                    int[] order = k == 0 ? sequential : random;
+                    Database db = new Database();
+                    db.setDBFile(file);
+                    Pager pager = db.getPager();
+                    pager.setCacheSize(4L << 20);
+
+                    //只读取页面不解析记录，测量的是 I/O 部分
+                    long start = System.nanoTime();
+                    pager.beginScan();
+                    long cells = 0;
+                    for(int pgno : order){
+                        cells += pager.aquirePage(pgno).getnCell();
+                        pager.freePage(pgno);
+                    }
+                    pager.endScan();
+                    long time = System.nanoTime() - start;
+                    pager.close();
+
+                    System.out.printf("round %d readahead=%-2d %-10s pages=%d scan=%.1f ms (%.0f pages/s) %s (%d)%n",
+                            round, window, k == 0 ? "sequential" : "random", order.length, time / 1e6,
+                            order.length / (time / 1e9), pager.getReadAhead(), cells);
+                }
+            }
+        }
+        PagerConfig.READAHEAD = initial;
+    }
+
+    /**
+     * 每秒提交数：每个事务修改 batch 个随机页面后调用 commit
+     * inplace：不使用预写日志，页面直接写回数据库文件后 fsync；wal：页面追加到日志，并发的提交共用 fsync
+     * 先在单线程下改变每个事务的页面数，再在每个事务一个页面时改变并发提交的线程数
+     * @param millis 每种配置运行的时间
+     */
+    public static void benchCommit(int millis) throws IOException {
+        int nPage = 2000;
+        File file = File.createTempFile("benchCommit", ".db");
+        file.deleteOnExit();
+        new File(file.getAbsolutePath() + "-wal").deleteOnExit();
+        buildFile(file, nPage);
+
+        int[] batches = {1, 8, 32};
+        int[] threadCounts = {1, 2, 4, 8, 16};
+        boolean wal = PagerConfig.WAL;
+        for(boolean useWal : new boolean[]{false, true}){
+            PagerConfig.WAL = useWal;
+            for(int batch : batches)
+                runCommit(file, nPage, useWal, 1, batch, millis);
+            for(int i = 1; i < threadCounts.length; i++)
+                runCommit(file, nPage, useWal, threadCounts[i], 1, millis);
+        }
+        PagerConfig.WAL = wal;
+    }
+
+    private static void runCommit(File file, final int nPage, boolean useWal, int nThread, final int batch, int millis){
+        Database db = new Database();
+        db.setDBFile(file);
+        final Pager pager = db.getPager();
+        pager.setMxPgno(nPage);
+        final AtomicLong nCommit = new AtomicLong();
+        final long deadline = System.nanoTime() + millis * 1000000L;
+        Thread[] threads = new Thread[nThread];
+        for(int t = 0; t < nThread; t++){
+            final long seed = t;
+            threads[t] = new Thread(){
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    while(System.nanoTime() < deadline){
+                        synchronized (pager){
+                            for(int i = 0; i < batch; i++){
+                                Page page = pager.aquirePage(2 + random.nextInt(nPage - 1));
+                                page.putInt(page.getSize() - 4, random.nextInt());
+                                pager.updateHeader(page);
+                                pager.freePage(page.getPgno());
+                            }
+                        }
+                        pager.commit();
+                        nCommit.incrementAndGet();
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for(Thread thread : threads)
+            thread.start();
+        for(Thread thread : threads){
+            try{
+                thread.join();
+            }catch (InterruptedException e){
+                e.printStackTrace();
+            }
+        }
+        long time = System.nanoTime() - start;
+        long nSync = useWal ? pager.getWal().getSyncCount() : nCommit.get();
+        pager.close();
+        System.out.printf("%-7s threads=%-2d pages/commit=%-2d commits=%-6d %.0f commits/s fsyncs=%d (%.1f commits/fsync)%n",
+                useWal ? "wal" : "inplace", nThread, batch, nCommit.get(), nCommit.get() / (time / 1e9),
+                nSync, (double)nCommit.get() / Math.max(1, nSync));
+    }
+
+    /**
+     * 写者不断提交事务，读者同时反复扫描所有页面
+     * 每个事务把同一个序号写入 20 个固定页面（每隔 100 页一个）和 8 个随机页面，
+     * 一次扫描中读到的固定页面序号不全相同时，说明读者看到了写者提交到一半的状态
+     * shared：读者直接读共享的缓存页面；snapshot：读者在 beginRead/endRead 之间读取
+     * @param millis 每种方式运行的时间
+     */
+    public static void benchSnapshot(int millis) throws IOException {
+        final int nPage = 2000;
+        File file = File.createTempFile("benchSnapshot", ".db");
+        file.deleteOnExit();
+        new File(file.getAbsolutePath() + "-wal").deleteOnExit();
+        buildFile(file, nPage);
+
+        for(final boolean useSnapshot : new boolean[]{false, true}){
+            Database db = new Database();
+            db.setDBFile(file);
+            final Pager pager = db.getPager();
+            pager.setMxPgno(nPage);
+            final long deadline = System.nanoTime() + millis * 1000000L;
+            final long[] writer = new long[1];              //提交数
+            final long[] reader = new long[3];              //扫描数，不一致的扫描数，最长扫描时间
+            Thread w = new Thread(){
+                @Override
+                public void run() {
+                    Random random = new Random(1);
+                    for(int v = 1; System.nanoTime() < deadline; v++){
+                        synchronized (pager){
+                            for(int pgno = 2; pgno <= nPage; pgno += 100)
+                                stamp(pager, pgno, v);
+                            for(int i = 0; i < 8; i++)
+                                stamp(pager, 2 + random.nextInt(nPage - 1), v);
+                        }
+                        pager.commit();
+                        writer[0]++;
+                    }
+                }
+            };
+            Thread r = new Thread(){
+                @Override
+                public void run() {
+                    while(System.nanoTime() < deadline){
+                        long start = System.nanoTime();
+                        if(useSnapshot)
+                            pager.beginRead();
+                        int first = -1;
+                        boolean torn = false;
+                        try{
+                            for(int pgno = 2; pgno <= nPage; pgno++){
+                                Page page = pager.aquirePage(pgno);
+                                int v = page.getInt(page.getSize() - 4);
+                                pager.freePage(pgno);
+                                if((pgno - 2) % 100 == 0){
+                                    if(first < 0)
+                                        first = v;
+                                    else if(v != first)
+                                        torn = true;
+                                }
+                            }
+                        }finally {
+                            if(useSnapshot)
+                                pager.endRead();
+                        }
+                        reader[0]++;
+                        if(torn)
+                            reader[1]++;
+                        reader[2] = Math.max(reader[2], System.nanoTime() - start);
+                    }
+                }
+            };
+            w.start();
+            r.start();
+            try{
+                w.join();
+                r.join();
+            }catch (InterruptedException e){
+                e.printStackTrace();
+            }
+            System.out.printf("%-8s commits=%-6d (%.0f/s) scans=%-5d torn=%-5d maxScan=%.1f ms %s%n",
+                    useSnapshot ? "snapshot" : "shared", writer[0], writer[0] * 1000.0 / millis,
+                    reader[0], reader[1], reader[2] / 1e6, pager.getWal());
+            pager.close();
+        }
+    }
+
+    private static void stamp(Pager pager, int pgno, int v){
+        Page page = pager.aquirePage(pgno);
+        page.putInt(page.getSize() - 4, v);
+        pager.updateHeader(page);
+        pager.freePage(pgno);
+    }
+
+    /**
+     * 模拟分裂时页面的分配与释放：每次分配一个新页面，并以 1/2 的概率释放一个随机的在用页面，每 100 次提交一次
+     * nofree：释放的页面只 unpin，不记入空闲链表（原来的做法）；freelist：释放的页面用 dropPage 记入空闲链表
+     */
+    public static void benchFreelist(int nOp) throws IOException {
+        for(int round = 0; round < 2; round++){
+            for(boolean reuse : new boolean[]{false, true}){
+                File file = File.createTempFile("benchFreelist", ".db");
+                file.deleteOnExit();
+                Database db = new Database();
+                db.setDBFile(file);
+                Pager pager = db.getPager();
+                Page first = pager.aquireNewPage();
+                pager.updateHeader(first);
+
+                Random random = new Random(7);
+                List<Integer> live = new ArrayList<Integer>();
+                long start = System.nanoTime();
+                for(int i = 1; i <= nOp; i++){
+                    Page page = pager.aquireNewPage();
+                    page.setPageType(PageType.TABLE_LEAF);
+                    page.putInt(page.getSize() - 4, i);
+                    pager.updateHeader(page);
+                    live.add(page.getPgno());
+                    pager.freePage(page.getPgno());
+                    if(random.nextBoolean()){
+                        int pgno = live.remove(random.nextInt(live.size()));
+                        if(reuse)
+                            pager.dropPage(pgno);
+                    }
+                    if(i % 100 == 0)
+                        pager.commit();
+                }
+                int free = pager.getFreePageCount();
+                pager.close();
+                long time = System.nanoTime() - start;
+                System.out.printf("round %d %-8s ops=%d live=%d free=%d pages=%d file=%d KB (%.1f ms)%n",
+                        round, reuse ? "freelist" : "nofree", nOp, live.size(), free, pager.getMxPgno(),
+                        file.length() / 1024, time / 1e6);
+            }
+        }
+    }
+
+    /**
+     * 单条记录的修改：页面保持半满到全满之间，随机删除一条记录再插入一条新记录
+     * rewrite：原来 flushPage 的做法，修改内存中的有序列表后重新编码所有记录并用 writeData 重写整个页面；
+     * inplace：appendData/deleteData 只插入或删除一个 cell
+     */
+    public static void benchSlotted(int nOp) throws IOException {
+        for(int pageSize : new int[]{4096, 16384}){
+            SpaceAllocation.PAGE_SIZE = pageSize;
+            int capacity = (pageSize - SpaceAllocation.PAGE_HEADER_SIZE) / (schema.getSize() + 2);
+            for(int round = 0; round < 2; round++){
+                for(boolean inplace : new boolean[]{false, true}){
+                    File file = File.createTempFile("benchSlotted", ".db");
+                    file.deleteOnExit();
+                    Database db = new Database();
+                    db.setDBFile(file);
+                    Pager pager = db.getPager();
+                    Page first = pager.aquireNewPage();
+                    pager.updateHeader(first);
+                    Page page = pager.aquireNewPage();
+                    page.setPageType(PageType.TABLE_LEAF);
+
+                    Random random = new Random(7);
+                    List<Map.Entry<Integer, String>> rows = new ArrayList<Map.Entry<Integer, String>>();
+                    int nextRowid = 1;
+                    long start = System.nanoTime();
+                    for(int i = 0; i < nOp; i++){
+                        boolean insert = rows.size() < capacity / 2 || rows.size() < capacity && random.nextBoolean();
+                        if(insert){
+                            int rowid = nextRowid++;
+                            String value = rowid + ",name" + rowid + ",20";
+                            rows.add(new SimpleEntry<Integer, String>(rowid, value));
+                            if(inplace)
+                                pager.appendData(page, new SimpleEntry<Integer, byte[]>(rowid, schema.getBytes(rowid, value)));
+                        }else{
+                            int rowid = rows.remove(random.nextInt(rows.size())).getKey();
+                            if(inplace)
+                                pager.deleteData(page, rowid);
+                        }
+                        if(!inplace){
+                            List<Map.Entry<Integer, byte[]>> data = new ArrayList<Map.Entry<Integer, byte[]>>(rows.size());
+                            for(Map.Entry<Integer, String> row : rows)
+                                data.add(new SimpleEntry<Integer, byte[]>(row.getKey(), schema.getBytes(row.getKey(), row.getValue())));
+                            pager.writeData(page, data);
+                        }
+                    }
+                    long time = System.nanoTime() - start;
+                    List<Map.Entry<Integer, String>> stored = pager.readRecord(page.getPgno());
+                    boolean ok = stored != null && stored.size() == rows.size();
+                    for(int i = 0; ok && i < rows.size(); i++)
+                        ok = stored.get(i).getKey().equals(rows.get(i).getKey());
+                    pager.freePage(page.getPgno());
+                    pager.close();
+                    System.out.printf("page %-5d round %d %-7s ops=%d cells=%d %.0f ns/op free=%d frag=%d %s%n",
+                            pageSize, round, inplace ? "inplace" : "rewrite", nOp, rows.size(), (double)time / nOp,
+                            page.getFreeSpace(), page.getFragmented(), ok ? "ok" : "MISMATCH");
+                }
+            }
+        }
+    }
+
+    /**
+     * 增量 vacuum：分配 2n 个页面，随机保留一半并连成双向叶子链，其余页面记入空闲链表，
+     * 然后反复调用 incrementalVacuum(step) 并提交，直到文件中没有空闲页面。
+     * 统计每次调用（持有 Pager 锁）的最长耗时、移动的页面数和文件大小，最后沿叶子链检查内容和前后指针
+     */
+    public static void benchVacuum(int n) throws IOException {
+        for(int step : new int[]{16, 256, Integer.MAX_VALUE}){
+            File file = File.createTempFile("benchVacuum", ".db");
+            file.deleteOnExit();
+            Database db = new Database();
+            db.setDBFile(file);
+            Pager pager = db.getPager();
+            Page first = pager.aquireNewPage();
+            pager.updateHeader(first);
+
+            Random random = new Random(7);
+            List<Integer> live = new ArrayList<Integer>();
+            List<Integer> dead = new ArrayList<Integer>();
+            for(int i = 0; i < 2 * n; i++){
+                Page page = pager.aquireNewPage();
+                (random.nextBoolean() && live.size() < n || dead.size() >= n ? live : dead).add(page.getPgno());
+                pager.freePage(page.getPgno());
+            }
+            for(int i = 0; i < live.size(); i++){
+                Page page = pager.aquirePage(live.get(i));
+                page.setPageType(PageType.TABLE_LEAF);
+                page.setpPrev(i > 0 ? live.get(i - 1) : 0);
+                page.setpNext(i + 1 < live.size() ? live.get(i + 1) : 0);
+                page.putInt(page.getSize() - 4, i);
+                pager.updateHeader(page);
+                pager.freePage(live.get(i));
+            }
+            for(int pgno : dead)
+                pager.dropPage(pgno);
+            pager.commit();
+            pager.checkpoint();
+            long before = file.length();
+
+            final int[] head = {live.get(0)};
+            final int[] moved = {0};
+            pager.addPageMoveListener(new PageMoveListener() {
+                @Override
+                public void pageMoved(int from, int to) {
+                    moved[0]++;
+                    if(head[0] == from)
+                        head[0] = to;
+                }
+            });
+            List<Long> calls = new ArrayList<Long>();
+            long total = 0;
+            long start = System.nanoTime();
+            while(true){
+                long t = System.nanoTime();
+                int removed = pager.incrementalVacuum(step);
+                t = System.nanoTime() - t;
+                pager.commit();
+                if(removed == 0)
+                    break;
+                calls.add(t);
+                total += t;
+            }
+            Collections.sort(calls);
+            long elapsed = System.nanoTime() - start;
+            pager.checkpoint();
+            long after = file.length();
+
+            int count = 0, prev = 0;
+            boolean ok = true;
+            for(int pgno = head[0]; pgno != 0; count++){
+                Page page = pager.aquirePage(pgno);
+                ok &= page.getInt(page.getSize() - 4) == count && page.getpPrev() == prev && pgno <= pager.getMxPgno();
+                prev = pgno;
+                pgno = page.getpNext();
+                pager.freePage(prev);
+            }
+            ok &= count == live.size();
+            pager.close();
+            System.out.printf("step %-10d calls=%d moved=%d vacuum p50=%.2f p99=%.2f max=%.2f ms total=%.1f ms (with commits %.1f ms) file %d KB -> %d KB pages=%d chain %s%n",
+                    step, calls.size(), moved[0], calls.get(calls.size() / 2) / 1e6, calls.get(calls.size() * 99 / 100) / 1e6,
+                    calls.get(calls.size() - 1) / 1e6, total / 1e6, elapsed / 1e6, before / 1024, after / 1024,
+                    pager.getMxPgno(), ok ? "ok" : "BROKEN");
+        }
+    }
+
+    /**
+     * 全表扫描每行分配的字节数和耗时，取每行的 id 和 name 的长度
+     * records：readRecord 得到每行的字符串后 split（Execute 的做法）；cursor：RecordCursor 直接读页面中的列
+     */
+    public static void benchCursor(int nPage) throws IOException {
+        File file = File.createTempFile("benchCursor", ".db");
+        file.deleteOnExit();
+        buildFile(file, nPage);
+        Database db = new Database();
+        db.setDBFile(file);
+        Pager pager = db.getPager();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        for(int round = 0; round < 5; round++){
+            for(boolean cursorMode : new boolean[]{false, true}){
+                long rows = 0, sum = 0;
+                long bytes = threads.getThreadAllocatedBytes(tid);
+                long start = System.nanoTime();
+                if(cursorMode){
+                    RecordCursor cursor = new RecordCursor(pager);
+                    for(int pgno = 2; pgno <= nPage; pgno++){
+                        cursor.open(pgno);
+                        for(boolean ok = cursor.first(); ok; ok = cursor.next()){
+                            sum += cursor.getInt(0) + cursor.getTextLength(1);
+                            rows++;
+                        }
+                    }
+                    cursor.close();
+                }else{
+                    for(int pgno = 2; pgno <= nPage; pgno++){
+                        List<Map.Entry<Integer, String>> records = pager.readRecord(pgno);
+                        if(records == null)
+                            continue;
+                        for(Map.Entry<Integer, String> record : records){
+                            String[] cols = record.getValue().split(",");
+                            sum += Integer.parseInt(cols[0]) + cols[1].getBytes().length;
+                            rows++;
+                        }
+                    }
+                }
+                long time = System.nanoTime() - start;
+                bytes = threads.getThreadAllocatedBytes(tid) - bytes;
+                System.out.printf("round %d %-7s rows=%d %.1f B/row %.0f ns/row checksum=%d%n",
+                        round, cursorMode ? "cursor" : "records", rows, (double)bytes / rows, (double)time / rows, sum);
+            }
+        }
+        pager.close();
+    }
+
+    /**
+     * 按 rowid 随机读取一条记录，页面都在缓存中
+     * decode：readRecord 解析整个页面后在列表中二分查找（原来 BplusNode.get 的做法）；
+     * linear：在页面中逐条比较 rowid（原来 readDataByRowid 的做法）；binary：readDataByRowid 在指针数组中二分查找
+     */
+    public static void benchPoint(int nLookup) throws IOException {
+        for(int pageSize : new int[]{4096, 16384}){
+            SpaceAllocation.PAGE_SIZE = pageSize;
+            int nPage = 201;
+            File file = File.createTempFile("benchPoint", ".db");
+            file.deleteOnExit();
+            buildFile(file, nPage);
+            Database db = new Database();
+            db.setDBFile(file);
+            Pager pager = db.getPager();
+            //每个页面的第一个 rowid，按 rowid 找页面
+            int[] firstRowid = new int[nPage + 1];
+            RecordCursor cursor = new RecordCursor(pager);
+            int maxRowid = 0;
+            for(int pgno = 2; pgno <= nPage; pgno++){
+                cursor.open(pgno);
+                cursor.first();
+                firstRowid[pgno] = cursor.getRowid();
+                maxRowid = firstRowid[pgno] + cursor.getCount() - 1;
+            }
+            cursor.close();
+
+            for(int round = 0; round < 3; round++){
+                for(String mode : new String[]{"decode", "linear", "binary"}){
+                    Random random = new Random(5);
+                    long found = 0;
+                    long start = System.nanoTime();
+                    for(int i = 0; i < nLookup; i++){
+                        int rowid = 1 + random.nextInt(maxRowid);
+                        int pgno = Arrays.binarySearch(firstRowid, 2, nPage + 1, rowid);
+                        if(pgno < 0)
+                            pgno = -pgno - 2;
+                        String value = null;
+                        if("decode".equals(mode)){
+                            List<Map.Entry<Integer, String>> records = pager.readRecord(pgno);
+                            int low = 0, high = records.size() - 1;
+                            while(low <= high){
+                                int mid = (low + high) >>> 1;
+                                int key = records.get(mid).getKey();
+                                if(key < rowid)
+                                    low = mid + 1;
+                                else if(key > rowid)
+                                    high = mid - 1;
+                                else{
+                                    value = records.get(mid).getValue();
+                                    break;
+                                }
+                            }
+                        }else if("linear".equals(mode)){
+                            cursor.open(pgno);
+                            for(int c = 0; c < cursor.getCount(); c++){
+                                Page page = cursor.getPage();
+                                if(page.getInt(page.getCellOffset(c) + Position.ROWID_IN_RECORD) == rowid){
+                                    cursor.moveTo(c);
+                                    value = cursor.toRow();
+                                    break;
+                                }
+                            }
+                            cursor.close();
+                        }else{
+                            Map.Entry<Integer, String> entry = pager.readDataByRowid(pgno, rowid);
+                            value = entry == null ? null : entry.getValue();
+                        }
+                        if(value != null)
+                            found++;
+                    }
+                    long time = System.nanoTime() - start;
+                    System.out.printf("page %-5d round %d %-6s lookups=%d found=%d %.0f ns/lookup%n",
+                            pageSize, round, mode, nLookup, found, (double)time / nLookup);
+                }
+            }
+            pager.close();
+        }
+    }
+
+    /**
+     * 变长记录：同样 nRow 行短字符串的表，fixed 把 TEXT 补齐到50字节（原来的定长格式），
+     * var 按实际长度保存，比较需要的页面数和冷缓存全表扫描的耗时；
+     * 然后写入一批1KB到64KB的长记录，重新打开后读回并校验溢出页中的内容
+     */
+    public static void benchVarRecord(int nRow) throws IOException {
+        for(int round = 0; round < 3; round++){
+            for(boolean fixed : new boolean[]{true, false}){
+                File file = File.createTempFile("benchVarRecord", ".db");
+                file.deleteOnExit();
+                int nPage = buildRows(file, nRow, fixed ? 50 : 0);
+                Database db = new Database();
+                db.setDBFile(file);
+                Pager pager = db.getPager();
+                long start = System.nanoTime();
+                int rows = scan(pager, nPage);
+                long time = System.nanoTime() - start;
+                pager.close();
+                System.out.printf("round %d %-5s rows=%d pages=%d rows/page=%.1f file=%d KB scan=%.1f ms%n",
+                        round, fixed ? "fixed" : "var", rows, nPage, (double)rows / (nPage - 1),
+                        file.length() / 1024, time / 1e6);
+            }
+        }
+
+        TableSchema tree = TableSchema.getTreeSchema();
+        File file = File.createTempFile("benchVarRecord", ".db");
+        file.deleteOnExit();
+        Database db = new Database();
+        db.setDBFile(file);
+        Pager pager = db.getPager();
+        Page first = pager.aquireNewPage();
+        pager.updateHeader(first);
+        Random random = new Random(11);
+        List<String> values = new ArrayList<String>();
+        Page page = pager.aquireNewPage();
+        page.setPageType(PageType.TABLE_LEAF);
+        long bytes = 0;
+        for(int rowid = 1; rowid <= 64; rowid++){
+            StringBuilder value = new StringBuilder();
+            int len = 1024 + random.nextInt(63 * 1024);
+            for(int i = 0; i < len; i++)
+                value.append((char)('a' + random.nextInt(26)));
+            values.add("big" + rowid + "," + value);
+            bytes += len;
+            if(!pager.appendData(page, new SimpleEntry<Integer, byte[]>(rowid, tree.getBytes(rowid, Arrays.asList("big" + rowid, value.toString()))))){
+                pager.freePage(page.getPgno());
+                page = pager.aquireNewPage();
+                page.setPageType(PageType.TABLE_LEAF);
+                pager.appendData(page, new SimpleEntry<Integer, byte[]>(rowid, tree.getBytes(rowid, Arrays.asList("big" + rowid, value.toString()))));
+            }
+        }
+        int last = page.getPgno();
+        pager.freePage(last);
+        pager.commit();
+        pager.close();
+
+        db = new Database();
+        db.setDBFile(file);
+        pager = db.getPager();
+        long start = System.nanoTime();
+        List<String> stored = new ArrayList<String>();
+        for(int pgno = 2; pgno <= last; pgno++){
+            List<Map.Entry<Integer, String>> records = pager.readRecord(pgno);
+            //溢出页没有 cell
+            if(records == null)
+                continue;
+            for(Map.Entry<Integer, String> record : records)
+                stored.add(record.getValue());
+        }
+        long time = System.nanoTime() - start;
+        pager.close();
+        System.out.printf("overflow records=%d payload=%d KB pages=%d file=%d KB read=%.1f ms %s%n",
+                values.size(), bytes / 1024, file.length() / SpaceAllocation.PAGE_SIZE, file.length() / 1024,
+                time / 1e6, stored.equals(values) ? "ok" : "MISMATCH");
+    }
+
+    /**
+     * 直接生成一个包含 nRow 行的数据库文件，width 大于0时 TEXT 列补齐到 width 字节
+     * @return 页面数
+     */
+    private static int buildRows(File file, int nRow, int width) throws IOException {
+        RafPageIO io = new RafPageIO(file.getAbsolutePath());
+        int rowid = 0;
+        int pgno = 1;
+        for(; pgno == 1 || rowid < nRow; pgno++){
+            Page page = new Page();
+            page.setPgno(pgno);
+            page.setPageType(PageType.TABLE_LEAF);
+            if(pgno > 1){
+                List<Map.Entry<Integer, byte[]>> entries = new ArrayList<Map.Entry<Integer, byte[]>>();
+                int usable = page.getUsable();
+                while(rowid < nRow){
+                    StringBuilder name = new StringBuilder("name" + (rowid + 1));
+                    while(name.length() < width)
+                        name.append('\0');
+                    byte[] record = schema.getBytes(rowid + 1, (rowid + 1) + "," + name + ",20");
+                    if(record.length > usable)
+                        break;
+                    rowid++;
+                    entries.add(new SimpleEntry<Integer, byte[]>(rowid, record));
+                    usable -= record.length + 2;
+                }
+                page.fillData(entries);
+            }
+            io.write(pgno, page.getBuffer());
+        }
+        int nPage = pgno - 1;
+        Page first = new Page();
+        first.setPgno(1);
+        first.putInt(Position.PAGE_SIZE_IN_FIRST_PAGE, SpaceAllocation.PAGE_SIZE);
+        first.putInt(Position.MAX_PGNO_IN_FIRST_PAGE, nPage);
+        io.write(1, first.getBuffer());
+        io.close();
+        return nPage;
+    }
+
+    private static int scan(Pager pager, int nPage){
+        int rows = 0;
+        for(int pgno = 2; pgno <= nPage; pgno++){
+            List<Map.Entry<Integer, String>> records = pager.readRecord(pgno);
+            if(records != null)
+                rows += records.size();
+        }
+        return rows;
+    }
+
+    /**
+     * 直接生成一个包含 nPage 个叶子页面的数据库文件
+     */
+    static void buildFile(File file, int nPage) throws IOException {
+        RafPageIO io = new RafPageIO(file.getAbsolutePath());
+        int rowid = 0;
+        for(int pgno = 1; pgno <= nPage; pgno++){
+            Page page = new Page();
+            page.setPgno(pgno);
+            page.setPageType(PageType.TABLE_LEAF);
+            if(pgno == 1){
+                page.putInt(Position.PAGE_SIZE_IN_FIRST_PAGE, SpaceAllocation.PAGE_SIZE);
+                page.putInt(Position.MAX_PGNO_IN_FIRST_PAGE, nPage);
+            }else{
+                List<Map.Entry<Integer, byte[]>> entries = new ArrayList<Map.Entry<Integer, byte[]>>();
+                int usable = page.getUsable();
+                while(true){
+                    byte[] record = schema.getBytes(rowid + 1, (rowid + 1) + ",name" + (rowid + 1) + ",20");
+                    if(record.length > usable)
+                        break;
+                    rowid++;
+                    entries.add(new SimpleEntry<Integer, byte[]>(rowid, record));
+                    usable -= record.length + 2;
+                }
+                page.fillData(entries);
+            }
+            io.write(pgno, page.getBuffer());
+        }
+        io.close();
+    }
+}
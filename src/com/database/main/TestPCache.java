@@ -0,0 +1,336 @@
+package com.database.main;
+
+import com.database.global.Database;
+import com.database.global.PagerConfig;
+import com.database.myBplusTree.BplusTree;
+import com.database.pager.PCache;
+import com.database.pager.Page;
+import com.database.pager.Pager;
+import com.database.pager.TwoQueuePolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PCache 与置换策略的测试，以及 B+ 树在缓存和快照上的读取
+ */
+public class TestPCache {
+    public static void main(String[] args){
+        testDirtyHandBack("lru");
+        testDirtyHandBack("2q");
+        testDirtyHandBack("lru-2");
+        testGhostHandBack();
+        testReleaseBudget();
+        testArenaRelease();
+        testDropPinned();
+        testTreeBudget();
+        testConcurrentGet(16, 0);
+        testConcurrentGet(BplusTree.FILL_ORDER, 0);
+        testConcurrentGet(16, 64);
+        testSnapshotHead(false);
+        testSnapshotHead(true);
+    }
+
+    /**
+     * 置换时遇到的脏页面交还给策略后，写回变干净仍然可以被回收
+     */
+    public static void testDirtyHandBack(String policy){
+        PagerConfig.CACHE_POLICY = policy;
+        PCache pCache = new PCache();
+        pCache.setCacheSize(100);
+        List<Page> dirty = new ArrayList<Page>();
+        for(int pgno = 1; pgno <= 100; pgno++){
+            Page page = pCache.fetch(pgno);
+            pCache.makeDirty(page);
+            pCache.unpin(page);
+            dirty.add(page);
+        }
+        for(int pgno = 101; pgno <= 200; pgno++)        //缓存已满且都是脏页面，recycle 逐个检查后交还
+            pCache.unpin(pCache.fetch(pgno));
+        for(Page page : dirty)
+            pCache.makeClean(page);
+        for(int pgno = 201; pgno <= 400; pgno++)        //两倍于缓存的新页面，写回后的页面都应被置换
+            pCache.unpin(pCache.fetch(pgno));
+        pCache.shrink();
+        int nLeft = 0;
+        for(int pgno = 1; pgno <= 100; pgno++){
+            if(pCache.lookup(pgno) != null)
+                nLeft++;
+        }
+        System.out.println(policy + " dirty hand back:" + (nLeft == 0 && pCache.getPageCount() <= pCache.getMaxPage())
+                + " (left=" + nLeft + ", cached=" + pCache.getPageCount() + ", max=" + pCache.getMaxPage() + ")");
+    }
+
+    /**
+     * 2Q 交还的页面不再留在 A1out 中，之后不经置换离开缓存再装入时不算再次访问
+     */
+    public static void testGhostHandBack(){
+        TwoQueuePolicy policy = new TwoQueuePolicy(8);
+        Page page = new Page();
+        page.setPgno(7);
+        policy.pin(page);
+        policy.unpin(page);
+        Page victim = policy.victim();
+        policy.unpin(victim);                   //脏页面，交还
+        policy.remove(victim);                  //之后页面被直接移出缓存（如 drop、free 时超出容量）
+
+        Page again = new Page();
+        again.setPgno(7);
+        policy.pin(again);
+        policy.unpin(again);
+        System.out.println("2q ghost hand back:" + (victim == page && policy.toString().contains("am=[]")));
+    }
+
+    /**
+     * requestRelease 之后缓存在降低的容量内运行，不会重新装满；requestRestore 之后恢复原来的容量
+     */
+    public static void testReleaseBudget(){
+        PagerConfig.CACHE_POLICY = "2q";
+        PCache pCache = new PCache();
+        pCache.setCacheSize(1000);
+        for(int pgno = 1; pgno <= 1000; pgno++)
+            pCache.unpin(pCache.fetch(pgno));
+        pCache.requestRelease((long)pCache.getPageCount() * PCache.getPageBytes() / 2);
+        for(int pgno = 1001; pgno <= 5000; pgno++)         //第一次 fetch 时释放，之后继续装入新页面
+            pCache.unpin(pCache.fetch(pgno));
+        int reduced = pCache.getMaxPage();
+        boolean ok = reduced <= 500 && pCache.getPageCount() <= reduced;
+        System.out.println("release budget:" + ok + " (max=" + reduced + ", cached=" + pCache.getPageCount() + ")");
+
+        pCache.requestRestore();
+        for(int pgno = 5001; pgno <= 7000; pgno++)
+            pCache.unpin(pCache.fetch(pgno));
+        System.out.println("restore budget:" + (pCache.getMaxPage() == 1000 && pCache.getPageCount() == 1000)
+                + " (max=" + pCache.getMaxPage() + ", cached=" + pCache.getPageCount() + ")");
+    }
+
+    /**
+     * 堆外模式下随机置换之后缩小缓存，直接内存随之归还，搬到其他大块的页面内容不变
+     */
+    public static void testArenaRelease(){
+        PCache pCache = new PCache();
+        if(!pCache.getArena().isOffHeap()){
+            System.out.println("arena release: skipped (db.cache.offheap=false)");
+            return;
+        }
+        pCache.setCacheBytes(32L << 20);
+        Random random = new Random(3);
+        for(int i = 0; i < 500000; i++){
+            int pgno = 1 + random.nextInt(2 * pCache.getMaxPage());
+            Page page = pCache.fetch(pgno);
+            page.getFrame().putInt(100, pgno);
+            pCache.unpin(page);
+        }
+        long before = pCache.getArena().getReserved();
+        pCache.setCacheBytes(4L << 20);
+        long after = pCache.getArena().getReserved();
+        boolean same = true;
+        for(int pgno = 1; pgno <= 2 * (32 << 20) / PCache.getPageBytes(); pgno++){
+            Page page = pCache.lookup(pgno);
+            if(page != null && page.getFrame().getInt(100) != pgno)
+                same = false;
+        }
+        System.out.println("arena release:" + (after <= (4L << 20) + PagerConfig.ARENA_CHUNK_SIZE && same)
+                + " (reserved " + (before >> 20) + "MB -> " + (after >> 20) + "MB)");
+    }
+
+    /**
+     * B+树随机查询时缓存的结点不持有页面，缓存的页面数不超过缓存的容量
+     */
+    public static void testTreeBudget(){
+        File file;
+        try{
+            file = File.createTempFile("testTreeBudget", ".db");
+        }catch (IOException e){
+            e.printStackTrace();
+            return;
+        }
+        file.deleteOnExit();
+        Database db = new Database();
+        db.setDBFile(file);
+        Pager pager = db.getPager();
+        pager.updateHeader(pager.aquireNewPage());
+        BplusTree tree = new BplusTree(BplusTree.FILL_ORDER, db, TestPager.getSchema());
+        int n = 200000;
+        for(int rowid = 1; rowid <= n; rowid++)
+            tree.insertOrUpdate(rowid, rowid + ",name" + rowid + ",20");
+
+        PCache pCache = pager.getPCache();
+        pCache.setCacheBytes(1L << 20);
+        Random random = new Random(7);
+        boolean found = true;
+        for(int i = 0; i < 300000; i++){
+            int rowid = 1 + random.nextInt(n);
+            if(tree.get(rowid) == null)
+                found = false;
+        }
+        System.out.println("tree budget:" + (found && pCache.getPageCount() <= pCache.getMaxPage())
+                + " (pages=" + pager.getMxPgno() + ", cached=" + pCache.getPageCount() + ", max=" + pCache.getMaxPage() + ")");
+    }
+
+    /**
+     * 被 pin 的页面被 drop 后，最后一次 free 或 unpin 时归还帧，所有帧归还后堆外大块被释放
+     */
+    public static void testDropPinned(){
+        PCache pCache = new PCache();
+        if(!pCache.getArena().isOffHeap()){
+            System.out.println("drop pinned: skipped (db.cache.offheap=false)");
+            return;
+        }
+        List<Page> pages = new ArrayList<Page>();
+        for(int pgno = 1; pgno <= 10; pgno++){
+            Page page = pCache.fetch(pgno);
+            pCache.makeDirty(page);
+            pages.add(page);
+        }
+        pCache.fetch(1);                        //第1页被 pin 两次
+        for(int pgno = 1; pgno <= 10; pgno++)
+            pCache.drop(pgno);
+        long dropped = pCache.getArena().getReserved();
+        pCache.free(pages.get(0));
+        boolean held = pCache.getArena().getReserved() == dropped;     //第1页还有一次 pin
+        for(int i = 0; i < pages.size(); i++){
+            if(i % 2 == 0)
+                pCache.free(pages.get(i));
+            else
+                pCache.unpin(pages.get(i));
+        }
+        long after = pCache.getArena().getReserved();
+        System.out.println("drop pinned:" + (held && dropped > 0 && after == 0 && pCache.getPageCount() == 0)
+                + " (reserved " + (dropped >> 10) + "KB -> " + (after >> 10) + "KB)");
+    }
+
+    /**
+     * 4 个线程在同一棵树上并发查找，结果都正确，不抛出异常，查找结束后经过的页面都已释放
+     * @param nPage 查找前的缓存页面数，为0时不限制，比树小时查找中页面会被置换后重新装入、结点重新解码
+     */
+    public static void testConcurrentGet(int order, int nPage){
+        File file;
+        try{
+            file = File.createTempFile("testConcurrentGet", ".db");
+        }catch (IOException e){
+            e.printStackTrace();
+            return;
+        }
+        file.deleteOnExit();
+        Database db = new Database();
+        db.setDBFile(file);
+        final Pager pager = db.getPager();
+        pager.updateHeader(pager.aquireNewPage());
+        final BplusTree tree = new BplusTree(order, db, TestPager.getSchema());
+        final int n = 5000;
+        for(int rowid = 1; rowid <= n; rowid++)
+            tree.insertOrUpdate(rowid, rowid + ",name" + rowid + ",20");
+        if(nPage > 0)
+            pager.getPCache().setCacheSize(nPage);
+        int nPinned = countPinned(pager);
+
+        final AtomicInteger nError = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++){
+            final long seed = t;
+            threads[t] = new Thread(){
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for(int i = 0; i < 20000; i++){
+                        int rowid = 1 + random.nextInt(2 * n);
+                        try{
+                            String value = tree.get(rowid);
+                            if((value != null) != (rowid <= n) || value != null && !value.startsWith(rowid + ","))
+                                nError.incrementAndGet();
+                        }catch (RuntimeException e){
+                            nError.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+        for(Thread thread : threads)
+            thread.start();
+        for(Thread thread : threads){
+            try{
+                thread.join();
+            }catch (InterruptedException e){
+                e.printStackTrace();
+            }
+        }
+        int nLeft = countPinned(pager);
+        System.out.println("concurrent get order " + order + (nPage > 0 ? " cache " + nPage : "") + ":"
+                + (nError.get() == 0 && nLeft == nPinned)
+                + " (errors=" + nError.get() + ", pinned " + nPinned + " -> " + nLeft + ")");
+        pager.close();
+    }
+
+    /**
+     * 读者开始快照读之后，另一个线程分裂根结点（split）或删除第一个叶子的全部记录并提交，
+     * 读者的 SelectAll 仍从快照中的第一个叶子开始，读到的是快照中的全部记录；结束快照读后读到新的记录
+     */
+    public static void testSnapshotHead(final boolean removeHead){
+        File file;
+        try{
+            file = File.createTempFile("testSnapshotHead", ".db");
+        }catch (IOException e){
+            e.printStackTrace();
+            return;
+        }
+        file.deleteOnExit();
+        new File(file.getAbsolutePath() + "-wal").deleteOnExit();
+        Database db = new Database();
+        db.setDBFile(file);
+        Pager pager = db.getPager();
+        pager.updateHeader(pager.aquireNewPage());
+        final BplusTree tree = new BplusTree(BplusTree.FILL_ORDER, db, TestPager.getSchema());
+        final int n = removeHead ? 1000 : 10;
+        for(int rowid = 1; rowid <= n; rowid++)
+            tree.insertOrUpdate(rowid, rowid + ",name" + rowid + ",20");
+        final int[] changed = new int[1];       //写者删除或插入的行数
+
+        pager.beginRead();
+        Thread writer = new Thread(){
+            @Override
+            public void run() {
+                if(removeHead){
+                    //删除到第一个叶子被移除、头指针改变为止
+                    int head = tree.getRoot().page.getHead();
+                    for(int rowid = 1; tree.getRoot().page.getHead() == head; rowid++){
+                        tree.remove(rowid);
+                        changed[0]--;
+                    }
+                }else{
+                    for(int rowid = n + 1; rowid <= n + 1000; rowid++){
+                        tree.insertOrUpdate(rowid, rowid + ",name" + rowid + ",20");
+                        changed[0]++;
+                    }
+                }
+            }
+        };
+        writer.start();
+        try{
+            writer.join();
+        }catch (InterruptedException e){
+            e.printStackTrace();
+        }
+        List<String> snapshot = tree.SelectAll();
+        pager.endRead();
+        List<String> after = tree.SelectAll();
+        boolean ok = snapshot.size() == n && snapshot.get(0).startsWith("1,") && after.size() == n + changed[0];
+        System.out.println("snapshot head " + (removeHead ? "remove" : "split") + ":" + ok
+                + " (snapshot rows=" + snapshot.size() + "/" + n + ", after=" + after.size() + "/" + (n + changed[0]) + ")");
+        pager.close();
+    }
+
+    private static int countPinned(Pager pager){
+        int n = 0;
+        for(int pgno = 1; pgno <= pager.getMxPgno(); pgno++){
+            Page page = pager.getPCache().lookup(pgno);
+            if(page != null && page.getnRef() > 0)
+                n++;
+        }
+        return n;
+    }
+}
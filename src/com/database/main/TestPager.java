@@ -74,7 +74,7 @@ public class TestPager {
         map.put(++rowid,schema.getBytes(rowid, "6,whw,22"));
         entryList.add(map.entrySet().iterator().next());
 
-        pager.writeData(2,entryList);
+        pager.writeData(pager.aquirePage(2),entryList);
         pager.flush();
 
     }
@@ -124,7 +124,7 @@ public class TestPager {
         map.put(++rowid,schema.getBytes(rowid, "6,whw,22"));
         entryList.add(map.entrySet().iterator().next());
 
-        pager.writeData(2,entryList);
+        pager.writeData(pager.aquirePage(2),entryList);
 
         List<Map.Entry<Integer, String>> list = pager.readRecord(1);
         System.out.println(list.toString());
@@ -161,7 +161,7 @@ public class TestPager {
 //        map.put(++rowid,schema.getBytes(rowid, "6,whw,22"));
 //        entryList.add(map.entrySet().iterator().next());
 //
-//        pager.writeData(2,entryList);
+//        pager.writeData(pager.aquirePage(2),entryList);
 //        pager.flush();
         Page page = pager.aquirePage(2);
         page.setOrder((byte)3);
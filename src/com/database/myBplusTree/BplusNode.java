@@ -12,775 +12,485 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.AbstractMap.SimpleEntry;
 
+/**
+ * B+树结点
+ * 关键字保存在 int 数组中，查找在基本类型上二分，不装箱也不解析记录。
+ * 内部结点的 childPgnos[i] 是第 i 个子结点的页号，第 i 个子树中的关键字不小于 keys[i]、小于 keys[i+1]，
+ * 比 keys[1] 小的关键字都在第一个子树中，keys[0] 不参与查找；页面中按同样的顺序保存定长的（关键字，子结点页号）。
+ * 叶子结点的 keys[i] 是第 i 条记录的 rowid，offsets[i] 是它的 cell 在页面中的偏移，
+ * 页面每次修改后从 cell 指针数组重新读取，只有找到的记录才会解析。
+ * 子结点在查找经过时才读取页面并构造，之后附加在 PCache 中的页面上，随页面置换，一次查找只读取路径上的页面。
+ * 查找把 pin 住的页面作为参数沿路径传下去，可以在多个线程中并发；缓存的结点只在写操作中持有页面（page 不为 null），
+ * 写操作结束后释放，页面可以被置换。
+ * 结点记录解码时页面的修改序号，再次经过时页面被其他途径修改过（如 vacuum 修改子结点页号）或重新装入则重新解码。
+ */
 public class BplusNode {
 
+    private static final TableSchema INTERNAL_SCHEMA = TableSchema.getTreeInternalSchema();
+
     Pager pager ;
-    public Page page;
+    public Page page;                 //根结点一直持有的页面；缓存的结点只在写操作中持有，其余时候为 null
     public TableSchema schema;
 
-    private BplusNode parent;         //父节点
-    private BplusNode previous;       //叶子节点的前一个节点
-    private BplusNode next;           //叶子节点的下一个节点
-    private List<BplusNode> children; //孩子节点
+    BplusNode parent;                 //父节点，写操作每次从父结点经过时设置，操作结束时清空
 
-    /*记录信息：rowid->data。若为内部节点，data为孩子节点的页号，若为叶子节点，data为一条记录*/
-    public List<Entry<Integer, String>> entries;
+    private volatile long modCount;   //解码时页面的修改序号，解码完成后才写入
+    private boolean leaf;             //解码时页面是否是叶子
+    private int nKey;                 //关键字个数
+    private int[] keys;               //关键字，升序
+    private int[] childPgnos;         //内部结点：子结点的页号
+    private int[] offsets;            //叶子结点：记录的 cell 在页面中的偏移
 
     /**
      * 构造函数
      */
     public BplusNode(Pager pager, byte type, TableSchema schema) {
-        /* 构造一个新的节点，向pager请求分配一个新的页面，并设置页面类型 */
-        this.pager = pager;
+        /* 构造一个新的节点，向pager请求分配一个新的页面，并设置页面类型，页面已被 pin */
+        this(pager, schema, 0);
         this.page = pager.aquireNewPage();
         this.page.setPageType(type);
-        this.schema = schema;
-        this.children = new ArrayList<>();
-
-        entries = new ArrayList<Entry<Integer, String>>();
+        this.leaf = type == PageType.TABLE_LEAF;
     }
 
     public BplusNode(Pager pager, Page page, TableSchema schema) {
-        /* 从page中读取内容，构造一个节点 */
-        this.pager = pager;
+        /* 从page中读取内容，构造一个节点，结点持有页面 */
+        this(pager, schema, page.getnCell());
         this.page = page;
+        load(page);
+    }
+
+    private BplusNode(Pager pager, TableSchema schema, int n) {
+        this.pager = pager;
         this.schema = schema;
-        this.entries = pager.readRecord(page.getPgno());
-        if(this.entries != null ){
-            Collections.reverse(this.entries);
-        }else{
-            this.entries = new ArrayList<>();
-        }
-        this.children = new ArrayList<>();
+        this.keys = new int[Math.max(8, n)];
+        this.childPgnos = new int[this.keys.length];
+        this.offsets = new int[this.keys.length];
     }
 
     /**
-     * 根据关键字，查找数据（采用二分查找）
+     * 从 page 解码一个放入结点缓存的结点，结点不持有页面；叶子使用表结构 tableSchema
+     */
+    static BplusNode decode(Pager pager, Page page, TableSchema tableSchema) {
+        BplusNode node = new BplusNode(pager,
+                page.getPageType() == PageType.TABLE_LEAF ? tableSchema : INTERNAL_SCHEMA, page.getnCell());
+        node.load(page);
+        return node;
+    }
+
+    public boolean isLeaf() {
+        return leaf;
+    }
+
+    public int getKeyCount() {
+        return nKey;
+    }
+
+    public int getKey(int i) {
+        return keys[i];
+    }
+
+    public int getChildPgno(int i) {
+        return childPgnos[i];
+    }
+
+    /**
+     * 从页面读取关键字：叶子结点直接读 cell 指针数组，内部结点直接读定长的（关键字，子结点页号）
      */
-    public String get(Integer key, BplusTree tree) {
-        //如果是叶子节点
-        if (page.getPageType() == PageType.TABLE_LEAF) {
-            int low = 0, high = entries.size() - 1, mid;
-            int comp ;
-            while (low <= high) {
-                mid = (low + high) / 2;
-                comp = entries.get(mid).getKey().compareTo(key);
-                if (comp == 0) {
-                    return entries.get(mid).getValue();
-                } else if (comp < 0) {
-                    low = mid + 1;
-                } else {
-                    high = mid - 1;
-                }
+    private void load(Page page) {
+        long stamp = page.getModCount();
+        int n = page.getnCell();
+        ensureCapacity(n);
+        nKey = n;
+        leaf = page.getPageType() == PageType.TABLE_LEAF;
+        if (leaf) {
+            for (int i = 0; i < n; i++) {
+                offsets[i] = page.getCellOffset(i);
+                keys[i] = page.getCellRowid(i);
             }
-            //未找到所要查询的对象
-            return null;
-        }
-        /**
-         * 如果不是叶子节点
-         * 1、清空子节点；并从页面中加载子节点
-         * 2、如果key小于节点最左边的key，沿第一个子节点继续搜索
-         * 3、如果key大于等于节点最右边的key，沿最后一个子节点继续搜索
-         * 4、否则沿比key大的前一个子节点继续搜索
-         */
-        if(children.size() == 0)
-            loadChildren(this,tree);
-        int zzz = key.compareTo(entries.get(0).getKey());
-
-        if (key.compareTo(entries.get(1).getKey()) < 0) {
-            return children.get(0).get(key,tree);
-        }else if (key.compareTo(entries.get(entries.size()-1).getKey()) >= 0) {
-            return children.get(children.size()-1).get(key,tree);
-        }else {
-            int low = 0, high = entries.size() - 1, mid= 0;
-            int comp ;
-            while (low <= high) {
-                mid = (low + high) / 2;
-                comp = entries.get(mid).getKey().compareTo(key);
-                if (comp == 0) {
-                    return children.get(mid+1).get(key,tree);
-                } else if (comp < 0) {
-                    low = mid + 1;
-                } else {
-                    high = mid - 1;
-                }
+        } else {
+            for (int i = 0; i < n; i++) {
+                keys[i] = page.getChildKey(i);
+                childPgnos[i] = page.getChildPgno(i);
             }
-            return children.get(low).get(key,tree);
         }
+        modCount = stamp;
     }
 
-    /* 加载子节点 */
-    public void loadChildren(BplusNode node, BplusTree tree){
-        node.children.clear();
-        for(int i=0;i<node.entries.size();i++){
-            Integer pgno = Integer.parseInt(node.entries.get(i).getValue());
-            Page page = pager.aquirePage(pgno);
-            TableSchema tempSchema;
-            if(page.getPageType()==3){
-                tempSchema = tree.head.schema;
-            }else{
-                tempSchema = tree.root.schema;
-            }
-            BplusNode temp = new BplusNode(pager, page, tempSchema);
-            temp.parent = node;
-
-            node.children.add(temp);
+    /**
+     * 结点的页面 page 在解码之后被修改过或重新装入时重新解码
+     * 并发的查找可能同时发现结点过期，只由一个线程解码，其他线程等解码完成后再读取关键字
+     */
+    void refresh(Page page) {
+        if (modCount == page.getModCount())
+            return;
+        synchronized (this) {
+            if (modCount != page.getModCount())
+                load(page);
         }
     }
 
-    public void insertOrUpdate(Integer key, String value, BplusTree tree){
-        /* 如果是叶子节点 */
-        if (page.getPageType() == PageType.TABLE_LEAF){
-            /**
-             * 不需要分裂的情况：
-             * 1、节点中包含该关键字，则直接修改数据域
-             * 2、节点中不包含该关键字，而该节点未满，则插入数据
-             */
-            if (contains(key) != -1 || entries.size() < tree.getOrder()){
-                insertOrUpdate(key, value);
-                if(tree.getHeight() == 0){
-                    tree.setHeight(1);
-                }
-                return ;
-            }
-            /**
-             * 需要分裂的情况：节点不包含该关键字，且该节点已满，则分裂节点
-             */
-            /**
-             * 设置链接
-             * 1、创建两个新的节点：left、right；
-             * 2、若前一个节点不为空：
-             *      1)把前一个节点的next指针指向left
-             *      2)把left的previous指针指向前一个节点
-             * 3、若后一个节点不为空：
-             *      1)把后一个节点的previous指针指向right
-             *      2)把right的next指针指向后一个节点
-             * 4、left的next指针指向right，right的previous指针指向left
-             * 5、把当前节点的previous、next指针赋值为NULL
-             */
-            BplusNode left = new BplusNode(pager, PageType.TABLE_LEAF, schema);
-            BplusNode right = new BplusNode(pager, PageType.TABLE_LEAF, schema);
-
-            if (page.getpPrev() != 0){
-                if(previous == null)
-                    previous = new BplusNode(pager,pager.aquirePage(page.getpPrev()), schema);
-
-                previous.next = left;
-                previous.page.setpNext(left.page.getPgno());
-
-                left.previous = previous ;
-                left.page.setpPrev(previous.page.getPgno());
-
-                flushPage(previous.entries, previous);
-            }else{
-                tree.setHead(left);
-                tree.root.page.setHead(left.page.getPgno());
-            }
-            if (page.getpNext() != 0) {
-                if(next == null)
-                    next = new BplusNode(pager, pager.aquirePage(page.getpNext()),schema);
+    private void ensureCapacity(int n) {
+        if (n <= keys.length)
+            return;
+        int capacity = Math.max(n, keys.length * 2);
+        keys = Arrays.copyOf(keys, capacity);
+        childPgnos = Arrays.copyOf(childPgnos, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+    }
+
+    /**
+     * 在关键字数组中二分查找
+     * @return 找到时为下标，否则为 -(插入位置) - 1
+     */
+    private int search(int key) {
+        return Arrays.binarySearch(keys, 0, nKey, key);
+    }
 
-                next.previous = right;
-                next.page.setpPrev(right.page.getPgno());
+    /**
+     * 内部结点中 key 所在的子结点：在 keys[1] 之后二分查找最后一个不大于 key 的关键字，都比 key 大时为第一个子结点
+     */
+    private int childIndex(int key) {
+        int i = Arrays.binarySearch(keys, 1, nKey, key);
+        return i >= 0 ? i : -i - 2;
+    }
 
-                right.next = next;
-                right.page.setpNext(next.page.getPgno());
+    /**
+     * 写操作经过第 i 个子结点：只读取这一个子结点的页面，结点在本次操作中持有 pin 住的页面，
+     * 加入 pinned，操作结束时由 tree 释放
+     */
+    private BplusNode child(int i, BplusTree tree, List<BplusNode> pinned) {
+        Page page = pager.aquirePage(childPgnos[i]);
+        BplusNode child = tree.node(page);
+        if (child.page == null) {
+            child.page = page;
+            pinned.add(child);
+        } else {
+            pager.freePage(page);
+        }
+        child.parent = this;
+        return child;
+    }
 
-                flushPage(next.entries, next);
-            }
-            left.next = right;
-            left.page.setpNext(right.page.getPgno());
-
-            right.previous = left;
-            right.page.setpPrev(left.page.getPgno());
-
-            previous = null;
-            page.setpPrev(0);
-
-            next = null;
-            page.setpNext(0);
-
-            /**
-             * 将当前节点的entry分给left和right节点
-             */
-            copy2Nodes(key, value, left, right, tree);
-
-            /**
-             * 调整当前节点的父子关系指针
-             * 若当前节点不是根节点
-             *      1)将父节点指向当前节点的children指针移除
-             *      2)left的parent指针指向父节点
-             *      3)right的parent指针指向父节点
-             *      4)父节点的children指针添加left和right
-             *      5)父节点的entries添加right的第0条记录。（left的第0条记录，父节点中已有）
-             *      6)删除当前节点的entries记录和children指针
-             *      7)更新父节点的关键字
-             *      8)删除当前节点的parent指针
-             * 若当前节点是根节点
-             *      1)新建一个parent节点作为根节点
-             *      2)树的根节点设置为parent节点
-             *      3)left和right节点的parent指针指向parent节点
-             *      4)parent节点的子节点指针添加left和right节点
-             *      5)parent节点的entries记录赋值为当前节点的entries
-             *      6)清空当前节点的指针和记录
-             */
-            if (page.getpParent() != 0) {
-                //调整父子节点关系
-                if(parent == null){
-                    parent = new BplusNode(pager,pager.aquirePage(page.getpParent()),schema);
-                    loadChildren(parent,tree);
-                }
-                int index = parent.children.indexOf(this);
-                parent.children.remove(this);
-
-                left.parent = parent;
-                left.page.setpParent(page.getpParent());
-
-                right.parent = parent;
-                right.page.setpParent(page.getpParent());
-
-                parent.children.add(index,left);
-                parent.children.add(index + 1, right);
-
-                parent.entries.set(index,new SimpleEntry<Integer, String>(
-                        left.entries.get(0).getKey(),String.valueOf(left.page.getPgno())));
-                parent.entries.add(index+1,new SimpleEntry<Integer, String>(
-                        right.entries.get(0).getKey(),String.valueOf(right.page.getPgno())));
-
-                //父节点插入或更新关键字
-                parent.updateInsert(tree);
-
-                flushPage(left.entries,left);
-                flushPage(right.entries,right);
-
-                page.setPageType((byte)0);
-                pager.freePage(page.getPgno());
-
-            }else {
-                page.setPageType(PageType.TABLE_ROOT);
-                this.schema = TableSchema.getTreeInternalSchema();
-
-                left.parent = this;
-                left.page.setpParent(page.getPgno());
-                right.parent = this;
-                right.page.setpParent(page.getPgno());
-
-                children.clear();
-                this.children.add(left);
-                this.children.add(right);
-
-                entries.clear();
-                entries.add(new SimpleEntry<Integer, String>(
-                        left.entries.get(0).getKey(),String.valueOf(left.page.getPgno())));
-                entries.add(new SimpleEntry<Integer, String>(
-                        right.entries.get(0).getKey(),String.valueOf(right.page.getPgno())));
-
-                flushPage(entries,this);
-                flushPage(left.entries,left);
-                flushPage(right.entries,right);
-            }
-            return ;
+    /**
+     * 根据关键字，查找数据（采用二分查找）
+     * page 是本结点在这次查找中 pin 住的页面，经过的子结点页面加入 pins，查找结束后由 tree 释放；
+     * 查找可以在多个线程中并发，不使用也不修改结点的 page 和 parent
+     */
+    public String get(int key, Page page, BplusTree tree, List<Page> pins) {
+        //如果是叶子节点，在关键字数组中二分查找，只解析找到的这一条记录
+        if (isLeaf()) {
+            int i = search(key);
+            return i < 0 ? null : pager.readRow(page, offsets[i]);
+        }
+        if (nKey == 0)
+            return null;
+        int pgno = childPgnos[childIndex(key)];
+        Page child = pager.aquirePage(pgno);
+        pins.add(child);
+        return tree.node(child).get(key, child, tree, pins);
+    }
+
+    public void insertOrUpdate(int key, String value, BplusTree tree, List<BplusNode> pinned){
+        /* 如果不是叶子节点，沿 key 所在的子结点继续插入 */
+        if (!isLeaf()) {
+            child(childIndex(key), tree, pinned).insertOrUpdate(key, value, tree, pinned);
+            return;
         }
+        if (tree.getHeight() == 0)
+            tree.setHeight(1);
         /**
-         * 如果不是叶子节点
-         * 1、加载孩子节点
-         * 2、如果key小于等于节点最左边的key，沿第一个子节点继续搜索
-         * 3、如果key大于节点最右边的key，沿最后一个子节点继续搜索
-         * 4、否则沿比key大的前一个子节点继续搜索
+         * 不需要分裂的情况：
+         * 1、节点中包含该关键字，则直接修改数据域
+         * 2、节点中不包含该关键字，而该节点未满，则插入数据
+         * 页面空间不足时同样分裂
          */
-        if(children.size() == 0)
-            loadChildren(this,tree);
-        if (key.compareTo(entries.get(0).getKey()) < 0) {
-            children.get(0).insertOrUpdate(key, value, tree);
-        }else if (key.compareTo(entries.get(entries.size()-1).getKey()) >= 0) {
-            children.get(children.size()-1).insertOrUpdate(key, value, tree);
-        }else {
-            int low = 0, high = entries.size() - 1, mid= 0;
-            int comp ;
-            while (low <= high) {
-                mid = (low + high) / 2;
-                comp = entries.get(mid).getKey().compareTo(key);
-                if (comp == 0) {
-                    children.get(mid+1).insertOrUpdate(key, value, tree);
-                    break;
-                } else if (comp < 0) {
-                    low = mid + 1;
-                } else {
-                    high = mid - 1;
-                }
-            }
-            if(low>high){
-                children.get(low).insertOrUpdate(key, value, tree);
+        byte[] record = schema.getBytes(key, value);
+        if (search(key) >= 0 || nKey < tree.getMaxKeys()) {
+            if (pager.appendData(page, new SimpleEntry<Integer, byte[]>(key, record))) {
+                load(page);
+                return;
             }
         }
+        splitLeaf(key, record, tree, pinned);
     }
 
-    /** 将当前节点的entry记录分给left和right节点 */
-    private void copy2Nodes(Integer key, String value, BplusNode left, BplusNode right,BplusTree tree) {
-        //左右两个节点关键字长度
-        int leftSize = (tree.getOrder() + 1) / 2 + (tree.getOrder() + 1) % 2;
-        boolean b = false;//用于记录新元素是否已经被插入
-        for (int i = 0; i < entries.size(); i++) {
-            if(leftSize !=0){
-                leftSize --;
-                if(!b&&entries.get(i).getKey().compareTo(key) > 0){
-                    left.entries.add(new SimpleEntry<Integer, String>(key, value));
-                    b = true;
-                    i--;
-                }else {
-                    left.entries.add(entries.get(i));
-                }
-            }else {
-                if(!b&&entries.get(i).getKey().compareTo(key) > 0){
-                    right.entries.add(new SimpleEntry<Integer, String>(key, value));
-                    b = true;
-                    i--;
-                }else {
-                    right.entries.add(entries.get(i));
-                }
+    /**
+     * 分裂叶子结点：原有记录与新记录按关键字合并后分成两半，记录的字节直接搬移，不经过字符串
+     * 非根结点保留前一半，后一半放入新的右兄弟，父结点增加一个子结点；
+     * 根结点的页号不能改变，两半分别放入新的 left、right，根结点变为内部结点
+     */
+    private void splitLeaf(int key, byte[] record, BplusTree tree, List<BplusNode> pinned) {
+        //rowid 递增插入时新记录总在最右边叶子的末尾：原叶子保持装满，新记录放入新的右兄弟
+        boolean append = nKey > 0 && key > keys[nKey - 1] && page.getpNext() == 0;
+        if (append && parent != null) {
+            appendLeaf(key, record, tree, pinned);
+            return;
+        }
+        List<Entry<Integer, byte[]>> records = new ArrayList<Entry<Integer, byte[]>>(nKey + 1);
+        boolean inserted = false;
+        for (int i = 0; i < nKey; i++) {
+            if (!inserted && key <= keys[i]) {
+                records.add(new SimpleEntry<Integer, byte[]>(key, record));
+                inserted = true;
+                if (key == keys[i])
+                    continue;
             }
+            records.add(new SimpleEntry<Integer, byte[]>(keys[i], pager.readRecordBytes(page, i)));
         }
-        if(!b){
-            right.entries.add(new SimpleEntry<Integer, String>(key, value));
+        if (!inserted)
+            records.add(new SimpleEntry<Integer, byte[]>(key, record));
+        //按 cell 的字节数分成两半，记录长短不一时两半也都能放入一个页面
+        int total = 0;
+        for (Entry<Integer, byte[]> entry : records)
+            total += page.cellSize(entry.getValue()) + 2;
+        int leftSize = 0;
+        for (int used = 0; leftSize < records.size() - 1 && used < total / 2; leftSize++)
+            used += page.cellSize(records.get(leftSize).getValue()) + 2;
+        leftSize = append ? records.size() - 1 : Math.max(1, leftSize);
+
+        BplusNode right = new BplusNode(pager, PageType.TABLE_LEAF, schema);
+        if (parent != null) {
+            /* 叶子链：right 插在当前结点之后 */
+            right.page.setpPrev(page.getPgno());
+            right.page.setpNext(page.getpNext());
+            if (page.getpNext() != 0)
+                setPrev(page.getpNext(), right.page.getPgno());
+            page.setpNext(right.page.getPgno());
+            right.page.setpParent(parent.page.getPgno());
+            right.parent = parent;
+            tree.addNode(right, pinned);
+
+            right.writeRecords(records.subList(leftSize, records.size()));
+            writeRecords(records.subList(0, leftSize));
+            parent.insertChild(parent.indexOf(page.getPgno()) + 1, right, tree, pinned);
+            return;
         }
 
-//        flushPage(left.entries,left);       /* 刷新左节点页面数据域 */
-//        flushPage(right.entries,right);     /* 刷新右节点页面数据域 */
+        BplusNode left = new BplusNode(pager, PageType.TABLE_LEAF, schema);
+        left.page.setpNext(right.page.getPgno());
+        right.page.setpPrev(left.page.getPgno());
+        left.page.setpParent(page.getPgno());
+        right.page.setpParent(page.getPgno());
+        left.parent = this;
+        right.parent = this;
+        tree.addNode(left, pinned);
+        tree.addNode(right, pinned);
+        left.writeRecords(records.subList(0, leftSize));
+        right.writeRecords(records.subList(leftSize, records.size()));
+
+        //根页的记录已经搬到 left、right，先清空页面并释放原来的溢出页，再改为内部结点
+        pager.writeData(page, null);
+        tree.setHead(left);
+        page.setHead(left.page.getPgno());
+        page.setPageType(PageType.TABLE_ROOT);
+        schema = INTERNAL_SCHEMA;
+        tree.setHeight(tree.getHeight() + 1);
+        becomeParentOf(left, right);
     }
 
-    /** 插入节点后中间节点的更新 */
-    protected void updateInsert(BplusTree tree){
+    /**
+     * 在最右边的叶子之后追加一个只有新记录的叶子，当前叶子只修改页面头部的后一个页号
+     */
+    private void appendLeaf(int key, byte[] record, BplusTree tree, List<BplusNode> pinned) {
+        BplusNode right = new BplusNode(pager, PageType.TABLE_LEAF, schema);
+        right.page.setpPrev(page.getPgno());
+        page.setpNext(right.page.getPgno());
+        pager.updateHeader(page);
+        right.page.setpParent(parent.page.getPgno());
+        right.parent = parent;
+        tree.addNode(right, pinned);
+        List<Entry<Integer, byte[]>> records = new ArrayList<Entry<Integer, byte[]>>(1);
+        records.add(new SimpleEntry<Integer, byte[]>(key, record));
+        right.writeRecords(records);
+        parent.insertChild(parent.indexOf(page.getPgno()) + 1, right, tree, pinned);
+    }
 
-        /**
-         * 如果子节点数超出阶数，则需要分裂该节点
-         *      1)分裂成左右两个节点：left、right
-         *      2)计算left和right节点的子节点的长度
-         *      3)将当前节点的子节点赋值给left和right，并把子节点的parent指针指向left和right
-         *      4)把当前节点的entries记录赋值给left和right的entries记录
-         *如果不是根节点
-         *      1)将当前节点从父节点的children指针中移除
-         *      2)left和right节点的parent指针指向父节点
-         *      3)父节点的children指针添加left和right节点
-         *      4)父节点的entries记录添加right节点的第0条entries记录
-         *      6)更新父节点的记录和指针
-         *      7)清空当前节点的指针和记录
-         *如果是根节点
-         *      1)新建一个parent节点作为根节点
-         *      2)设置树的根节点为parent节点，并将树高+1
-         *      3)left和right节点的parent指针指向parent节点
-         *      4)parent节点的子节点指针添加left和right节点
-         *      5)parent节点的entries记录赋值为当前节点的entries
-         *      6)清空当前节点的指针和记录
-         */
-        if (entries.size() > tree.getOrder()) {
-            //分裂成左右两个节点
-            BplusNode left = new BplusNode(pager,PageType.TABLE_INTERNAL,schema);
-            BplusNode right = new BplusNode(pager,PageType.TABLE_INTERNAL,schema);
-
-            /* 计算left和right节点子节点的长度 */
-            int leftSize = (tree.getOrder() + 1) / 2 + (tree.getOrder() + 1) % 2;
-            int rightSize = (tree.getOrder() + 1) / 2;
-
-            /* 复制记录信息和孩子指针给left和right节点 */
-            for (int i = 0; i < leftSize; i++) {
-                left.entries.add(entries.get(i));
-                left.children.add(children.get(i));
-            }
-            for (int i = 0; i < rightSize; i++) {
-                right.entries.add(entries.get(leftSize+i));
-                right.children.add(children.get(leftSize+i));
-            }
+    /**
+     * 是否是所在层最右边的结点：从根结点开始每一层都经过最后一个子结点
+     */
+    private boolean isRightEdge() {
+        return parent == null || parent.childPgnos[parent.nKey - 1] == page.getPgno() && parent.isRightEdge();
+    }
 
-            //如果不是根节点
-            if (page.getpParent() != 0) {
-                //调整父子节点关系
-                Page p = pager.aquirePage(page.getpParent());
-                BplusNode parent = new BplusNode(pager, p,schema);
-                left.page.setpParent(page.getpParent());
-                right.page.setpParent(page.getpParent());
-                parent.entries.add(entries.get(leftSize - 1));
-                entries = null;
-
-                //父节点更新关键字
-                parent.updateInsert(tree);
-                parent = null;
-
-            }else {
-                /* 如果是根节点 */
-                tree.setHeight(tree.getHeight() + 1);
-                page.setPageType(PageType.TABLE_ROOT);
-
-                /* 调整left和right节点的parent指针 */
-                left.parent = this;
-                left.page.setpParent(page.getPgno());
-                right.parent = this;
-                right.page.setpParent(page.getPgno());
-
-                /* 将left和right节点添加至父节点的孩子指针 */
-                this.children.clear();
-                this.children.add(left);
-                this.children.add(right);
-
-                this.entries.clear();
-                this.entries.add(new SimpleEntry<Integer, String>(
-                        left.entries.get(0).getKey(),String.valueOf(left.page.getPgno())));
-                this.entries.add(new SimpleEntry<Integer, String>(
-                        right.entries.get(0).getKey(),String.valueOf(right.page.getPgno())));
-
-                /* 更新数据域 */
-                flushPage(this.entries,this);
-                flushPage(left.entries,left);
-                flushPage(right.entries,right);
-            }
-        }
+    /**
+     * 根结点分裂后只剩 left、right 两个子结点
+     */
+    private void becomeParentOf(BplusNode left, BplusNode right) {
+        nKey = 2;
+        keys[0] = left.keys[0];
+        childPgnos[0] = left.page.getPgno();
+        keys[1] = right.keys[0];
+        childPgnos[1] = right.page.getPgno();
+        writeChildren();
     }
 
-    /** 删除节点后中间节点的更新*/
-    protected void updateRemove(BplusTree tree) {
-
-        // 如果子节点数小于M / 2或者小于2，则需要合并节点
-        if (entries.size() < tree.getOrder() / 2 || entries.size() < 2) {
-            if (page.getPageType() == PageType.TABLE_ROOT) {
-                // 如果是根节点并且子节点数大于等于2，OK
-                if (entries.size() >= 2) return;
-                // 否则与子节点合并
-                Page p = pager.aquirePage(Integer.parseInt(entries.get(0).getValue()));
-                BplusNode root = new BplusNode(pager, p,schema);
-                tree.setRoot(root);
-                tree.setHeight(tree.getHeight() - 1);
-                root.page.setpParent(0);
-                root.page.setPageType(PageType.TABLE_ROOT);
-                entries = null;
-                return ;
-            }
+    /**
+     * 在第 index 个位置插入子结点，子结点数超出阶数或页面放不下时分裂
+     */
+    private void insertChild(int index, BplusNode child, BplusTree tree, List<BplusNode> pinned) {
+        ensureCapacity(nKey + 1);
+        System.arraycopy(keys, index, keys, index + 1, nKey - index);
+        System.arraycopy(childPgnos, index, childPgnos, index + 1, nKey - index);
+        keys[index] = child.keys[0];
+        childPgnos[index] = child.page.getPgno();
+        nKey++;
+        if (nKey <= tree.getMaxKeys() && writeChildren())
+            return;
+        splitInternal(index == nKey - 1 && isRightEdge(), tree, pinned);
+    }
 
-            // 如果前节点子节点数大于M / 2并且大于2，则从其处借补
-            BplusNode previous = new BplusNode(pager, pager.aquirePage(page.getpPrev()),schema);
-            if (page.getpPrev() != 0
-                    && previous.entries.size() > tree.getOrder() / 2
-                    && previous.entries.size() > 2) {
-                //前叶子节点末尾节点添加到首位
-                int idx = previous.entries.size() - 1;
-                Integer pgno = Integer.parseInt(previous.entries.get(idx).getValue());
-                BplusNode borrow = new BplusNode(pager, pager.aquirePage(pgno),schema);
-                borrow.page.setpParent(page.getPgno());
-
-                BplusNode parent = new BplusNode(pager, pager.aquirePage(page.getpParent()),schema);
-                int preIndex = parent.entries.indexOf(previous);
-
-                entries.add(0,parent.entries.get(preIndex));
-                parent.entries.set(preIndex, previous.entries.remove(idx - 1));
-                return ;
-            }
+    /**
+     * 分裂内部结点，与叶子结点相同：非根结点保留前一半，根结点的两半分别放入新的页面
+     * 搬走的子结点的父页号随之修改
+     * @param append 新的子结点追加在最右边结点的末尾，这时只有它放入新的右兄弟，
+     *               非根结点的页面中仍是追加之前的子结点，不需要重写
+     */
+    private void splitInternal(boolean append, BplusTree tree, List<BplusNode> pinned) {
+        int leftSize = append ? nKey - 1 : (nKey + 1) / 2;
+        BplusNode right = new BplusNode(pager, PageType.TABLE_INTERNAL, INTERNAL_SCHEMA);
+        tree.addNode(right, pinned);
+        if (parent != null) {
+            moveChildren(leftSize, nKey, right);
+            nKey = leftSize;
+            if (!append)
+                writeChildren();
+            right.page.setpParent(parent.page.getPgno());
+            right.parent = parent;
+            parent.insertChild(parent.indexOf(page.getPgno()) + 1, right, tree, pinned);
+            return;
+        }
 
-            // 如果后节点子节点数大于M / 2并且大于2，则从其处借补
-            BplusNode next = new BplusNode(pager, pager.aquirePage(page.getpNext()),schema);
-            if (page.getpNext() != 0
-                    && next.entries.size() > tree.getOrder() / 2
-                    && next.entries.size() > 2) {
-                //后叶子节点首位添加到末尾
-                Integer pgno = Integer.parseInt(next.entries.get(0).getValue());
-                BplusNode borrow = new BplusNode(pager, pager.aquirePage(pgno),schema);
-                next.entries.remove(0);
-                borrow.page.setpParent(page.getPgno());
-
-                BplusNode parent = new BplusNode(pager,pager.aquirePage(page.getpParent()),schema);
-
-                int preIndex = parent.entries.indexOf(this);
-                entries.add(parent.entries.get(preIndex));
-                parent.entries.set(preIndex, next.entries.remove(0));
-                return ;
-            }
+        BplusNode left = new BplusNode(pager, PageType.TABLE_INTERNAL, INTERNAL_SCHEMA);
+        tree.addNode(left, pinned);
+        //先搬后一半，前一半的下标不受影响
+        moveChildren(leftSize, nKey, right);
+        moveChildren(0, leftSize, left);
+        left.page.setpParent(page.getPgno());
+        right.page.setpParent(page.getPgno());
+        left.parent = this;
+        right.parent = this;
+        tree.setHeight(tree.getHeight() + 1);
+        becomeParentOf(left, right);
+    }
 
-            // 同前面节点合并
-            BplusNode parent = new BplusNode(pager,pager.aquirePage(page.getpParent()),schema);
-            if (page.getpPrev() != 0
-                    && (previous.entries.size() <= tree.getOrder() / 2
-                    || previous.entries.size() <= 2)) {
-                for (int i = 0; i < entries.size(); i++) {
-                    previous.entries.add(entries.get(i));
-                }
-                for(int i = 0; i < previous.entries.size();i++){
-//                    previous.children.get(i).parent = this;
-                }
-                int indexPre = parent.entries.indexOf(previous);
-                previous.entries.add(parent.entries.get(indexPre));
-                for (int i = 0; i < entries.size(); i++) {
-                    previous.entries.add(entries.get(i));
-                }
-                entries = previous.entries;
-
-                //更新父节点的关键字列表
-                parent.entries.remove(previous);
-                previous.page.setpParent(0);
-                previous.entries = null;
-                parent.entries.remove(parent.entries.indexOf(this));
-                if((!(parent.page.getPageType()==0) && (parent.entries.size() >= tree.getOrder() / 2
-                        && parent.entries.size() >= 2))
-                        ||(parent.page.getPageType()==0) && parent.entries.size() >= 2){
-                    return ;
-                }
-                parent.updateRemove(tree);
-                return ;
-            }
+    /**
+     * 把第 from 到 to-1 个子结点追加到 node 中并写入 node 的页面，子结点只修改页面头部的父页号
+     * 搬走的子结点从 nKey 中去掉由调用者完成
+     */
+    private void moveChildren(int from, int to, BplusNode node) {
+        node.ensureCapacity(node.nKey + to - from);
+        for (int i = from; i < to; i++) {
+            setParent(childPgnos[i], node.page.getPgno());
+            node.keys[node.nKey] = keys[i];
+            node.childPgnos[node.nKey] = childPgnos[i];
+            node.nKey++;
+        }
+        node.writeChildren();
+    }
 
-            // 同后面节点合并
-            if (page.getpNext() != 0
-                    && (next.entries.size() <= tree.getOrder() / 2
-                    || next.entries.size() <= 2)) {
-                for (int i = 0; i < next.entries.size(); i++) {
-                    Integer pgno = Integer.parseInt(next.entries.get(i).getValue());
-                    BplusNode child = new BplusNode(pager, pager.aquirePage(pgno),schema);
-//                    entries.add(child.entries.get(0).getValue(), child.page.getPgno());
-                    child.page.setpParent(page.getPgno());
-                }
-                int index = parent.entries.indexOf(entries.get(0).getKey());
-                entries.add(parent.entries.get(index));
-                for (int i = 0; i < next.entries.size(); i++) {
-                    entries.add(next.entries.get(i));
-                }
-                parent.entries.remove(next.entries.get(0).getKey());
-                next.page.setpParent(0);
-                next.entries = null;
-                parent.entries.remove(parent.entries.indexOf(entries.get(0).getKey()));
-                if((!(parent.page.getPageType() == PageType.TABLE_ROOT ) && (parent.entries.size() >= tree.getOrder() / 2
-                        && parent.entries.size() >= 2))
-                        ||(parent.page.getPageType() == PageType.TABLE_ROOT ) && parent.entries.size() >= 2){
-                    return ;
-                }
-                parent.updateRemove(tree);
-                return ;
-            }
+    private int indexOf(int pgno) {
+        for (int i = 0; i < nKey; i++) {
+            if (childPgnos[i] == pgno)
+                return i;
         }
+        return -1;
     }
 
-    public String remove(Integer key, BplusTree tree){
-        //如果是叶子节点
-        if (page.getPageType() == PageType.TABLE_LEAF){
-            //如果不包含该关键字，则直接返回
-            if (contains(key) == -1){
-                return null;
-            }
-            //如果既是叶子节点又是根节点，直接删除
-            if (page.getPageType() == PageType.TABLE_ROOT) {
-                if(entries.size() == 1){
-                    tree.setHeight(0);
-                }
-                return remove(key);
-            }
-            //如果关键字数大于M / 2，直接删除
-            if (entries.size() > tree.getOrder() / 2 && entries.size() > 2) {
-                return remove(key);
-            }
-            //如果自身关键字数小于M / 2，并且前节点关键字数大于M / 2，则从其处借补
-            BplusNode previous = new BplusNode(pager, pager.aquirePage(page.getpPrev()),schema);
-            BplusNode parent = new BplusNode(pager, pager.aquirePage(page.getpParent()),schema);
-            if (page.getpPrev() != 0 &&
-                    previous.page.getpParent() == page.getpParent()
-                    && previous.entries.size() > tree.getOrder() / 2
-                    && previous.entries.size() > 2 ) {
-                //添加到首位
-                int size = previous.entries.size();
-                entries.add(0, previous.entries.remove(size - 1));
-                int index = parent.entries.indexOf(previous.entries.get(0).getKey());
-                parent.entries.set(index, entries.get(0));
-                return remove(key);
-            }
-            //如果自身关键字数小于M / 2，并且后节点关键字数大于M / 2，则从其处借补
-            BplusNode next = new BplusNode(pager, pager.aquirePage(page.getpNext()),schema);
-            if (page.getpNext() != 0
-                    && next.page.getpParent() == page.getpParent()
-                    && next.entries.size() > tree.getOrder() / 2
-                    && next.entries.size() > 2) {
-                entries.add(next.entries.remove(0));
-                int index = parent.entries.indexOf(entries.get(0).getKey());
-                parent.entries.set(index, next.entries.get(0));
-                return remove(key);
-            }
+    /**
+     * 叶子链中 pgno 页的前一个页面改为 prev，只修改页面头部
+     */
+    private void setPrev(int pgno, int prev) {
+        Page sibling = pager.aquirePage(pgno);
+        sibling.setpPrev(prev);
+        pager.updateHeader(sibling);
+        pager.freePage(pgno);
+    }
 
-            //同前面节点合并
-            if (previous != null
-                    && previous.page.getpParent() == page.getpParent()
-                    && (previous.entries.size() <= tree.getOrder() / 2
-                    || previous.entries.size() <= 2)) {
-                String returnValue =  remove(key);
-                for (int i = 0; i < entries.size(); i++) {
-                    //将当前节点的关键字添加到前节点的末尾
-                    previous.entries.add(entries.get(i));
-                }
-                entries = previous.entries;
-                parent.entries.remove(previous.entries.get(0).getKey());
-                previous.page.setpParent(0);
-                previous.entries = null;
-                //更新链表
-                if (previous.page.getpPrev() != 0) {
-                    BplusNode temp = previous;
-                    new BplusNode(pager, pager.aquirePage(temp.page.getpPrev()),schema).page.setpNext(page.getPgno());
-                    page.setpPrev(temp.page.getpPrev());
-                    temp.page.setpPrev(0);
-                    temp.page.setpNext(0);
-                }else {
-                    tree.setHead(this);
-                    tree.root.page.setHead(this.page.getPgno());
-                    previous.page.setpNext(0);
-                    page.setpPrev(0);
-                }
-                parent.entries.remove(parent.entries.indexOf(entries.get(0).getKey()));
-                if((!(parent.page.getPageType() == PageType.TABLE_ROOT) && (parent.entries.size() >= tree.getOrder() / 2
-                        && parent.entries.size() >= 2))
-                        ||(parent.page.getPageType() == PageType.TABLE_ROOT) && parent.entries.size() >= 2){
-                    return returnValue;
-                }
-                parent.updateRemove(tree);
-                return returnValue;
-            }
-            //同后面节点合并
-            if(next != null
-                    && next.page.getpParent() == page.getpParent()
-                    && (next.entries.size() <= tree.getOrder() / 2
-                    || next.entries.size() <= 2)) {
-                String returnValue = remove(key);
-                for (int i = 0; i < next.entries.size(); i++) {
-                    //从首位开始添加到末尾
-                    entries.add(next.entries.get(i));
-                }
-                next.page.setpParent(0);
-                next.entries = null;
-                parent.entries.remove(next);
-                //更新链表
-                if (next.page.getpNext() != 0) {
-                    BplusNode temp = next;
-                    new BplusNode(pager, pager.aquirePage(temp.page.getpNext()),schema).page.setpPrev(page.getPgno());
-                    page.setpNext(temp.page.getpNext());
-                    temp.page.setpPrev(0);
-                    temp.page.setpNext(0);
-                }else {
-                    next.page.setpPrev(0);
-                    next = null;
-                }
-                //更新父节点的关键字列表
-                parent.entries.remove(parent.entries.indexOf(entries.get(0).getKey()));
-                if((!(parent.page.getPageType() == PageType.TABLE_ROOT) && (parent.entries.size() >= tree.getOrder() / 2
-                        && parent.entries.size() >= 2))
-                        ||(parent.page.getPageType() == PageType.TABLE_ROOT) && parent.entries.size() >= 2){
-                    return returnValue;
-                }
-                parent.updateRemove(tree);
-                return returnValue;
-            }
-        }
-        /*如果不是叶子节点*/
-
-        //如果key小于等于节点最左边的key，沿第一个子节点继续搜索
-        Integer pgno;
-        BplusNode children;
-        if (key.compareTo(entries.get(0).getKey()) < 0) {
-            pgno = Integer.parseInt(entries.get(0).getValue());
-            children = new BplusNode(pager, pager.aquirePage(pgno),schema);
-            return children.remove(key, tree);
-            //如果key大于节点最右边的key，沿最后一个子节点继续搜索
-        }else if (key.compareTo(entries.get(entries.size()-1).getKey()) >= 0) {
-            pgno = Integer.parseInt(entries.get(entries.size()-1).getValue());
-            children = new BplusNode(pager, pager.aquirePage(pgno),schema);
-            return children.remove(key, tree);
-            //否则沿比key大的前一个子节点继续搜索
-        }else {
-            int low = 0, high = entries.size() - 1, mid= 0;
-            int comp ;
-            while (low <= high) {
-                mid = (low + high) / 2;
-                comp = entries.get(mid).getKey().compareTo(key);
-                if (comp == 0) {
-                    pgno = Integer.parseInt(entries.get(mid + 1).getValue());
-                    children = new BplusNode(pager, pager.aquirePage(pgno),schema);
-                    return children.remove(key, tree);
-                } else if (comp < 0) {
-                    low = mid + 1;
-                } else {
-                    high = mid - 1;
-                }
-            }
-            pgno = Integer.parseInt(entries.get(low).getValue());
-            children = new BplusNode(pager, pager.aquirePage(pgno),schema);
-            return children.remove(key, tree);
-        }
+    /**
+     * 叶子链中 pgno 页的后一个页面改为 next，只修改页面头部
+     */
+    private void setNext(int pgno, int next) {
+        Page sibling = pager.aquirePage(pgno);
+        sibling.setpNext(next);
+        pager.updateHeader(sibling);
+        pager.freePage(pgno);
     }
 
     /**
-     * 判断当前节点是否包含该关键字
-     * 若包含该关键字，则返回-1，若包含该关键字，则返回entries中的位置
+     * pgno 页的父结点改为 parent，只修改页面头部
      */
-    protected int contains(Integer key) {
-        int low = 0, high = entries.size() - 1, mid;
-        int comp ;
-        while (low <= high) {
-            mid = (low + high) / 2;
-            comp = entries.get(mid).getKey().compareTo(key);
-            if (comp == 0) {
-                return mid;
-            } else if (comp < 0) {
-                low = mid + 1;
-            } else {
-                high = mid - 1;
-            }
-        }
-        return -1;
+    private void setParent(int pgno, int parent) {
+        Page child = pager.aquirePage(pgno);
+        child.setpParent(parent);
+        pager.updateHeader(child);
+        pager.freePage(pgno);
     }
 
-    /** 插入到当前节点的关键字中*/
-    protected void insertOrUpdate(Integer key, String value){
-        //二叉查找，插入
-        int low = 0, high = entries.size() - 1, mid;
-        int comp ;
-        while (low <= high) {
-            mid = (low + high) / 2;
-            comp = entries.get(mid).getKey().compareTo(key);
-            if (comp == 0) {
-                entries.get(mid).setValue(value);
-                break;
-            } else if (comp < 0) {
-                low = mid + 1;
-            } else {
-                high = mid - 1;
-            }
-        }
-        if(low>high){
-            entries.add(low, new AbstractMap.SimpleEntry<Integer, String>(key, value));
-        }
-        flushPage(entries,this);
+    /* 叶子结点：用 records 重写页面 */
+    private void writeRecords(List<Entry<Integer, byte[]>> records) {
+        pager.updateHeader(page);
+        pager.writeData(page, records);
+        load(page);
     }
-    /* 刷新页面数据域 */
-    protected void flushPage(List<Entry<Integer,String>> entries, BplusNode node){
 
-        List<Entry<Integer,byte[]>> dataList = new ArrayList<>();
-        for(int i=0; i<entries.size();i++)
-        {
-            dataList.add(new AbstractMap.SimpleEntry<Integer,byte[]>(entries.get(i).getKey(),
-                    node.schema.getBytes(entries.get(i).getKey(),entries.get(i).getValue())));
-        }
-        pager.updateHeader(node.page);
-        pager.writeData(node.page,dataList);
-        pager.flush();
-    }
-
-    /** 删除节点*/
-    protected String remove(Integer key){
-        int low = 0,high = entries.size() -1,mid;
-        int comp;
-        while(low<= high){
-            mid  = (low+high)/2;
-            comp = entries.get(mid).getKey().compareTo(key);
-            if(comp == 0){
-                return entries.remove(mid).getValue();
-            }else if(comp < 0){
-                low = mid + 1;
-            }else {
-                high = mid - 1;
-            }
+    /**
+     * 内部结点：把关键字和子结点页号写入页面
+     * @return 页面放不下时返回 false，页面不变
+     */
+    private boolean writeChildren() {
+        if (!pager.writeChildren(page, keys, childPgnos, nKey))
+            return false;
+        leaf = false;
+        modCount = page.getModCount();
+        return true;
+    }
+
+    /**
+     * 删除关键字，返回删除的记录
+     * 叶子结点删空后从父结点中移除并释放页面，父结点只剩这一个子结点时保留空的叶子；
+     * 结点不做合并，内部结点的关键字仍是子树中关键字的下界，查找不受影响
+     */
+    public String remove(int key, BplusTree tree, List<BplusNode> pinned) {
+        if (!isLeaf())
+            return nKey == 0 ? null : child(childIndex(key), tree, pinned).remove(key, tree, pinned);
+        int i = search(key);
+        if (i < 0)
+            return null;
+        String value = pager.readRow(page, offsets[i]);
+        pager.deleteData(page, key);
+        load(page);
+        if (nKey == 0 && parent != null && parent.nKey > 1)
+            parent.removeChild(this, tree, pinned);
+        return value;
+    }
+
+    /**
+     * 移除空的叶子结点 child：叶子链跳过它，页面加入空闲链表，child 的 pin 在操作结束时释放
+     */
+    private void removeChild(BplusNode child, BplusTree tree, List<BplusNode> pinned) {
+        int index = indexOf(child.page.getPgno());
+        int prev = child.page.getpPrev();
+        int next = child.page.getpNext();
+        if (prev != 0) {
+            setNext(prev, next);
+        } else {
+            //删除的是第一个叶子，它后面的叶子是同一个父结点的下一个子结点
+            tree.setHead(child(index + 1, tree, pinned));
+            tree.root.page.setHead(next);
+            pager.updateHeader(tree.root.page);
         }
-        return null;
+        if (next != 0)
+            setPrev(next, prev);
+
+        System.arraycopy(keys, index + 1, keys, index, nKey - index - 1);
+        System.arraycopy(childPgnos, index + 1, childPgnos, index, nKey - index - 1);
+        nKey--;
+        writeChildren();
+
+        pager.dropPage(child.page.getPgno());
     }
+
     public String toString(){
-        return page.toString();
+        return page != null ? page.toString() : "BplusNode{keys=" + nKey + "}";
     }
 }
@@ -20,35 +20,48 @@ package com.database.myBplusTree;
  */
 import com.database.global.Database;
 import com.database.global.PageType;
+import com.database.global.SpaceAllocation;
+import com.database.pager.Page;
+import com.database.pager.Pager;
+import com.database.pager.Position;
+import com.database.pager.RecordCursor;
 import com.database.pager.TableSchema;
 
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class BplusTree{
+public class BplusTree {
+
+    public static final int FILL_ORDER = 0;     //树阶为0时不限制关键字个数，结点在页面放不下时才分裂
+    public static final int MAX_ORDER = Byte.MAX_VALUE;    //树阶保存在根页头部的一个字节中
 
     Database db ;               //数据库对象
     TableSchema schema;         //表结构
 
     protected BplusNode root;   //根节点
-    protected int order;        //树阶，M值
+    protected int order;        //树阶，M值，FILL_ORDER 表示按页面填充分裂
     protected BplusNode head;   //头指针
     protected int height = 0;   //树高
 
     private int maxRowid = 0;      //最大行号
 
+    //查找之间可以并发，插入、删除和批量装入修改结点和页面，与其他操作互斥
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
     /**
      *构造函数
-     * 1、判断树阶是否大于等于3
+     * 1、判断树阶是否大于等于3，或者为 FILL_ORDER
      * 2、创建根节点
      * 3、树的head指针指向根节点
      */
     public BplusTree(int order,Database db, TableSchema schema) {
         /* 创建一个新的B+树 */
-        if (order < 3) {
-            System.out.print("树阶必须大于2！");
-            System.exit(0);
-        }
+        if (!isValidOrder(order))
+            throw new IllegalArgumentException("树阶必须在3到"+MAX_ORDER+"之间："+order);
         this.order = order;
         this.schema = schema;
         root = new BplusNode(db.getPager(), PageType.TABLE_LEAF, schema);
@@ -61,16 +74,65 @@ public class BplusTree{
     }
     public BplusTree(int order,Database db,BplusNode root,BplusNode head, TableSchema schema) {
         /* 从根节点中读取B+树，并构建 */
-        if (order < 3) {
-            System.out.print("树阶必须大于2！");
-            System.exit(0);
-        }
+        if (!isValidOrder(order))
+            throw new IllegalArgumentException("树阶必须在3到"+MAX_ORDER+"之间："+order);
         this.order = order;
         this.root = root;
         this.head = head;
         this.schema = schema;
         this.maxRowid = root.page.getMaxRowID();
         this.db = db;
+        if (head.page.getPgno() == root.page.getPgno()) {
+            //只有一个叶子时头结点就是根结点，另外构造的头结点只释放它 pin 住的页面
+            if (head != root)
+                db.getPager().freePage(head.page);
+            this.head = root;
+        } else {
+            //头结点和其他缓存的结点一样附加在页面上，不持有页面
+            Page page = head.page;
+            head.page = null;
+            page.setExtra(head);
+            db.getPager().freePage(page);
+        }
+    }
+
+    /**
+     * 页面 page 上的结点，page 由调用者 pin 住
+     * 解码的非根结点附加在缓存的页面上（Page.getExtra），随页面置换，结点数不超过 PCache 的页面预算；
+     * 页面上还没有结点时从页面解码，页面在解码之后修改过或重新装入时重新解码。
+     * vacuum 移动页面时页面对象连同结点一起改用新的页号，结点不需要另外处理
+     */
+    BplusNode node(Page page) {
+        BplusNode node = (BplusNode) page.getExtra();
+        if (node == null) {
+            //两个线程同时解码同一个页面时各自使用自己的结点，页面上留下后放入的一个
+            node = BplusNode.decode(db.getPager(), page, schema);
+            page.setExtra(node);
+            return node;
+        }
+        node.refresh(page);
+        return node;
+    }
+
+    /**
+     * 写操作中新建的结点：附加在页面上，页面已被 pin，加入 pinned 在操作结束时释放
+     */
+    void addNode(BplusNode node, List<BplusNode> pinned) {
+        node.page.setExtra(node);
+        pinned.add(node);
+    }
+
+    /**
+     * 写操作结束，释放经过的结点的页面，结点只保留解码的结果；根结点的页面一直被 pin
+     * parent 只在一次写操作中有效，一并清空，已被置换的结点不会经由子结点留在内存中
+     */
+    private void release(List<BplusNode> pinned) {
+        Pager pager = db.getPager();
+        for (BplusNode node : pinned) {
+            pager.freePage(node.page);
+            node.page = null;
+            node.parent = null;
+        }
     }
 
     /** 获取/设置头指针 */
@@ -89,6 +151,13 @@ public class BplusTree{
         this.root = root;
     }
 
+    /**
+     * 树阶是否可用：FILL_ORDER，或者3到 MAX_ORDER 之间
+     */
+    public static boolean isValidOrder(int order) {
+        return order == FILL_ORDER || order >= 3 && order <= MAX_ORDER;
+    }
+
     /** 获取/设置B+树的树阶 */
     public int getOrder() {
         return order;
@@ -97,6 +166,13 @@ public class BplusTree{
         this.order = order;
     }
 
+    /**
+     * @return 一个结点最多的关键字（子结点）个数，按页面填充分裂时不限制，由页面能否放下决定
+     */
+    public int getMaxKeys() {
+        return order == FILL_ORDER ? Integer.MAX_VALUE : order;
+    }
+
     /** 获取/设置B+树的树高 */
     public void setHeight(int height) {
         this.height = height;
@@ -112,17 +188,51 @@ public class BplusTree{
         return maxRowid;
     }
 
-    public String get(Integer key) {
-        return root.get(key,this);
+    /**
+     * 查找：经过的页面记在本次调用的 pins 中，查找结束时释放，多个线程可以同时查找
+     */
+    public String get(int key) {
+        List<Page> pins = new ArrayList<Page>();
+        lock.readLock().lock();
+        try {
+            root.refresh(root.page);
+            return root.get(key, root.page, this, pins);
+        } finally {
+            Pager pager = db.getPager();
+            for (Page page : pins)
+                pager.freePage(page);
+            lock.readLock().unlock();
+        }
     }
 
-    public String remove(Integer key) {
-        return root.remove(key, this);
+    public String remove(int key) {
+        List<BplusNode> pinned = new ArrayList<BplusNode>();
+        String result;
+        lock.writeLock().lock();
+        try {
+            root.refresh(root.page);
+            result = root.remove(key, this, pinned);
+        } finally {
+            release(pinned);
+            lock.writeLock().unlock();
+        }
+        db.getPager().flush();
+        return result;
     }
 
-    public void insertOrUpdate(Integer key, String value) {
-        root.insertOrUpdate(key, value, this);
-        root.flushPage( root.entries, root );
+    public void insertOrUpdate(int key, String value) {
+        List<BplusNode> pinned = new ArrayList<BplusNode>();
+        lock.writeLock().lock();
+        try {
+            root.refresh(root.page);
+            root.insertOrUpdate(key, value, this, pinned);
+            //结点的记录已在插入和分裂时写入页面，这里只写回根页头部的最大 rowid
+            db.getPager().updateHeader(root.page);
+        } finally {
+            release(pinned);
+            lock.writeLock().unlock();
+        }
+        db.getPager().flush();
     }
 
 
@@ -156,27 +266,38 @@ public class BplusTree{
 
         List<String> results = new ArrayList<>();
 
-        BplusNode tempNode;
-        if(head.page.getPgno() != 0){
-
-            tempNode = new BplusNode(db.getPager(),head.page, schema);
-
-            while(tempNode != null){
-                for(int i=0;i < tempNode.entries.size();i++){
-                    String tempStr = tempNode.entries.get(i).getValue();
-                    results.add(tempStr);
-                }// end for
-                if(tempNode.page.getpNext() != 0){
-                    tempNode = new BplusNode(db.getPager(),db.getPager().aquirePage(tempNode.page.getpNext()), schema);
-                }else{
-                    tempNode = null;
-                }
-            }//end while
+        //在快照中沿叶子链顺序扫描，不受同时进行的插入影响，并开启预读
+        db.getPager().beginRead();
+        db.getPager().beginScan();
+        //游标直接读页面中的记录，不为每个叶子构造结点，换页时释放扫描过的叶子
+        RecordCursor cursor = new RecordCursor(db.getPager());
+        try{
+            for(int pgno = snapshotHead(); pgno != 0 && cursor.open(pgno); pgno = cursor.getNextPgno()){
+                for(boolean ok = cursor.first(); ok; ok = cursor.next())
+                    results.add(cursor.toRow());
+            }
+        }finally {
+            cursor.close();
+            db.getPager().endScan();
+            db.getPager().endRead();
         }
 
         return results;
     }
 
+    /**
+     * 快照中第一个叶子的页号，调用者已经 beginRead
+     * 从快照中的根页读取，不用一直 pin 住的 root.page：同时进行的写操作可能已经分裂根结点或删除了第一个叶子，
+     * 那时的头指针指向快照中没有的叶子
+     */
+    private int snapshotHead() {
+        Pager pager = db.getPager();
+        Page page = pager.aquirePage(root.page.getPgno());
+        int pgno = page.getHead();
+        pager.freePage(page);
+        return pgno;
+    }
+
     /**
      * 查询其他字段
      */
@@ -184,27 +305,219 @@ public class BplusTree{
         System.out.println("开始查询！");
 
         List<String> results = new ArrayList<>();
-        if(head.page.getPgno() != 0){
-            BplusNode tempNode = new BplusNode(db.getPager(),head.page, schema);
-            while(tempNode != null){
-                for(int i=0;i < tempNode.entries.size();i++){
-                    String tempStr = tempNode.entries.get(i).getValue();
-                    String tempValue[] = tempStr.split(",");
-                    if(tempValue[1].trim().equals(value.trim())){
-                        results.add(tempStr);
-                    }
-                }// end for
-                if(tempNode.page.getpNext() != 0){
-                    tempNode = new BplusNode(db.getPager(),db.getPager().aquirePage(tempNode.page.getpNext()), schema);
-                }else{
-                    tempNode = null;
+        int col = 0;
+        while(col < schema.getColNum() && !schema.getColumns().get(col).getName().equals(param.trim()))
+            col++;
+        if(col == schema.getColNum())
+            return results;
+
+        //条件值只转换一次，扫描时直接与页面中的列比较，只有符合条件的记录才转换为字符串
+        byte[] text = value.trim().getBytes();
+        long number = 0;
+        boolean isNumber = true;
+        try{
+            number = Long.parseLong(value.trim());
+        }catch (NumberFormatException e){
+            isNumber = false;
+        }
+
+        //在快照中沿叶子链顺序扫描，不受同时进行的插入影响，并开启预读
+        db.getPager().beginRead();
+        db.getPager().beginScan();
+        RecordCursor cursor = new RecordCursor(db.getPager());
+        try{
+            for(int pgno = snapshotHead(); pgno != 0 && cursor.open(pgno); pgno = cursor.getNextPgno()){
+                for(boolean ok = cursor.first(); ok; ok = cursor.next()){
+                    boolean match = cursor.isText(col) ? cursor.textEquals(col, text)
+                            : isNumber && cursor.getLong(col) == number;
+                    if(match)
+                        results.add(cursor.toRow());
                 }
-            }// end while
+            }
+        }finally {
+            cursor.close();
+            db.getPager().endScan();
+            db.getPager().endRead();
         }
 
         return results;
     }
 
+    /**
+     * 批量装入按 rowid 升序排列的数据，只能用于空表
+     * 叶子按顺序装满后依次写入，内部结点在装满一层后自下而上写入，最上层放入根页，
+     * 每个页面只在内存中写一次。页面在写入时就设置前后页号，父页号在父结点写入时设置，
+     * 在那之前子结点页面一直被 pin，每层最多 pin 一个结点的子页面。
+     * 脏页面超过缓存的一定比例时提前提交，等待父页号的页面在设置父页号后会再写一次。
+     * 不是升序的行（rowid 不大于前一行）在装入完成后用 insertOrUpdate 插入
+     * @param rows （rowid，各列以逗号连接的字符串）
+     * @return 装入的行数，不是空表时返回0
+     */
+    public int bulkLoad(Iterator<Entry<Integer, String>> rows) {
+        lock.writeLock().lock();
+        try {
+            return load(rows);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int load(Iterator<Entry<Integer, String>> rows) {
+        if (!root.isLeaf() || root.getKeyCount() != 0) {
+            System.out.println("只能向空表批量装入数据！");
+            return 0;
+        }
+        Pager pager = db.getPager();
+        int space = SpaceAllocation.PAGE_SIZE - Position.CELL_POINTER_IN_PAGE;
+        int maxKeys = getMaxKeys();
+        int maxChildren = Math.min(maxKeys, root.page.getMaxChildren());
+        List<BulkLevel> levels = new ArrayList<BulkLevel>();
+        List<Entry<Integer, String>> unsorted = new ArrayList<Entry<Integer, String>>();
+
+        List<Entry<Integer, byte[]>> leaf = new ArrayList<Entry<Integer, byte[]>>();
+        int used = 0;
+        Page pending = null;                //已装满、等待后一个叶子页号的叶子
+        List<Entry<Integer, byte[]>> pendingRecords = null;
+        int headPgno = 0;
+        int last = 0;
+        int count = 0;
+        while (rows.hasNext()) {
+            Entry<Integer, String> row = rows.next();
+            int key = row.getKey();
+            if (count > 0 && key <= last) {
+                unsorted.add(row);
+                continue;
+            }
+            byte[] record = schema.getBytes(key, row.getValue());
+            int size = root.page.cellSize(record) + 2;
+            if (leaf.size() > 0 && (used + size > space || leaf.size() == maxKeys)) {
+                //当前叶子装满：为它分配页面，前一个叶子得到后一个页号后写入
+                Page page = newPage(PageType.TABLE_LEAF);
+                if (pending != null) {
+                    pending.setpNext(page.getPgno());
+                    page.setpPrev(pending.getPgno());
+                    writeLeaf(pending, pendingRecords, levels, maxChildren);
+                    if (pager.isDirtyHigh())
+                        pager.flush();
+                } else {
+                    headPgno = page.getPgno();
+                }
+                pending = page;
+                pendingRecords = leaf;
+                leaf = new ArrayList<Entry<Integer, byte[]>>();
+                used = 0;
+            }
+            leaf.add(new SimpleEntry<Integer, byte[]>(key, record));
+            used += size;
+            last = key;
+            count++;
+        }
+
+        if (pending == null) {
+            //只有一个叶子，直接放入根页
+            pager.writeData(root.page, leaf);
+        } else {
+            Page page = newPage(PageType.TABLE_LEAF);
+            pending.setpNext(page.getPgno());
+            page.setpPrev(pending.getPgno());
+            writeLeaf(pending, pendingRecords, levels, maxChildren);
+            writeLeaf(page, leaf, levels, maxChildren);
+            //自下而上写入每层最后一个结点，最上层只有一个结点，放入根页
+            for (int i = 0; i < levels.size() - 1; i++)
+                writeInternal(levels, i, maxChildren);
+            BulkLevel top = levels.get(levels.size() - 1);
+            root.page.setPageType(PageType.TABLE_ROOT);
+            pager.writeChildren(root.page, top.keys, top.pgnos, top.n);
+            top.adopt(pager, root.page.getPgno());
+            root.schema = TableSchema.getTreeInternalSchema();
+            root.page.setHead(headPgno);
+            Page headPage = pager.aquirePage(headPgno);
+            head = node(headPage);
+            pager.freePage(headPage);
+        }
+        height = levels.size() + 1;
+        if (last > maxRowid) {
+            maxRowid = last;
+            root.page.setMaxRowID(maxRowid);
+        }
+        pager.updateHeader(root.page);
+        root.refresh(root.page);
+        pager.flush();
+
+        for (Entry<Integer, String> row : unsorted)
+            insertOrUpdate(row.getKey(), row.getValue());
+        return count + unsorted.size();
+    }
+
+    private Page newPage(byte type) {
+        Page page = db.getPager().aquireNewPage();
+        page.setPageType(type);
+        return page;
+    }
+
+    /**
+     * 写入叶子的记录，叶子加入上一层的当前结点，页面在父结点写入前保持 pin
+     */
+    private void writeLeaf(Page page, List<Entry<Integer, byte[]>> records, List<BulkLevel> levels, int maxChildren) {
+        db.getPager().writeData(page, records);
+        addChild(levels, 0, records.get(0).getKey(), page, maxChildren);
+    }
+
+    /**
+     * 把子结点加入第 level 层的当前结点，当前结点已满时先写入
+     */
+    private void addChild(List<BulkLevel> levels, int level, int key, Page child, int maxChildren) {
+        if (levels.size() == level)
+            levels.add(new BulkLevel(maxChildren));
+        BulkLevel l = levels.get(level);
+        if (l.n == maxChildren)
+            writeInternal(levels, level, maxChildren);
+        l.keys[l.n] = key;
+        l.pgnos[l.n] = child.getPgno();
+        l.children[l.n] = child;
+        l.n++;
+    }
+
+    /**
+     * 为第 level 层的当前结点分配页面并写入，它的子结点页面设置父页号后释放，结点本身加入上一层
+     */
+    private void writeInternal(List<BulkLevel> levels, int level, int maxChildren) {
+        BulkLevel l = levels.get(level);
+        Page page = newPage(PageType.TABLE_INTERNAL);
+        db.getPager().writeChildren(page, l.keys, l.pgnos, l.n);
+        l.adopt(db.getPager(), page.getPgno());
+        addChild(levels, level + 1, l.keys[0], page, maxChildren);
+    }
+
+    /**
+     * 批量装入时一层中正在装入的结点
+     */
+    private static class BulkLevel {
+        int n;
+        int[] keys;
+        int[] pgnos;
+        Page[] children;    //已写入、等待父页号的子结点页面
+
+        BulkLevel(int maxChildren) {
+            keys = new int[maxChildren];
+            pgnos = new int[maxChildren];
+            children = new Page[maxChildren];
+        }
+
+        /**
+         * 子结点的父页号设为 parent 并释放子结点页面，当前结点清空
+         */
+        void adopt(Pager pager, int parent) {
+            for (int i = 0; i < n; i++) {
+                children[i].setpParent(parent);
+                pager.updateHeader(children[i]);
+                pager.freePage(children[i].getPgno());
+                children[i] = null;
+            }
+            n = 0;
+        }
+    }
+
     /**
      * 插入数据
      * 1、获取rowid，执行插入
@@ -0,0 +1,121 @@
+package com.database.pager;
+
+import com.database.global.PagerConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 后台写回线程，定期把脏页面写回磁盘，使 PCache.fetch 总能找到干净的可回收页面，
+ * 前台的 flush 也不必一次写回大量页面。
+ * 脏页面超过缓存的 DIRTY_HIGH_PCT 时，从最早变脏的页面开始写回，直到低于 DIRTY_LOW_PCT；
+ * 否则只写回变脏时间超过 DIRTY_MAX_AGE 的页面。
+ * 每批最多写回 CHECKPOINT_BATCH 个页面，写回时持有 Pager 的锁，批与批之间释放锁让前台继续执行。
+ * 前台修改页面后总会调用 makeDirty，所以写回后又被修改的页面会重新变脏，不会丢失修改。
+ */
+public class Checkpointer extends Thread {
+    private Pager pager;
+    private volatile boolean running;
+    private boolean woken;                  //前台缓存没有干净页面可用，要求立即写回
+    private volatile long nWritten;         //累计写回的页面数
+    private volatile long nBatch;           //累计写回的批数
+
+    public Checkpointer(Pager pager) {
+        super("checkpointer");
+        this.pager = pager;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while(this.running){
+            boolean urgent;
+            synchronized (this){
+                if(!this.woken){
+                    try{
+                        wait(PagerConfig.CHECKPOINT_INTERVAL);
+                    }catch (InterruptedException e){
+                        break;
+                    }
+                }
+                urgent = this.woken;
+                this.woken = false;
+            }
+            if(this.running)
+                checkpoint(urgent);
+        }
+    }
+
+    /**
+     * 按脏页面比例和存在时间写回一轮
+     * @param urgent 为true时至少写回一批，即使脏页面比例没有超过阈值
+     */
+    private void checkpoint(boolean urgent){
+        boolean byRatio = urgent;
+        while(this.running){
+            int n;
+            synchronized (this.pager){
+                PCache pCache = this.pager.getPCache();
+                int nDirty = pCache.getDirtyPgs().size();
+                int high = pCache.getMaxPage() * PagerConfig.DIRTY_HIGH_PCT / 100;
+                int low = pCache.getMaxPage() * PagerConfig.DIRTY_LOW_PCT / 100;
+                if(nDirty > high)
+                    byRatio = true;
+                if(byRatio && nDirty <= low)
+                    byRatio = urgent;
+                urgent = false;
+
+                long expire = System.currentTimeMillis() - PagerConfig.DIRTY_MAX_AGE;
+                List<Page> batch = new ArrayList<Page>(PagerConfig.CHECKPOINT_BATCH);
+                //dirtyPgs 按变脏的先后排列，最早变脏的页面在前
+                for(Page page : pCache.getDirtyPgs()){
+                    if(batch.size() >= PagerConfig.CHECKPOINT_BATCH)
+                        break;
+                    if(!byRatio && page.getDirtyTime() > expire)
+                        break;
+                    batch.add(page);
+                }
+                if(batch.isEmpty())
+                    return;
+                n = this.pager.writePages(batch);
+            }
+            this.nWritten += n;
+            this.nBatch++;
+            if(n == 0)
+                return;
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 唤醒写回线程，立即写回一批页面
+     */
+    public synchronized void wake(){
+        this.woken = true;
+        notify();
+    }
+
+    /**
+     * 停止写回线程并等待其结束
+     */
+    public void shutdown(){
+        this.running = false;
+        synchronized (this){
+            notify();
+        }
+        try{
+            join();
+        }catch (InterruptedException e){
+            e.printStackTrace();
+        }
+    }
+
+    public long getWritten() {
+        return nWritten;
+    }
+
+    public long getBatchCount() {
+        return nBatch;
+    }
+}
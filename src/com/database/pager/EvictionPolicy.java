@@ -0,0 +1,40 @@
+package com.database.pager;
+
+/**
+ * PCache 的页面置换策略
+ * 策略只在可回收（未被 pin）的页面中选择被置换的页面，
+ * pin 时页面离开可回收集合，unpin 时重新加入。
+ */
+public interface EvictionPolicy {
+    /**
+     * 页面被访问（命中或新装入），不再可回收
+     */
+    void pin(Page page);
+
+    /**
+     * 页面使用完毕，可以被回收
+     */
+    void unpin(Page page);
+
+    /**
+     * 页面离开缓存，清除策略中关于它的状态
+     */
+    void remove(Page page);
+
+    /**
+     * 选出并移除一个被置换的页面
+     * @return 被置换的页面，没有可回收的页面时返回null
+     */
+    Page victim();
+
+    /**
+     * @return 可回收的页面数
+     */
+    int size();
+
+    /**
+     * 缓存容量改变时调用
+     * @param nPage 缓存的最大页面数
+     */
+    void setCapacity(int nPage);
+}
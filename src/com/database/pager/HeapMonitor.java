@@ -0,0 +1,128 @@
+package com.database.pager;
+
+import com.database.global.PagerConfig;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 监视 JVM 堆的使用情况，老年代使用超过 HEAP_PRESSURE_PCT 时通知所有 PCache 释放一半的缓存，
+ * 之后某次 GC 后使用量回到阈值以下时通知它们恢复原来的缓存大小
+ * 堆外模式的缓存不受影响：页面数据不在堆中，释放它们不能缓解堆的压力，直接内存由缓存大小限制
+ */
+public class HeapMonitor {
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+    private static List<WeakReference<PCache>> caches = new ArrayList<WeakReference<PCache>>();
+    private static List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();   //设置了阈值的内存池
+    private static boolean installed;
+    private static boolean pressure;                //已通知释放，尚未恢复
+
+    public static synchronized void register(PCache pCache){
+        if(!installed){
+            installed = true;
+            install();
+        }
+        caches.add(new WeakReference<PCache>(pCache));
+    }
+
+    private static void install(){
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            long max = pool.getUsage().getMax();
+            if(pool.getType() != MemoryType.HEAP || max <= 0)
+                continue;
+            long threshold = max / 100 * PagerConfig.HEAP_PRESSURE_PCT;
+            if(pool.isCollectionUsageThresholdSupported()){
+                pool.setCollectionUsageThreshold(threshold);
+                pools.add(pool);
+            }else if(pool.isUsageThresholdSupported()){
+                pool.setUsageThreshold(threshold);
+                pools.add(pool);
+            }
+        }
+        if(pools.isEmpty())
+            return;
+
+        NotificationEmitter emitter = (NotificationEmitter)ManagementFactory.getMemoryMXBean();
+        emitter.addNotificationListener(new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                String type = notification.getType();
+                if(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+                        || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type))
+                    onPressure();
+            }
+        }, null, null);
+
+        NotificationListener gcListener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                if(GC_NOTIFICATION.equals(notification.getType()) && isBelowThreshold())
+                    onRelief();
+            }
+        };
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            if(gc instanceof NotificationEmitter)
+                ((NotificationEmitter)gc).addNotificationListener(gcListener, null, null);
+        }
+    }
+
+    /**
+     * @return 所有设置了阈值的内存池当前都在阈值以下
+     */
+    private static boolean isBelowThreshold(){
+        for(MemoryPoolMXBean pool : pools){
+            if(pool.isCollectionUsageThresholdSupported()){
+                if(pool.getCollectionUsage().getUsed() >= pool.getCollectionUsageThreshold())
+                    return false;
+            }else if(pool.getUsage().getUsed() >= pool.getUsageThreshold()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 堆内存紧张，请求各个缓存释放内存
+     */
+    public static synchronized void onPressure(){
+        pressure = true;
+        Iterator<WeakReference<PCache>> it = caches.iterator();
+        while(it.hasNext()){
+            PCache pCache = it.next().get();
+            if(pCache == null){
+                it.remove();
+                continue;
+            }
+            if(!pCache.getArena().isOffHeap())
+                pCache.requestRelease((long)pCache.getPageCount() * PCache.getPageBytes() / 2);
+        }
+    }
+
+    /**
+     * 堆内存不再紧张，请求各个缓存恢复原来的大小
+     */
+    public static synchronized void onRelief(){
+        if(!pressure)
+            return;
+        pressure = false;
+        Iterator<WeakReference<PCache>> it = caches.iterator();
+        while(it.hasNext()){
+            PCache pCache = it.next().get();
+            if(pCache == null){
+                it.remove();
+                continue;
+            }
+            pCache.requestRestore();
+        }
+    }
+}
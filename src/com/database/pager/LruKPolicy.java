@@ -0,0 +1,203 @@
+package com.database.pager;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU-K 置换（O'Neil 等）
+ * 按倒数第 K 次访问的时间选择被置换的页面，访问不足 K 次的页面距离视为无穷大，最先被置换。
+ * 被置换页面的访问历史按页号保留一段时间，页面再次装入时沿用。
+ * 访问不足 K 次的页面在链表中，O(1)；访问满 K 次的页面在按倒数第 K 次访问时间排序的二叉堆中，unpin 和 victim 是 O(log n)：
+ * 页面再次访问后新的倒数第 K 次访问时间可能落在其他页面之间，按 unpin 顺序排列的链表无法保持这个顺序，
+ * 链表只能近似为满 K 次页面之间的 LRU。
+ * BenchPCache cost：缓存已满、一半访问未命中时，一次 fetch + unpin 在 1000/10000/100000 页的缓存上约 0.55/1.4/2.8 us，
+ * 2Q 为 0.5/1.1/2.0 us，LRU 为 0.4/0.8/1.3 us。
+ */
+public class LruKPolicy implements EvictionPolicy {
+    /**
+     * 一个缓存页面的访问历史，可回收时在 young 链表或 old 堆中
+     */
+    private static class Entry {
+        final Page page;
+        final long[] times;             //最近K次访问时间，[0]为最近一次
+        Entry prev, next;               //young 链表
+        int index = -1;                 //在 old 堆中的下标，-1表示不在堆中
+
+        Entry(Page page, long[] times) {
+            this.page = page;
+            this.times = times;
+        }
+    }
+
+    private int k;
+    private long clock;                                                 //逻辑时钟，每次访问加1
+    private Map<Page, Entry> history = new IdentityHashMap<Page, Entry>();
+    private Entry young = new Entry(null, null);                        //可回收且访问不足K次的页面，按 unpin 顺序排列的环形链表的头
+    private int nYoung;
+    private Entry[] old = new Entry[16];                                //可回收且访问满K次的页面，按倒数第K次访问时间的小根堆
+    private int nOld;
+    private LinkedHashMap<Integer, long[]> retained;                    //已置换页面的访问历史
+    private int nRetained;
+
+    public LruKPolicy(int k, int nPage) {
+        this.k = k;
+        this.young.prev = this.young.next = this.young;
+        this.retained = new LinkedHashMap<Integer, long[]>(16, 0.75f, false){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, long[]> eldest) {
+                return size() > nRetained;
+            }
+        };
+        setCapacity(nPage);
+    }
+
+    @Override
+    public void setCapacity(int nPage) {
+        this.nRetained = Math.max(1, nPage);
+    }
+
+    /**
+     * 取出页面的访问历史，页面不在策略中时沿用 retained 中保留的历史
+     */
+    private Entry entry(Page page){
+        Entry entry = this.history.get(page);
+        if(entry == null){
+            long[] times = this.retained.remove(page.getPgno());
+            entry = new Entry(page, times != null ? times : new long[this.k]);
+            this.history.put(page, entry);
+        }
+        return entry;
+    }
+
+    private long kth(Entry entry){
+        return entry.times[this.k - 1];
+    }
+
+    @Override
+    public void pin(Page page) {
+        Entry entry = entry(page);
+        unlink(entry);
+        long[] times = entry.times;
+        System.arraycopy(times, 0, times, 1, this.k - 1);
+        times[0] = ++this.clock;
+    }
+
+    /**
+     * victim 选出的脏页面不能被置换，PCache 通过 unpin 交还，此时历史已移入 retained，由 entry 取回
+     */
+    @Override
+    public void unpin(Page page) {
+        Entry entry = entry(page);
+        unlink(entry);
+        if(kth(entry) == 0){
+            entry.prev = this.young.prev;
+            entry.next = this.young;
+            this.young.prev.next = entry;
+            this.young.prev = entry;
+            this.nYoung++;
+        }else{
+            if(this.nOld == this.old.length)
+                this.old = Arrays.copyOf(this.old, this.nOld * 2);
+            entry.index = this.nOld++;
+            siftUp(entry);
+        }
+    }
+
+    @Override
+    public void remove(Page page) {
+        Entry entry = this.history.remove(page);
+        if(entry == null)
+            return;
+        unlink(entry);
+        this.retained.put(page.getPgno(), entry.times);
+    }
+
+    @Override
+    public Page victim() {
+        Entry entry = this.young.next;
+        if(entry == this.young)
+            entry = this.nOld > 0 ? this.old[0] : null;
+        if(entry == null)
+            return null;
+        unlink(entry);
+        this.history.remove(entry.page);
+        this.retained.put(entry.page.getPgno(), entry.times);
+        return entry.page;
+    }
+
+    /**
+     * 把页面从 young 链表或 old 堆中移出
+     */
+    private void unlink(Entry entry){
+        if(entry.next != null){
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+            entry.prev = entry.next = null;
+            this.nYoung--;
+        }else if(entry.index >= 0){
+            int i = entry.index;
+            Entry last = this.old[--this.nOld];
+            this.old[this.nOld] = null;
+            entry.index = -1;
+            if(last != entry){
+                last.index = i;
+                siftUp(last);
+                if(last.index == i)
+                    siftDown(last);
+            }
+        }
+    }
+
+    private void siftUp(Entry entry){
+        int i = entry.index;
+        long key = kth(entry);
+        while(i > 0){
+            int parent = (i - 1) >>> 1;
+            Entry p = this.old[parent];
+            if(kth(p) <= key)
+                break;
+            this.old[i] = p;
+            p.index = i;
+            i = parent;
+        }
+        this.old[i] = entry;
+        entry.index = i;
+    }
+
+    private void siftDown(Entry entry){
+        int i = entry.index;
+        long key = kth(entry);
+        int half = this.nOld >>> 1;
+        while(i < half){
+            int child = 2 * i + 1;
+            Entry c = this.old[child];
+            if(child + 1 < this.nOld && kth(this.old[child + 1]) < kth(c))
+                c = this.old[++child];
+            if(key <= kth(c))
+                break;
+            this.old[i] = c;
+            c.index = i;
+            i = child;
+        }
+        this.old[i] = entry;
+        entry.index = i;
+    }
+
+    @Override
+    public int size() {
+        return this.nYoung + this.nOld;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("lru-" + this.k + "{young=[");
+        for(Entry entry = this.young.next; entry != this.young; entry = entry.next)
+            sb.append(entry.page).append(',');
+        sb.append("], old=[");
+        for(int i = 0; i < this.nOld; i++)
+            sb.append(this.old[i].page).append(',');
+        return sb.append("]}").toString();
+    }
+}
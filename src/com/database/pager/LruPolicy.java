@@ -0,0 +1,51 @@
+package com.database.pager;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * LRU 置换：回收最早被 unpin 的页面
+ */
+public class LruPolicy implements EvictionPolicy {
+    private LinkedHashSet<Page> lruList = new LinkedHashSet<Page>();        //表头为最久未使用
+
+    @Override
+    public void pin(Page page) {
+        this.lruList.remove(page);
+    }
+
+    @Override
+    public void unpin(Page page) {
+        this.lruList.remove(page);
+        this.lruList.add(page);
+    }
+
+    @Override
+    public void remove(Page page) {
+        this.lruList.remove(page);
+    }
+
+    @Override
+    public Page victim() {
+        Iterator<Page> it = this.lruList.iterator();
+        if(!it.hasNext())
+            return null;
+        Page page = it.next();
+        it.remove();
+        return page;
+    }
+
+    @Override
+    public int size() {
+        return this.lruList.size();
+    }
+
+    @Override
+    public void setCapacity(int nPage) {
+    }
+
+    @Override
+    public String toString() {
+        return "lru" + this.lruList;
+    }
+}
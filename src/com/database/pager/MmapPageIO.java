@@ -0,0 +1,175 @@
+package com.database.pager;
+
+import com.database.global.PagerConfig;
+import com.database.global.SpaceAllocation;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 基于内存映射的页面读写
+ * 文件按 MMAP_SEGMENT_SIZE 分段映射，每段只映射文件中已存在的部分，
+ * 文件变长后在下一次访问时重新映射最后一段。
+ * 映射范围内的读写直接访问映射内存，超出文件末尾的写入通过 FileChannel 追加。
+ */
+public class MmapPageIO implements PageIO {
+    private String path;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private List<MappedByteBuffer> segments;        //下标为段号，未映射的段为null
+    private long fileSize;
+    private int segmentSize;
+
+    public MmapPageIO(String path) {
+        this.path = path;
+        this.segmentSize = PagerConfig.MMAP_SEGMENT_SIZE;
+        if(this.segmentSize % SpaceAllocation.PAGE_SIZE != 0)
+            this.segmentSize = (this.segmentSize / SpaceAllocation.PAGE_SIZE + 1) * SpaceAllocation.PAGE_SIZE;
+        this.segments = new ArrayList<MappedByteBuffer>();
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if(this.channel == null){
+            this.raf = new RandomAccessFile(this.path, "rw");
+            this.channel = this.raf.getChannel();
+            this.fileSize = this.channel.size();
+        }
+        return this.channel;
+    }
+
+    /**
+     * 获取包含 pos 处一个完整页面的映射段，页面不在文件范围内时返回null
+     */
+    private MappedByteBuffer getSegment(long pos) throws IOException {
+        FileChannel fc = getChannel();
+        if(pos + SpaceAllocation.PAGE_SIZE > this.fileSize)
+            return null;
+
+        int index = (int)(pos / this.segmentSize);
+        long start = (long)index * this.segmentSize;
+        while(this.segments.size() <= index)
+            this.segments.add(null);
+
+        MappedByteBuffer segment = this.segments.get(index);
+        if(segment == null || start + segment.capacity() < pos + SpaceAllocation.PAGE_SIZE){
+            long size = Math.min(this.segmentSize, this.fileSize - start);
+            segment = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+            this.segments.set(index, segment);
+        }
+        return segment;
+    }
+
+    @Override
+    public synchronized void read(int pgno, ByteBuffer data) throws IOException {
+        long pos = (long)(pgno - 1) * SpaceAllocation.PAGE_SIZE;
+        MappedByteBuffer segment = getSegment(pos);
+        if(segment == null){
+            while(data.hasRemaining())
+                data.put((byte)0);
+            return;
+        }
+        ByteBuffer buf = segment.duplicate();
+        buf.position((int)(pos % this.segmentSize));
+        buf.limit(buf.position() + data.remaining());
+        data.put(buf);
+    }
+
+    @Override
+    public synchronized void read(int firstPgno, ByteBuffer[] pages) throws IOException {
+        //映射内存中不需要系统调用，逐页拷贝即可
+        for(int i = 0; i < pages.length; i++)
+            read(firstPgno + i, pages[i]);
+    }
+
+    @Override
+    public synchronized void write(int pgno, ByteBuffer data) throws IOException {
+        long pos = (long)(pgno - 1) * SpaceAllocation.PAGE_SIZE;
+        MappedByteBuffer segment = getSegment(pos);
+        if(segment != null){
+            ByteBuffer buf = segment.duplicate();
+            buf.position((int)(pos % this.segmentSize));
+            buf.put(data);
+            return;
+        }
+        //超出文件末尾，通过 channel 写入，文件变长
+        long end = pos + data.remaining();
+        while(data.hasRemaining())
+            pos += this.channel.write(data, pos);
+        this.fileSize = Math.max(this.fileSize, end);
+    }
+
+    @Override
+    public synchronized void write(int firstPgno, ByteBuffer[] pages) throws IOException {
+        long pos = (long)(firstPgno - 1) * SpaceAllocation.PAGE_SIZE;
+        int i = 0;
+        //映射范围内的页面直接拷贝到映射内存
+        for(; i < pages.length; i++, pos += SpaceAllocation.PAGE_SIZE){
+            MappedByteBuffer segment = getSegment(pos);
+            if(segment == null)
+                break;
+            ByteBuffer buf = segment.duplicate();
+            buf.position((int)(pos % this.segmentSize));
+            buf.put(pages[i]);
+        }
+        if(i == pages.length)
+            return;
+        //其余页面超出文件末尾，一次聚集写入
+        ByteBuffer[] rest = Arrays.copyOfRange(pages, i, pages.length);
+        long remaining = 0;
+        for(ByteBuffer page : rest)
+            remaining += page.remaining();
+        long end = pos + remaining;
+        this.channel.position(pos);
+        while(remaining > 0)
+            remaining -= this.channel.write(rest);
+        this.fileSize = Math.max(this.fileSize, end);
+    }
+
+    @Override
+    public synchronized int getPageCount() throws IOException {
+        getChannel();
+        return (int)(this.fileSize / SpaceAllocation.PAGE_SIZE);
+    }
+
+    @Override
+    public synchronized void truncate(int nPage) throws IOException {
+        long size = (long)nPage * SpaceAllocation.PAGE_SIZE;
+        FileChannel fc = getChannel();
+        if(size >= this.fileSize)
+            return;
+        //丢弃被截断部分的映射
+        int first = (int)(size / this.segmentSize);
+        for(int i = first; i < this.segments.size(); i++)
+            this.segments.set(i, null);
+        fc.truncate(size);
+        this.fileSize = size;
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        for(MappedByteBuffer segment : this.segments){
+            if(segment != null)
+                segment.force();
+        }
+        if(this.channel != null)
+            this.channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(this.channel != null){
+            sync();
+            this.segments.clear();
+            this.channel.close();
+            this.raf.close();
+            this.channel = null;
+            this.raf = null;
+        }
+    }
+}
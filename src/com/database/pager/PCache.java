@@ -1,180 +1,411 @@
 package com.database.pager;
 
+import com.database.global.PagerConfig;
 import com.database.global.SpaceAllocation;
 
+import java.nio.ByteBuffer;
 import java.util.*;
-
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 页面缓存
+ * 页表按页号分成若干分片，每个分片有自己的锁、哈希表、置换策略和空闲页面，容量平均分配，
+ * 不同分片上的 fetch/pin/unpin 可以由多个线程并行执行。
+ * 页面用 nRef 计数被 pin 的次数，只有 nRef 为0的页面进入置换策略，被 pin 的页面不会被回收。
+ * 脏页面集合只由持有 Pager 锁的写操作修改。
+ */
 public class PCache{
-    private Page[] cacheSpace;
-    private List<Page> dirtyPgs;
-    private List<Page> lruList;              //size: nRecyclable
-    private List<Page> freePgs;
-    private List<List<Page>> apHash;        //维护使用页面的哈希表
-    private int nHash;                      //default：10
-    private int cacheSize ;                 //分配空间的大小
-    private int nMaxPage;                   //最大页面
+    private static final int PAGE_OVERHEAD = 200;  //每个缓存页面除数据外的大致内存开销（字节）
+    private static final int MIN_SHARD_PAGES = 64;  //每个分片至少容纳的页面数
+
+    /**
+     * 一个分片，所有字段都在 lock 保护下访问
+     */
+    private static class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        PageHash apHash;                    //维护使用页面的哈希表：pgno -> page
+        EvictionPolicy policy;              //页面置换策略，维护可回收的页面
+        List<Page> freePgs = new ArrayList<Page>();     //已分配但未使用的页面
+        int nMaxPage;                       //分片的最大页面数
+        int nCachedPage;
+    }
+
+    private Set<Page> dirtyPgs;             //脏页面，按变脏的先后排列，页面自身的 dirty 标记与之一致
+    private Shard[] shards;
+    private int shardMask;
+    private PageArena arena;                //页面帧的分配器
+    private long cacheSize ;                //缓存空间的大小（字节）
+    private int nMaxPage;                   //最大页面，内存紧张时临时降低
+    private int nNormalPage;                //内存紧张前的最大页面，0表示没有降低
     private int nMinPage;                   //最小页面
     private int maxPinned;                  //最大pinned page
     private int n90pct;                     //缓存数量的百分之九十
     private int maxPgno;                    //cached page 最大页号
-    private int nCachedPage;
-    private int nRecyclable;
-    private boolean underPressure;
+    private volatile boolean underPressure;
+    private volatile boolean starved;       //最近一次缓存已满的 fetch 没有找到干净的可回收页面
+    private volatile long releaseRequest;   //内存紧张时请求释放的字节数，在下一次 fetch 时处理
+    private volatile boolean restoreRequest;    //内存不再紧张，在下一次 fetch 时恢复最大页面
 
     public PCache() {
-        initSpace();
-
         this.maxPinned = 10;
         this.nMinPage = 2;
-        this.n90pct = this.cacheSize*9/10;
-        this.freePgs = new ArrayList<Page>();
-        this.freePgs.addAll(Arrays.asList(this.cacheSpace));
-        this.dirtyPgs = new ArrayList<Page>();
-        this.lruList = new ArrayList<Page>();
-        this.nMaxPage = this.cacheSize;
-        this.underPressure = this.freePgs.size() < this.nMinPage;
-        this.nRecyclable = this.lruList.size();
+        this.dirtyPgs = new LinkedHashSet<Page>();
+        this.arena = new PageArena();
+        initSpace();
+        HeapMonitor.register(this);
     }
 
     /**
-     * 空间初始化
+     * 空间初始化，缓存大小由 PagerConfig.CACHE_SIZE 决定，页面在使用时才分配
      */
     public void initSpace(){
-        this.cacheSize = 100;
-        this.cacheSpace = new Page[cacheSize];
-        for(int i =0 ;i <this.cacheSpace.length; i++){
-            Page page = new Page();
-            page.setData(new byte[SpaceAllocation.PAGE_SIZE]);
-            page.setPgno(i);
-            page.setOverflowPgno(0);
-            page.setSectorSize(SpaceAllocation.SECTOR_SIZE);
-            page.setSize(SpaceAllocation.PAGE_SIZE);
-            page.setOffset(SpaceAllocation.PAGE_SIZE);
-            cacheSpace[i] = page;
-        }
-        this.nHash = 10;
-        this.apHash = new ArrayList<List<Page>>(this.nHash);
-        for(int i = 0; i< this.nHash; i++){
-            this.apHash.add(new ArrayList<Page>());
+        this.cacheSize = PagerConfig.CACHE_SIZE;
+        this.nMaxPage = Math.max(this.nMinPage, (int)(this.cacheSize / getPageBytes()));
+        this.n90pct = this.nMaxPage*9/10;
+        createShards();
+    }
+
+    /**
+     * 按当前的缓存大小建立分片：分片数为2的幂，不超过 CACHE_SHARDS，每个分片至少 MIN_SHARD_PAGES 个页面
+     */
+    private void createShards(){
+        int nShard = 1;
+        while(nShard * 2 <= PagerConfig.CACHE_SHARDS && this.nMaxPage / (nShard * 2) >= MIN_SHARD_PAGES)
+            nShard *= 2;
+        this.shards = new Shard[nShard];
+        this.shardMask = nShard - 1;
+        for(int i = 0; i < nShard; i++){
+            Shard shard = new Shard();
+            shard.nMaxPage = shardCapacity(i);
+            shard.apHash = new PageHash(shard.nMaxPage);
+            shard.policy = newPolicy(PagerConfig.CACHE_POLICY, shard.nMaxPage);
+            this.shards[i] = shard;
         }
     }
 
+    private int shardCapacity(int i){
+        int n = this.shards.length;
+        return Math.max(1, this.nMaxPage / n + (i < this.nMaxPage % n ? 1 : 0));
+    }
+
+    private Shard shardFor(int pgno){
+        return this.shards[(pgno * 0x9E3779B9) & this.shardMask];
+    }
+
     /**
-     * 释放一个页面
+     * @return 一个缓存页面占用的内存（字节）
+     */
+    public static int getPageBytes(){
+        return SpaceAllocation.PAGE_SIZE + PAGE_OVERHEAD;
+    }
+
+    /**
+     * 根据名称创建置换策略：lru、2q、lru-k（k为数字，如lru-2）
+     */
+    public static EvictionPolicy newPolicy(String name, int nPage){
+        if("lru".equalsIgnoreCase(name))
+            return new LruPolicy();
+        if(name != null && name.toLowerCase().startsWith("lru-"))
+            return new LruKPolicy(Integer.parseInt(name.substring(4)), nPage);
+        return new TwoQueuePolicy(nPage);
+    }
+
+    /**
+     * @return 分片数
+     */
+    public int getShardCount(){
+        return this.shards.length;
+    }
+
+    /**
+     * 丢弃缓存中的所有页面，包括脏页面，页面大小改变后按新的页面大小重新分配
+     * 调用时不能有其他线程在使用缓存
+     */
+    public void clear(){
+        this.dirtyPgs.clear();
+        this.arena = new PageArena();
+        this.nNormalPage = 0;
+        this.nMaxPage = Math.max(this.nMinPage, (int)Math.min(Integer.MAX_VALUE, this.cacheSize / getPageBytes()));
+        this.n90pct = this.nMaxPage*9/10;
+        createShards();
+    }
+
+    /**
+     * 释放一个页面：nRef 减一，减到0时页面可以被回收；
+     * 缓存超出容量时直接把干净的页面移出缓存
      */
     public void free(Page page){
-        if(freePgs.contains(page)){
-            return;
-        }
-        if(this.nCachedPage > this.nMaxPage){
-            removeFromHash(page);
-            freePage(page);
-        }else{
-            this.lruList.add(page);
-            this.nRecyclable++;
+        Shard shard = shardFor(page.getPgno());
+        shard.lock.lock();
+        try{
+            if(shard.apHash.get(page.getPgno()) != page){
+                releaseDropped(shard, page);
+                return;
+            }
+            if(page.getnRef() > 1){
+                page.setnRef((short)(page.getnRef() - 1));
+                return;
+            }
+            page.setnRef((short)0);
+            if(shard.nCachedPage > shard.nMaxPage && !isDirtyPage(page)){
+                shard.policy.remove(page);
+                removeFromHash(shard, page);
+                freePage(shard, page);
+            }else{
+                shard.policy.unpin(page);
+            }
+        }finally {
+            shard.lock.unlock();
         }
     }
     /**
      * 释放一个页面
      */
     public void free(int pgno){
-        /**
-         * 日后添加是否创建标记
-         */
-        Page page = fetch(pgno);
-
-        free(page);
+        Page page = lookup(pgno);
+        if(page != null)
+            free(page);
     }
 
 
 
     /**
      * 试图获取指定页号的页面,如果没有获取到，为其分配一个新页面（页号为0）
+     * 返回的页面已被 pin，使用完毕后调用 unpin 或 free
      * @param pgno 要获取的页号
      * @return 获取到的页面，或者重新利用/分配的页面（pgno为0）
      */
     public Page fetch(int pgno){        //日后添加是否创建标记
-        Page page = null;
-        //step 1 查找页面
-        int key = getHashKey(pgno);
-        ArrayList<Page> listInHash = ((ArrayList<Page>)this.apHash.get(key));
-
-        for(int i = 0; i < listInHash.size(); i++){
-            Page temp = listInHash.get(i);
-            if(temp != null && temp.getPgno() == pgno){
-                page = temp;
-                break;
+        if(this.releaseRequest > 0){
+            long nByte;
+            synchronized (this){
+                nByte = this.releaseRequest;
+                this.releaseRequest = 0;
             }
+            if(nByte > 0)
+                releaseMemory(nByte);
+        }else if(this.restoreRequest){
+            this.restoreRequest = false;
+            restoreCacheSize();
         }
-        if(page != null){
-            pin(page);
-            return page;
-        }
-
-        //step 2 get from freeList
-        if(this.freePgs != null && this.freePgs.size() > 0){
-            page = this.freePgs.remove(0);
-            page.reset();
-            page.setPgno(pgno);
-            this.nCachedPage++;
-            ((ArrayList)this.apHash.get(getHashKey(pgno))).add(page);
-            return page;
-        }
+        Shard shard = shardFor(pgno);
+        shard.lock.lock();
+        try{
+            //step 1 查找页面
+            Page page = shard.apHash.get(pgno);
+            if(page != null){
+                pin(shard, page);
+                return page;
+            }
 
-        //step 3 recycle a page
-        if((this.nCachedPage+1) >= this.nMaxPage && lruList != null && lruList.size() > 0){
-            page = lruList.remove(lruList.size()-1);
-            removeFromHash(page);
-            page.reset();
-            pin(page);
-            page.setPgno(pgno);
-            return page;
-        }
+            //step 2 get from freeList
+            if(shard.freePgs.size() > 0){
+                if(this.starved)
+                    this.starved = false;
+                page = shard.freePgs.remove(shard.freePgs.size() - 1);
+                page.reset();
+                return install(shard, pgno, page);
+            }
 
-        //step 3 allocate a new one， pgno is 0
-        page = allocPage();
+            //step 3 缓存已满时 recycle a page，没有可回收的干净页面时仍分配新页面
+            if(shard.nCachedPage >= shard.nMaxPage){
+                page = recycle(shard);
+                this.underPressure = page == null;
+                this.starved = page == null;
+                if(page != null){
+                    page.reset();
+                    return install(shard, pgno, page);
+                }
+            }
 
-        if(page != null ){
-            page.setPgno(pgno);
-            this.nCachedPage++;
-            ((ArrayList)this.apHash.get(getHashKey(pgno))).add(page);
+            //step 4 allocate a new one， pgno is 0
+            page = allocPage();
+            return install(shard, pgno, page);
+        }finally {
+            shard.lock.unlock();
         }
+    }
+
+    private Page install(Shard shard, int pgno, Page page){
+        page.setPgno(pgno);
+        page.setnRef((short)0);
+        shard.nCachedPage++;
+        shard.apHash.put(pgno, page);
+        pin(shard, page);
         return page;
     }
+
     public boolean isDirtyPage(Page page){
-        if(this.dirtyPgs == null || this.dirtyPgs.size()==0)
-            return false;
-        if(this.dirtyPgs.contains(page))
-            return true;
-        else
-            return false;
+        return page.isDirty();
     }
     public void printStatus(){
-        System.out.println("freeList: " + this.freePgs
-                + ", apHash: " + this.apHash
-                + ", lruList: " + this.lruList
-                + ", dirtyList: " + this.dirtyPgs
-        );
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < this.shards.length; i++){
+            Shard shard = this.shards[i];
+            shard.lock.lock();
+            try{
+                sb.append("shard ").append(i)
+                        .append(": freeList: ").append(shard.freePgs)
+                        .append(", apHash: ").append(shard.apHash)
+                        .append(", policy: ").append(shard.policy).append('\n');
+            }finally {
+                shard.lock.unlock();
+            }
+        }
+        System.out.println(sb + "dirtyList: " + this.dirtyPgs);
     }
     /**
      * 为当前对象分配一个新的页面
      * @return 新分配的页面
      */
     public Page allocPage(){
-        return new Page();
+        return new Page(this.arena.alloc());
+    }
+
+    /**
+     * 丢弃一个不再缓存的页面，帧归还给 arena
+     */
+    private void discardPage(Page page){
+        this.arena.free(page.getFrame());
+    }
+
+    public PageArena getArena() {
+        return arena;
+    }
+
+    /**
+     * 从分片的置换策略中取出一个可以重新使用的干净页面，脏页面尚未写回，放回策略中
+     * 调用者持有分片的锁
+     * @return 被置换的页面，已从哈希表中移除；没有时返回null
+     */
+    private Page recycle(Shard shard){
+        int nTry = shard.policy.size();
+        List<Page> dirty = null;
+        Page page = null;
+        while(nTry-- > 0){
+            Page victim = shard.policy.victim();
+            if(victim == null)
+                break;
+            if(!isDirtyPage(victim)){
+                page = victim;
+                break;
+            }
+            if(dirty == null)
+                dirty = new ArrayList<Page>();
+            dirty.add(victim);
+        }
+        if(dirty != null){
+            for(Page p : dirty)
+                shard.policy.unpin(p);
+        }
+        if(page != null)
+            removeFromHash(shard, page);
+        return page;
     }
 
     /**
-     * 日后添加
+     * 设置缓存的最大页面数，缓存变小时立即回收多余的页面
+     * 缓存为空时按新的大小重新划分分片，否则分片数不变，只调整每个分片的容量
      * @param nMaxPage
      */
-    public void setCacheSize(int nMaxPage){
+    public synchronized void setCacheSize(int nMaxPage){
+        this.nNormalPage = 0;
+        this.nMaxPage = Math.max(this.nMinPage, nMaxPage);
+        this.cacheSize = (long)this.nMaxPage * getPageBytes();
+        if(getPageCount() == 0 && getFreeCount() == 0){
+            this.n90pct = this.nMaxPage*9/10;
+            createShards();
+            return;
+        }
+        applyMaxPage();
+    }
+
+    /**
+     * 按 nMaxPage 调整每个分片的容量，回收多余的页面
+     */
+    private void applyMaxPage(){
+        this.n90pct = this.nMaxPage*9/10;
+        for(int i = 0; i < this.shards.length; i++){
+            Shard shard = this.shards[i];
+            shard.lock.lock();
+            try{
+                shard.nMaxPage = shardCapacity(i);
+                shard.apHash.resize(Math.max(shard.nMaxPage, shard.nCachedPage));
+                shard.policy.setCapacity(shard.nMaxPage);
+                resizePages(shard);
+                enforceMaxPage(shard);
+            }finally {
+                shard.lock.unlock();
+            }
+        }
+        compact();
     }
+
     /**
-     * @return cache中页面总数
+     * 堆外模式下把未被 pin 的页面从较空的大块搬到其他大块，使较空的大块可以整块释放
+     * 页面随机置换后每个大块都留有页面，只回收页面不能归还直接内存
+     */
+    private void compact(){
+        if(!this.arena.startCompact())
+            return;
+        try{
+            for(Shard shard : this.shards){
+                shard.lock.lock();
+                try{
+                    for(Page page : shard.apHash.pagesAbove(0)){
+                        if(page.getnRef() == 0)
+                            relocate(page);
+                    }
+                    for(Page page : shard.freePgs)
+                        relocate(page);
+                }finally {
+                    shard.lock.unlock();
+                }
+            }
+        }finally {
+            this.arena.endCompact();
+        }
+    }
+
+    private void relocate(Page page){
+        ByteBuffer frame = this.arena.relocate(page.getFrame());
+        if(frame != null)
+            page.setFrame(frame);
+    }
+
+    /**
+     * 按字节设置缓存大小
+     * @param nByte 缓存可以使用的内存
+     */
+    public void setCacheBytes(long nByte){
+        setCacheSize((int)Math.min(Integer.MAX_VALUE, nByte / getPageBytes()));
+    }
+
+    public long getCacheBytes(){
+        return this.cacheSize;
+    }
+
+    /**
+     * @return 缓存当前的最大页面数，内存紧张时低于 setCacheSize 设置的值
+     */
+    public int getMaxPage(){
+        return this.nMaxPage;
+    }
+    /**
+     * @return cache中页面总数，其他线程正在使用缓存时是近似值
      */
     public int getPageCount(){
-        return this.nCachedPage;
+        int n = 0;
+        for(Shard shard : this.shards)
+            n += shard.nCachedPage;
+        return n;
+    }
+
+    private int getFreeCount(){
+        int n = 0;
+        for(Shard shard : this.shards)
+            n += shard.freePgs.size();
+        return n;
     }
 
     /**
@@ -184,12 +415,26 @@ public class PCache{
     public void  pin(Page page){
         if(page == null)
             return;
-        this.lruList.remove(page);
-        this.nRecyclable--;
+        Shard shard = shardFor(page.getPgno());
+        shard.lock.lock();
+        try{
+            pin(shard, page);
+        }finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private void pin(Shard shard, Page page){
+        short nRef = page.getnRef();
+        if(nRef == 0)
+            shard.policy.pin(page);
+        page.setnRef((short)(nRef + 1));
     }
 
     /**
      *  对应于pcache1Rekey
+     *  newPgno 上已缓存的其他页面先按 drop 丢弃，否则它会被覆盖，所占的帧和 pin 计数随之丢失
+     *  调用者持有 Pager 的锁
      */
     public Page rekey(Page page,int newPgno){
         int oldPgno = page.getPgno();
@@ -197,126 +442,280 @@ public class PCache{
         if(oldPgno == newPgno)
             return page;
 
-        List<Page> cachedPageList = this.apHash.get(getHashKey(oldPgno));
-        cachedPageList.remove(page);
-
-        page.setPgno(newPgno);
-        this.apHash.get(getHashKey(newPgno)).add(page);
+        Shard from = shardFor(oldPgno);
+        from.lock.lock();
+        try{
+            if(from.apHash.get(oldPgno) == page){
+                from.apHash.remove(oldPgno);
+                from.nCachedPage--;
+            }
+            if(page.getnRef() == 0)
+                from.policy.remove(page);
+        }finally {
+            from.lock.unlock();
+        }
 
+        Shard to = shardFor(newPgno);
+        to.lock.lock();
+        try{
+            Page old = to.apHash.get(newPgno);
+            if(old != null && old != page)
+                drop(to, old);
+            page.setPgno(newPgno);
+            to.apHash.put(newPgno, page);
+            to.nCachedPage++;
+            if(page.getnRef() == 0)
+                to.policy.unpin(page);
+        }finally {
+            to.lock.unlock();
+        }
         return page;
     }
+    /**
+     *
+     * @param page 使用完毕的页面，nRef 减到0时放入可回收页面中
+     */
     public void unpin(Page page){
-
+        if(page == null)
+            return;
+        Shard shard = shardFor(page.getPgno());
+        shard.lock.lock();
+        try{
+            if(shard.apHash.get(page.getPgno()) != page){
+                releaseDropped(shard, page);
+                return;
+            }
+            short nRef = page.getnRef();
+            if(nRef <= 0)
+                return;
+            page.setnRef((short)(nRef - 1));
+            if(nRef == 1)
+                shard.policy.unpin(page);
+        }finally {
+            shard.lock.unlock();
+        }
+    }
+    /**
+     * @return 最近一次缓存已满的 fetch 没有找到干净的可回收页面
+     */
+    public boolean isStarved() {
+        return starved;
     }
-    public List<Page> getDirtyPgs() {
+
+    /**
+     * 脏页面集合，调用者需要持有 Pager 的锁
+     */
+    public Set<Page> getDirtyPgs() {
         return dirtyPgs;
     }
 
     /**
-     * 如果存放页面的空间不够，对其进行扩容
+     * 获取缓存中指定页号的页面，不改变页面的 pin 状态
+     * @return 不在缓存中时返回null
      */
-    private void resizePages()
+    public Page lookup(int pgno){
+        Shard shard = shardFor(pgno);
+        shard.lock.lock();
+        try{
+            return shard.apHash.get(pgno);
+        }finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * 缓存大小改变后调整空闲页面，分片已分配的页面总数不超过分片的容量
+     */
+    private void resizePages(Shard shard)
     {
-//        int oldPageNum = this.pageNum;
-//        Page[] newPages = new Page[oldPageNum * 2];
-//        for(int i = 0; i< oldPageNum; i++){
-//            newPages[i] = this.pages[i];
-//        }
-//        for(int i = oldPageNum; i < newPages.length; i++){
-//            Page page = new Page();
-//            page.setData(new byte[SpaceAllocation.PAGE_SIZE]);
-//            page.setPgno(i);
-//            page.setSectorSize(SpaceAllocation.SECTOR_SIZE);
-//            page.setSize(SpaceAllocation.PAGE_SIZE);
-//            page.setOffset(SpaceAllocation.PAGE_SIZE);
-//            newPages[i] = page;
-//        }
-//
-//        this.pages = newPages;
-//        this.pageNum = newPages.length;
-    }
-    /**
-     * 紧缩缓存空间（日后添加）
+        int excess = shard.nCachedPage + shard.freePgs.size() - shard.nMaxPage;
+        while(excess-- > 0 && shard.freePgs.size() > 0){
+            discardPage(shard.freePgs.remove(shard.freePgs.size() - 1));
+        }
+    }
+    /**
+     * 紧缩缓存空间：释放所有空闲页面，并把缓存页面数降到 nMaxPage 以内
      */
     public void shrink(){
-
+        for(Shard shard : this.shards){
+            shard.lock.lock();
+            try{
+                for(Page page : shard.freePgs)
+                    discardPage(page);
+                shard.freePgs.clear();
+                enforceMaxPage(shard);
+            }finally {
+                shard.lock.unlock();
+            }
+        }
+        compact();
     }
     /**
-     * 日后添加
+     * 回收可回收的干净页面，直到分片的页面数不超过分片的容量
      */
-    private void enforceMaxPage(){
-
+    private void enforceMaxPage(Shard shard){
+        while(shard.nCachedPage > shard.nMaxPage){
+            Page page = recycle(shard);
+            if(page == null)
+                break;
+            discardPage(page);
+        }
+    }
+    /**
+     * 数据库文件截断为 nPage 个页面时，丢弃缓存中页号大于 nPage 的页面，脏页面不再写回
+     * 调用者持有 Pager 的锁
+     */
+    public void truncate(int nPage){
+        for(Shard shard : this.shards){
+            shard.lock.lock();
+            try{
+                for(Page page : shard.apHash.pagesAbove(nPage))
+                    drop(shard, page);
+            }finally {
+                shard.lock.unlock();
+            }
+        }
     }
+
     /**
-     * 截断数据库文件（日后添加）
+     * 从缓存中丢弃 pgno 对应的页面，脏页面不再写回，用于页面内容已经无效的情况
+     * 页面仍被 pin 时只从哈希表中移除，最后一次 free/unpin 时再归还帧
+     * 调用者持有 Pager 的锁
      */
-    private void truncate(int limit){
+    public void drop(int pgno){
+        Shard shard = shardFor(pgno);
+        shard.lock.lock();
+        try{
+            Page page = shard.apHash.get(pgno);
+            if(page != null)
+                drop(shard, page);
+        }finally {
+            shard.lock.unlock();
+        }
+    }
 
+    private void drop(Shard shard, Page page){
+        makeClean(page);
+        removeFromHash(shard, page);
+        if(page.getnRef() == 0){
+            shard.policy.remove(page);
+            discardPage(page);
+        }
+    }
+
+    /**
+     * 释放一个被 drop 时仍被 pin 的页面（已不在哈希表中）：nRef 减一，最后一次释放时从置换策略中移除并归还帧
+     * 调用者持有分片的锁
+     */
+    private void releaseDropped(Shard shard, Page page){
+        short nRef = page.getnRef();
+        if(nRef <= 0)
+            return;
+        page.setnRef((short)(nRef - 1));
+        if(nRef == 1){
+            shard.policy.remove(page);
+            discardPage(page);
+        }
     }
 
     public void makeDirty(Page page){
         addDirtyPg(page);
     }
     private void addDirtyPg(Page dirtyPage){
-        if(this.dirtyPgs!=null && !this.dirtyPgs.contains(dirtyPage)){
+        if(!dirtyPage.isDirty()){
+            dirtyPage.setDirty(true);
+            dirtyPage.setDirtyTime(System.currentTimeMillis());
             this.dirtyPgs.add(dirtyPage);
         }
     }
     /**
-     * 日后添加
+     * 内存紧张，把缓存的最大页面数降低 nByte 对应的页面数，并立即回收多余的页面
+     * 降低的容量一直保持到 restoreCacheSize，否则缓存很快又会装满
+     * 被 pin 的页面和脏页面不会被释放
+     * @return 实际释放的字节数
      */
-    public void releaseMemory(int nByte){
-
-    }
-    public List<Page> getFreePgs() {
-        return freePgs;
+    public long releaseMemory(long nByte){
+        int nPage = (int)Math.min(Integer.MAX_VALUE, nByte / getPageBytes());
+        if(nPage == 0)
+            return 0;
+        int before = getPageCount() + getFreeCount();
+        synchronized (this){
+            if(this.nNormalPage == 0)
+                this.nNormalPage = this.nMaxPage;
+            this.nMaxPage = Math.max(this.nMinPage, Math.min(this.nMaxPage, before - nPage));
+            for(Shard shard : this.shards){
+                shard.lock.lock();
+                try{
+                    for(Page page : shard.freePgs)
+                        discardPage(page);
+                    shard.freePgs.clear();
+                }finally {
+                    shard.lock.unlock();
+                }
+            }
+            applyMaxPage();
+        }
+        return (long)Math.max(0, before - getPageCount() - getFreeCount()) * getPageBytes();
     }
-    private void removeFromHash(Page page){
-        int key = getHashKey(page.getPgno());
-        List<Page> cached = this.apHash.get(key);
-        cached.remove(page);
-        this.nCachedPage -- ;
+
+    /**
+     * 请求释放内存，可以在其他线程中调用，实际释放在下一次 fetch 时进行
+     */
+    public synchronized void requestRelease(long nByte){
+        this.releaseRequest = Math.max(this.releaseRequest, nByte);
     }
 
-    public void setFreePgs(List<Page> freePgs) {
-        this.freePgs = freePgs;
+    /**
+     * 内存不再紧张，恢复 releaseMemory 之前的最大页面数
+     */
+    public synchronized void restoreCacheSize(){
+        if(this.nNormalPage == 0)
+            return;
+        this.nMaxPage = this.nNormalPage;
+        this.nNormalPage = 0;
+        applyMaxPage();
     }
+
     /**
-     * 日后添加
+     * 请求恢复最大页面数，可以在其他线程中调用，实际恢复在下一次 fetch 时进行
      */
-    public void makeClean(Page page){
+    public void requestRestore(){
+        if(this.nNormalPage != 0)
+            this.restoreRequest = true;
+    }
 
+    /**
+     * @return 是否因内存紧张降低了最大页面数
+     */
+    public boolean isReduced(){
+        return this.nNormalPage != 0;
     }
-    private int getHashKey(int pgno){
-        return pgno % this.apHash.size();
+    private void removeFromHash(Shard shard, Page page){
+        if(shard.apHash.get(page.getPgno()) == page){
+            shard.apHash.remove(page.getPgno());
+            shard.nCachedPage -- ;
+        }
     }
 
     /**
-     * 释放页面缓存
-     * @param page
+     * 页面已写回磁盘，从脏页面中移除
      */
-    private void freePage(Page page){
-        if(allSpaceContains(page)){
-            this.freePgs.add(page);
-            this.underPressure = this.freePgs.size() < this.nMinPage;
-            this.nCachedPage --;
-        }else{
-            page = null;
+    public void makeClean(Page page){
+        if(page.isDirty()){
+            page.setDirty(false);
+            this.dirtyPgs.remove(page);
         }
     }
-
     /**
-     * 判断页面是否是最初分配
-     * @param page
-     * @return
+     * 释放页面缓存
      */
-    public boolean allSpaceContains(Page page){
-        boolean contains = false;
-        for(int i =0; i< this.cacheSize; i++){
-            if(this.cacheSpace[i] == page)
-                return true;
+    private void freePage(Shard shard, Page page){
+        if(shard.nCachedPage + shard.freePgs.size() < shard.nMaxPage){
+            shard.freePgs.add(page);
+        }else{
+            discardPage(page);
         }
-        return contains;
+        this.underPressure = shard.freePgs.size() < this.nMinPage;
     }
 
-}
\ No newline at end of file
+}
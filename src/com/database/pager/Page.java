@@ -8,14 +8,24 @@ import com.database.global.PageType;
 import com.database.global.SpaceAllocation;
 import com.database.global.Utils;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * 页面对象
+ * 页面数据保存在一个页面大小的 ByteBuffer 帧中，缓存中的页面使用 PageArena 分配的堆外帧，
+ * 页面对象只是帧的视图，通过 getInt/putInt 等方法按偏移读写数据
+ *
+ * 记录按 slotted page 组织：头部之后是 cell 指针数组（每个2字节，按 rowid 升序），
+ * 记录内容从页尾向前增长，offset 指向记录区的开始。删除记录留下的空间组成空闲块链表，
+ * 按偏移升序，每个空闲块开头是下一个空闲块的偏移（2字节）和本块大小（2字节），
+ * 不足4字节的碎片只计数，整理页面时回收。插入和删除一条记录只移动指针数组，不重写其他记录
+ *
+ * 记录是变长的，payload 超过 getMaxLocal 时页面中只保存前 getMaxLocal 个字节，
+ * 其余部分由 Pager 写入一串 TABLE_OVERFLOW 页面，cell 的最后4个字节是第一个溢出页的页号
  */
 public class Page {
     //page 1 头
@@ -29,8 +39,8 @@ public class Page {
     private int pPrev;                                  //前一个节点 pgno
     private int pNext;                                  //后一个节点 pgno
     private int overflowPgno;                           //溢出页号
-    private byte nCell;                                 //当前页面中cell的数量
-    private List<Integer> cells;                        //Cell中：rowid
+    private short nCell;                                //当前页面中cell的数量
+    private long modCount;                              //cell 或子结点项最近一次修改时 MOD_CLOCK 的值，B+树结点缓存据此判断解码结果是否过期
     //B+树根页头
     private int head ;                                  //
     private byte order;                                 //
@@ -38,35 +48,64 @@ public class Page {
 
     //其他
     private int size;
-    private byte[] data;
-    private boolean dirty;
-    private short nRef;
+    private ByteBuffer data;                            //页面数据所在的帧，position 和 limit 不使用
+    private volatile boolean dirty;
+    private long dirtyTime;                             //页面变脏的时间（毫秒）
+    private short nRef;                                 //被 pin 的次数，由 PCache 在分片锁内维护
+    private volatile Object extra;                      //使用页面的模块附加的数据（如解码的 B+ 树结点），对应于 PgHdr.pExtra
 
     //数据域。内部结点：存储页号；叶子结点：存储记录
     private int sectorSize;
     private int reserved;                               //页面保留的空间
     private int headerSize;
 
+    private static final byte[] ZERO = new byte[SpaceAllocation.MAX_PAGE_SIZE];
+    private static final int CHILD_ENTRY_SIZE = 8;      //内部结点的一项：关键字和子结点页号各4字节
+    private static final AtomicLong MOD_CLOCK = new AtomicLong();  //所有页面共用的修改计数，产生 modCount
+
+    /**
+     * 创建一个使用堆内帧的页面，用于缓存以外的临时页面
+     */
     public Page(){
-        init();
+        this(ByteBuffer.allocate(SpaceAllocation.PAGE_SIZE));
+    }
+
+    /**
+     * 创建一个以 frame 为数据的页面，frame 的容量为页面大小，原有内容会被清零
+     */
+    public Page(ByteBuffer frame){
+        this.data = frame;
+        reset();
     }
     public void init(){
         this.size = SpaceAllocation.PAGE_SIZE;
-        this.data = new byte[this.size];
         this.sectorSize = SpaceAllocation.SECTOR_SIZE;
         this.reserved = SpaceAllocation.PAGE_RESERVED;
         this.headerSize = SpaceAllocation.PAGE_HEADER_SIZE;
         this.pageType = PageType.TABLE_LEAF;
-        setCells(null);
+        //帧已清零，头部字段的缓存也要清零，重新分配的页面不能带着原来的前后页号
+        this.tableCount = 0;
+        this.pParent = 0;
+        this.pPrev = 0;
+        this.pNext = 0;
+        this.overflowPgno = 0;
+        this.head = 0;
+        this.order = 0;
+        this.maxRowID = 0;
+        this.extra = null;
+        setnCell((short)0);
+        setFirstFreeblock(0);
+        setFragmented(0);
         setPageType((byte)0);
         setPgno(0);
         setOffset(this.size);
     }
 
     //————————————————属性的getter setter————————————————
-    public void setnCell(byte nCell) {
+    public void setnCell(short nCell) {
+        this.modCount = MOD_CLOCK.incrementAndGet();
         this.nCell = nCell;
-        this.data[Position.CELLNUM_IN_PAGE] = this.nCell;
+        this.data.putShort(Position.CELLNUM_IN_PAGE, this.nCell);
     }
 
     public int getMaxRowID() {
@@ -78,7 +117,7 @@ public class Page {
             return;
 
         this.maxRowID = maxRowID;
-        Utils.fillInt(this.maxRowID,this.data,Position.MAX_ROWID_IN_BPLIS_ROOT);
+        this.data.putInt(Position.MAX_ROWID_IN_BPLIS_ROOT, this.maxRowID);
     }
 
     public int getpParent() {
@@ -96,10 +135,30 @@ public class Page {
 //        }
 //        if(this.pParent > 1){
             this.pParent = pParent;
-            Utils.fillInt(this.pParent,this.data,Position.PARENT_PAGE_IN_PAGE);
+            this.data.putInt(Position.PARENT_PAGE_IN_PAGE, this.pParent);
 //        }
     }
 
+    /**
+     * @return 页面的 cell 或子结点项最近一次修改的序号：插入、删除、整理、重写以及从磁盘读入都会改变，只改页面头部时不变
+     * 序号由所有页面共用的计数器产生，页面对象被重新使用后也不会出现之前的值
+     */
+    public long getModCount() {
+        return modCount;
+    }
+
+    /**
+     * 附加数据随页面留在缓存中，页面被置换或重新使用时清空，附加数据的个数因此不超过缓存的页面数
+     * 页面内容是否改变由使用者根据 getModCount 判断
+     */
+    public Object getExtra() {
+        return extra;
+    }
+
+    public void setExtra(Object extra) {
+        this.extra = extra;
+    }
+
     public int getTableCount() {
         return tableCount;
     }
@@ -109,7 +168,7 @@ public class Page {
             return ;
 
         this.tableCount = tableCount;
-        Utils.fillInt(this.tableCount,this.data,Position.TABLE_COUNT_IN_FIRST_PAGE);
+        this.data.putInt(Position.TABLE_COUNT_IN_FIRST_PAGE, this.tableCount);
     }
 
     public int getHead() {
@@ -127,7 +186,7 @@ public class Page {
 //        }
 //        if(head > 1){
             this.head = head;
-            Utils.fillInt(this.head,this.data,Position.HEAD_IN_BPLUS_ROOT);
+            this.data.putInt(Position.HEAD_IN_BPLUS_ROOT, this.head);
 //        }
     }
 
@@ -139,7 +198,9 @@ public class Page {
      * 重置页面内容，全部填充为0，再重新初始化内容
      */
     public void reset(){
-        Arrays.fill(this.data, (byte)0);
+        ByteBuffer buf = this.data.duplicate();
+        buf.clear();
+        buf.put(ZERO, 0, Math.min(ZERO.length, buf.remaining()));
         init();
     }
     public void setpPrev(int pPrev) {
@@ -150,7 +211,7 @@ public class Page {
 //        }
 //        if(this.pgno > 1){
             this.pPrev = pPrev;
-            Utils.fillInt(this.pPrev,this.data,Position.PREV_PAGE_IN_PAGE);
+            this.data.putInt(Position.PREV_PAGE_IN_PAGE, this.pPrev);
 //        }
     }
 
@@ -166,7 +227,7 @@ public class Page {
 //        }
 //        if(this.pgno > 1){
             this.pNext = pNext;
-            Utils.fillInt(this.pNext,this.data,Position.NEXT_PAGE_IN_PAGE);
+            this.data.putInt(Position.NEXT_PAGE_IN_PAGE, this.pNext);
 //        }
     }
 
@@ -182,7 +243,6 @@ public class Page {
                 ", pNext=" + pNext +
                 ", overflowPgno=" + overflowPgno +
                 ", nCell=" + nCell +
-                ", cells=" + cells +
                 ", size=" + size +
                 ", headerSize=" + headerSize +
                 '}';
@@ -194,8 +254,8 @@ public class Page {
 
 
     public void setPageType(byte pageType) {
-        this.data[Position.PGTYPE_IN_PAGE] = pageType;
-        this.pageType =  this.data[Position.PGTYPE_IN_PAGE];
+        this.data.put(Position.PGTYPE_IN_PAGE, pageType);
+        this.pageType = pageType;
     }
 
 
@@ -208,38 +268,351 @@ public class Page {
      * @param order
      */
     public void setOrder(byte order) {
-        this.data[Position.ORDER_IN_BPLUS_ROOT] = order;
-        this.order =  this.data[Position.ORDER_IN_BPLUS_ROOT];
+        this.data.put(Position.ORDER_IN_BPLUS_ROOT, order);
+        this.order = order;
     }
 
-    public byte getnCell() {
+    public short getnCell() {
         return this.nCell;
     }
 
-    public void setCells(List<Integer> cells) {
-        if(cells == null)
-           this.cells = new ArrayList<>();
+    /**
+     * @return 第 index 个 cell 的偏移
+     */
+    public int getCellOffset(int index) {
+        return this.data.getShort(Position.CELL_POINTER_IN_PAGE + index * 2) & 0xFFFF;
+    }
+
+    private void setCellOffset(int index, int cellOffset) {
+        this.data.putShort(Position.CELL_POINTER_IN_PAGE + index * 2, (short)cellOffset);
+    }
+
+    /**
+     * @return 第 index 个 cell 的 rowid
+     */
+    public int getCellRowid(int index) {
+        return this.data.getInt(getCellOffset(index) + Position.ROWID_IN_RECORD);
+    }
+
+    /**
+     * 在指针数组中二分查找 rowid
+     * @return 找到时为下标，否则为 -(插入位置) - 1
+     */
+    public int findCell(int rowid) {
+        int low = 0, high = this.nCell - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int key = getCellRowid(mid);
+            if (key < rowid)
+                low = mid + 1;
+            else if (key > rowid)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return cellOffset 处 cell 的长度：rowid、payload 长度、页面中的 payload，溢出时还有4字节的溢出页号
+     */
+    public int cellSize(int cellOffset) {
+        return cellSize(this.data, cellOffset);
+    }
+
+    /**
+     * @return 记录放入本页面后 cell 的长度，payload 超过 getMaxLocal 时只计页面中的部分和溢出页号
+     */
+    public int cellSize(byte[] record) {
+        int start = Position.PAYLOAD_IN_RECORD;
+        int payload = Utils.loadVarIntFromBytes(record, start);
+        int header = start + Utils.loadVarIntLength(record, start);
+        return payload <= getMaxLocal() ? header + payload : header + getMaxLocal() + 4;
+    }
+
+    private int cellSize(ByteBuffer buf, int cellOffset) {
+        int start = cellOffset + Position.PAYLOAD_IN_RECORD;
+        int payload = Utils.loadVarIntFromBuffer(buf, start);
+        int header = Position.PAYLOAD_IN_RECORD + Utils.loadVarIntLength(buf, start);
+        return payload <= getMaxLocal() ? header + payload : header + getMaxLocal() + 4;
+    }
+
+    /**
+     * @return cellOffset 处 cell 的 payload 长度，包括溢出页中的部分
+     */
+    public int getPayloadSize(int cellOffset) {
+        return getVarInt(cellOffset + Position.PAYLOAD_IN_RECORD);
+    }
+
+    /**
+     * @return cellOffset 处 cell 的第一个溢出页，没有溢出时为0
+     */
+    public int getCellOverflow(int cellOffset) {
+        if (getPayloadSize(cellOffset) <= getMaxLocal())
+            return 0;
+        return this.data.getInt(cellOffset + cellSize(cellOffset) - 4);
+    }
+
+    public void setCellOverflow(int cellOffset, int pgno) {
+        this.data.putInt(cellOffset + cellSize(cellOffset) - 4, pgno);
+    }
+
+    /**
+     * @return 一条记录在页面中最多保存的 payload 字节数，超过的部分放入溢出页，保证一个页面至少能放下4条记录
+     */
+    public int getMaxLocal() {
+        return maxLocal(this.size);
+    }
+
+    public static int maxLocal(int pageSize) {
+        return (pageSize - SpaceAllocation.PAGE_HEADER_SIZE) / 4 - 13;
+    }
+
+    /**
+     * @return 页面是否由 cell 指针数组和记录组成：溢出页、空闲链表主干页和B+树内部结点页都不是
+     */
+    public boolean hasRecords() {
+        byte type = getPageType();
+        return type != PageType.FREELIST_TRUNK && type != PageType.TABLE_OVERFLOW
+                && type != PageType.TABLE_ROOT && type != PageType.TABLE_INTERNAL;
+    }
+
+    /**
+     * @return 内部结点页面中第 index 个子结点的关键字
+     */
+    public int getChildKey(int index) {
+        return this.data.getInt(Position.CHILD_IN_INTERNAL + index * CHILD_ENTRY_SIZE);
+    }
+
+    /**
+     * @return 内部结点页面中第 index 个子结点的页号
+     */
+    public int getChildPgno(int index) {
+        return this.data.getInt(Position.CHILD_IN_INTERNAL + index * CHILD_ENTRY_SIZE + Position.CHILD_PGNO_IN_ENTRY);
+    }
+
+    public void setChildPgno(int index, int pgno) {
+        this.modCount = MOD_CLOCK.incrementAndGet();
+        this.data.putInt(Position.CHILD_IN_INTERNAL + index * CHILD_ENTRY_SIZE + Position.CHILD_PGNO_IN_ENTRY, pgno);
+    }
+
+    /**
+     * @return 一个内部结点页面最多能放下的子结点数
+     */
+    public int getMaxChildren() {
+        return maxChildren(this.size);
+    }
+
+    public static int maxChildren(int pageSize) {
+        return (pageSize - Position.CHILD_IN_INTERNAL) / CHILD_ENTRY_SIZE;
+    }
+
+    /**
+     * 用前 n 个关键字和子结点页号重写内部结点页面，调用者已确认 n 不超过 getMaxChildren
+     */
+    public void fillChildren(int[] keys, int[] pgnos, int n) {
+        setnCell((short)n);
+        setFirstFreeblock(0);
+        setFragmented(0);
+        //offset 指向数据的开始，读入后不会再被当作未加载的页面
+        setOffset(Position.CHILD_IN_INTERNAL);
+        for (int i = 0; i < n; i++) {
+            int entry = Position.CHILD_IN_INTERNAL + i * CHILD_ENTRY_SIZE;
+            this.data.putInt(entry, keys[i]);
+            this.data.putInt(entry + Position.CHILD_PGNO_IN_ENTRY, pgnos[i]);
+        }
+    }
+
+    /**
+     * 读取 offset 处的变长整数
+     */
+    public int getVarInt(int offset) {
+        return Utils.loadVarIntFromBuffer(this.data, offset);
+    }
+
+    /**
+     * @return offset 处的变长整数所占的字节数
+     */
+    public int getVarIntLength(int offset) {
+        return Utils.loadVarIntLength(this.data, offset);
+    }
+
+    /**
+     * 在指针数组的 index 处插入一条记录，空间不够时先整理页面
+     * @return 页面剩余空间不足时返回 false，页面不变
+     */
+    public boolean insertCell(int index, byte[] cell) {
+        int size = cell.length;
+        if (size + 2 > getFreeSpace())
+            return false;
+        int start = allocateSpace(size);
+        putBytes(start, cell);
+        int pointers = Position.CELL_POINTER_IN_PAGE + index * 2;
+        moveBytes(pointers, pointers + 2, (this.nCell - index) * 2);
+        setCellOffset(index, start);
+        setnCell((short)(this.nCell + 1));
+        return true;
+    }
+
+    /**
+     * 删除第 index 个 cell，记录占用的空间放回空闲块链表
+     */
+    public void deleteCell(int index) {
+        int start = getCellOffset(index);
+        int size = cellSize(start);
+        int pointers = Position.CELL_POINTER_IN_PAGE + index * 2;
+        moveBytes(pointers + 2, pointers, (this.nCell - index - 1) * 2);
+        setnCell((short)(this.nCell - 1));
+        freeSpace(start, size);
+    }
+
+    /**
+     * 分配 size 字节的记录空间：先从空闲块中找第一个足够大的，否则从记录区前面的空隙中分配，
+     * 空隙不够时整理页面。调用者已经确认剩余空间足够，并且指针数组还需要2个字节
+     */
+    private int allocateSpace(int size) {
+        int gap = this.offset - (Position.CELL_POINTER_IN_PAGE + this.nCell * 2);
+        if (gap >= 2) {
+            int prev = 0;
+            int block = getFirstFreeblock();
+            while (block != 0) {
+                int next = getShortU(block);
+                int blockSize = getShortU(block + 2);
+                if (blockSize >= size) {
+                    int rest = blockSize - size;
+                    if (rest < 4) {
+                        //剩下的部分太小，不能作为空闲块，记为碎片
+                        if (prev == 0)
+                            setFirstFreeblock(next);
+                        else
+                            putShortU(prev, next);
+                        setFragmented(getFragmented() + rest);
+                        return block;
+                    }
+                    //使用空闲块的后半部分，链表不变
+                    putShortU(block + 2, rest);
+                    return block + rest;
+                }
+                prev = block;
+                block = next;
+            }
+        }
+        if (gap < size + 2)
+            defragment();
+        setOffset(this.offset - size);
+        return this.offset;
+    }
+
+    /**
+     * 释放从 start 开始的 size 字节，与相邻的空闲块合并；紧挨着记录区开始时直接缩小记录区
+     */
+    private void freeSpace(int start, int size) {
+        int prev = 0;
+        int block = getFirstFreeblock();
+        while (block != 0 && block < start) {
+            prev = block;
+            block = getShortU(block);
+        }
+        //与后一个空闲块合并
+        if (block != 0 && start + size == block) {
+            size += getShortU(block + 2);
+            block = getShortU(block);
+        }
+        //与前一个空闲块合并
+        if (prev != 0 && prev + getShortU(prev + 2) == start) {
+            putShortU(prev + 2, getShortU(prev + 2) + size);
+            putShortU(prev, block);
+            return;
+        }
+        if (start == this.offset) {
+            //记录区的第一块，空闲块链表中在它之前的只可能是空的
+            setOffset(start + size);
+            if (prev == 0)
+                setFirstFreeblock(block);
+            else
+                putShortU(prev, block);
+            return;
+        }
+        if (size < 4) {
+            setFragmented(getFragmented() + size);
+            if (prev == 0)
+                setFirstFreeblock(block);
+            else
+                putShortU(prev, block);
+            return;
+        }
+        putShortU(start, block);
+        putShortU(start + 2, size);
+        if (prev == 0)
+            setFirstFreeblock(start);
         else
-            this.cells = cells;
-        this.nCell = (byte)this.cells.size();
-        for(Integer rowid : this.cells){
-            Utils.fillInt(rowid, this.data, Position.CELL_IN_PAGE);
+            putShortU(prev, start);
+    }
+
+    /**
+     * 整理页面：所有记录按指针顺序重新紧密排列到页尾，空闲块和碎片合并到记录区前面的空隙
+     */
+    public void defragment() {
+        byte[] copy = new byte[this.size];
+        getBytes(0, copy, 0, this.size);
+        int end = this.size;
+        for (int i = 0; i < this.nCell; i++) {
+            //cell 的长度从副本中读，页面中该位置可能已被前面搬移的 cell 覆盖
+            int start = getCellOffset(i);
+            int len = cellSize(ByteBuffer.wrap(copy), start);
+            end -= len;
+            putBytes(end, copy, start, len);
+            setCellOffset(i, end);
         }
-        this.data[Position.CELLNUM_IN_PAGE] = this.nCell;
+        setOffset(end);
+        setFirstFreeblock(0);
+        setFragmented(0);
+        this.modCount = MOD_CLOCK.incrementAndGet();
     }
 
     /**
-     * 添加cell
-     * @param rowid
+     * @return 可以用于记录和 cell 指针的空间：记录区前面的空隙、空闲块和碎片
      */
-    public void addCell(int rowid) {
-        if(this.cells == null)
-            this.cells = new ArrayList<>();
-        this.cells.add(rowid);
-        this.nCell = (byte)cells.size();
+    public int getFreeSpace() {
+        int free = this.offset - (Position.CELL_POINTER_IN_PAGE + this.nCell * 2) + getFragmented();
+        for (int block = getFirstFreeblock(); block != 0; block = getShortU(block))
+            free += getShortU(block + 2);
+        return free;
+    }
+
+    public int getFirstFreeblock() {
+        return this.data.getInt(Position.FREEBLOCK_IN_PAGE);
+    }
+
+    private void setFirstFreeblock(int block) {
+        this.data.putInt(Position.FREEBLOCK_IN_PAGE, block);
+    }
+
+    public int getFragmented() {
+        return this.data.getShort(Position.FRAGMENTED_IN_PAGE) & 0xFFFF;
+    }
+
+    private void setFragmented(int nByte) {
+        this.data.putShort(Position.FRAGMENTED_IN_PAGE, (short)nByte);
+    }
+
+    private int getShortU(int offset) {
+        return this.data.getShort(offset) & 0xFFFF;
+    }
 
-        this.data[ Position.CELLNUM_IN_PAGE] = this.nCell;
-        Utils.fillInt(rowid, this.data, Position.CELL_IN_PAGE + this.nCell*4);
+    private void putShortU(int offset, int value) {
+        this.data.putShort(offset, (short)value);
+    }
+
+    /**
+     * 把页面中从 from 开始的 len 个字节移到 to，区域可以重叠
+     */
+    private void moveBytes(int from, int to, int len) {
+        if (len <= 0)
+            return;
+        byte[] tmp = new byte[len];
+        getBytes(from, tmp, 0, len);
+        putBytes(to, tmp);
     }
 
     public int getOffset() {
@@ -257,12 +630,12 @@ public class Page {
 //            return ;
 //        }
         this.overflowPgno = overflowPgno;
-        Utils.fillInt(this.overflowPgno,this.data,Position.OVERFLOWPGNO_IN_PAGE);
+        this.data.putInt(Position.OVERFLOWPGNO_IN_PAGE, this.overflowPgno);
     }
 
     public void setOffset(int offset) {
         this.offset = offset;
-        Utils.fillInt(this.offset,this.data,Position.OFFSET_IN_PAGE);
+        this.data.putInt(Position.OFFSET_IN_PAGE, this.offset);
 
     }
 
@@ -275,80 +648,68 @@ public class Page {
         if(data.length > this.size)
             return ;
 
-        if(data.length == this.size)
-        {
-            for(int i =0 ; i < this.data.length;i++){
-                this.data[i] = data[i];
-            }
-        }else{
-            for(int i =0 ; i < data.length;i++){
-                this.data[i] = data[i];
-            }
-            for(int i = data.length ; i < this.data.length;i++){
-                this.data[i] = (byte) 0;
-            }
-        }
-
+        putBytes(0, data);
+        if(data.length < this.size)
+            putBytes(data.length, ZERO, 0, this.size - data.length);
+        this.modCount = MOD_CLOCK.incrementAndGet();
     }
 
     /**
-     *
-     * @param entryList
+     * 用 entryList 中的记录重写整个页面的记录区，记录按列表顺序放入指针数组
+     * @param entryList rowid 升序的 cell，payload 超过 getMaxLocal 的记录已经拆分到溢出页，为空时清空页面
      */
     public void fillData(List<Map.Entry<Integer, byte[]>> entryList){
-        if(entryList == null || entryList.size() == 0)
-            return ;
-        Map.Entry<Integer, byte[]> entry = null;
-        int usable = getUsable() ;
-        List<Integer> rowidList = new ArrayList<Integer>(entryList.size());
-        int offset = this.size;
-        for(int i = 0;i < entryList.size(); i++){
-            entry = entryList.get(i);
-            rowidList.add(entry.getKey());
-            byte[] data = entry.getValue();
-            Utils.fillBytes(data, this.data, offset - entry.getValue().length);
-            usable -= entry.getValue().length;
-            offset -= entry.getValue().length;
-            if(usable < 0){
-                /**
-                 * 添加溢出页面
-                 */
-            }
+        setnCell((short)0);
+        setFirstFreeblock(0);
+        setFragmented(0);
+        setOffset(this.size);
+        for(int i = 0;entryList != null && i < entryList.size(); i++){
+            //过长的记录已由 Pager 把 payload 的后半部分放入溢出页，这里失败只可能是页面已满
+            if(!insertCell(i, entryList.get(i).getValue()))
+                break;
         }
-        setCells(rowidList);
-        setOffset((short)offset);
     }
 
     /**
-     *  设置指定位置追加数据（有Bug，追加数据后rowid为追加）
-     * @param entry 要添加的数据
+     * 插入一条记录，rowid 已存在时替换原来的记录，只改动这一个 cell
+     * @param entry 要添加的 cell，payload 超过 getMaxLocal 的记录已经拆分到溢出页
+     * @return 页面空间不足时返回 false
      */
-    public byte[] appendData( Map.Entry<Integer, byte[]> entry){
+    public boolean appendData( Map.Entry<Integer, byte[]> entry){
         int rowid = entry.getKey();
         byte[] bytes = entry.getValue();
 
         if(bytes == null || bytes.length == 0)
-            return null;
-        List<Integer> rowidList = new ArrayList();
-        rowidList.add(rowid);
-        int usable = getUsable() - bytes.length;
-        if(usable < 0){
-            /**
-             * 添加溢出页面
-             */
+            return false;
+        int index = findCell(rowid);
+        if(index >= 0){
+            int old = cellSize(getCellOffset(index));
+            if(bytes.length > getFreeSpace() + old)
+                return false;
+            deleteCell(index);
         }else{
-            int start = this.offset - bytes.length;
-            this.data = Utils.fillBytes(bytes, this.data, start);
+            index = -index - 1;
         }
-        setCells(rowidList);
-        setOffset((short)this.offset - bytes.length);
-        return this.data;
+        //过长的记录已由 Pager 放入溢出页，页面已满时由调用者分裂页面
+        return insertCell(index, bytes);
+    }
+
+    /**
+     * 删除 rowid 对应的记录
+     * @return 页面中是否有该记录
+     */
+    public boolean deleteData(int rowid){
+        int index = findCell(rowid);
+        if(index < 0)
+            return false;
+        deleteCell(index);
+        return true;
     }
     /**
-     * @return 当前页面可用空间
+     * @return 当前页面还能放入的一条记录的最大长度，已扣除该记录的 cell 指针
      */
     public int getUsable(){
-        return this.offset - this.headerSize ;
+        return Math.max(0, getFreeSpace() - 2);
     }
 
     public int getSectorSize() {
@@ -367,23 +728,125 @@ public class Page {
         this.size = size;
     }
 
-    public byte[] getData() {
+    /**
+     * @return 页面帧，调用者不能改变其 position 和 limit，需要时使用 getBuffer
+     */
+    public ByteBuffer getFrame() {
         return data;
     }
-    public void setData(byte[] data) {
-        this.data = data;
+
+    /**
+     * 页面数据搬到了新的帧中，只由 PCache 在页面未被 pin 时调用
+     */
+    void setFrame(ByteBuffer frame) {
+        this.data = frame;
+    }
+
+    /**
+     * @return 覆盖整个页面的新缓冲区，position 为0，limit 为页面大小，与页面共享数据
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer buf = this.data.duplicate();
+        buf.clear();
+        buf.limit(this.size);
+        return buf;
+    }
+
+    //————————————————按偏移读写页面数据————————————————
+    public byte getByte(int offset) {
+        return this.data.get(offset);
+    }
+
+    public void putByte(int offset, byte value) {
+        this.data.put(offset, value);
+    }
+
+    public short getShort(int offset) {
+        return this.data.getShort(offset);
+    }
+
+    public void putShort(int offset, short value) {
+        this.data.putShort(offset, value);
+    }
+
+    public int getInt(int offset) {
+        return this.data.getInt(offset);
+    }
+
+    public void putInt(int offset, int value) {
+        this.data.putInt(offset, value);
+    }
+
+    public long getLong(int offset) {
+        return this.data.getLong(offset);
+    }
+
+    public void putLong(int offset, long value) {
+        this.data.putLong(offset, value);
+    }
+
+    /**
+     * 从 offset 开始读取 len 个字节到 dst 的 dstOffset 处
+     */
+    public void getBytes(int offset, byte[] dst, int dstOffset, int len) {
+        ByteBuffer buf = this.data.duplicate();
+        buf.position(offset);
+        buf.get(dst, dstOffset, len);
+    }
+
+    public void putBytes(int offset, byte[] src) {
+        putBytes(offset, src, 0, src.length);
+    }
+
+    public void putBytes(int offset, byte[] src, int srcOffset, int len) {
+        ByteBuffer buf = this.data.duplicate();
+        buf.position(offset);
+        buf.put(src, srcOffset, len);
+    }
+
+    /**
+     * 读取 offset 处长度为 len 的字符串
+     */
+    public String getString(int offset, int len) {
+        byte[] bytes = new byte[len];
+        getBytes(offset, bytes, 0, len);
+        return new String(bytes);
     }
 
     public int getPgno() {
         return pgno;
     }
 
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    public short getnRef() {
+        return nRef;
+    }
+
+    public void setnRef(short nRef) {
+        this.nRef = nRef;
+    }
+
+    public long getDirtyTime() {
+        return dirtyTime;
+    }
+
+    public void setDirtyTime(long dirtyTime) {
+        this.dirtyTime = dirtyTime;
+    }
+
     public void setPgno(int pgno) {
         if(pgno < 1)
             return ;
 
         this.pgno = pgno;
-        Utils.fillInt(this.pgno, this.data, Position.PGNO_IN_PAGE);
+        this.data.putInt(Position.PGNO_IN_PAGE, this.pgno);
     }
 
 }
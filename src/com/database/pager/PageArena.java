@@ -0,0 +1,184 @@
+package com.database.pager;
+
+import com.database.global.PagerConfig;
+import com.database.global.SpaceAllocation;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 页面帧的分配器
+ * 堆外模式下按 ARENA_CHUNK_SIZE 一次分配一大块直接内存，再切分为页面大小的帧，
+ * 这样缓存中的页面数据不在 Java 堆中，GC 不需要扫描和复制它们。
+ * 归还的帧放回所属大块的空闲列表，大块的帧全部归还后整块释放，直接内存在大块被 GC 回收时归还系统。
+ * 分配时优先使用最满的大块，让较空的大块有机会全部归还；页面随机置换时各个大块都会留下少量页面，
+ * 缓存变小后由 PCache 调用 startCompact/relocate/endCompact 把页面从较空的大块中搬走。
+ * PCache 的各个分片共用一个 PageArena，分配和归还是同步的。
+ */
+public class PageArena {
+    /**
+     * 一个大块及其帧的使用情况
+     */
+    private static class Chunk {
+        final ByteBuffer base;
+        final List<ByteBuffer> freeFrames = new ArrayList<ByteBuffer>();    //归还的帧
+        int nCut;                           //已切分的帧数
+        int nUsed;                          //正在使用的帧数
+        boolean evacuate;                   //正在腾空，不再从中分配
+
+        Chunk(ByteBuffer base) {
+            this.base = base;
+        }
+    }
+
+    private boolean offHeap;
+    private int frameSize;
+    private int chunkFrames;                //每个大块包含的帧数
+    private List<Chunk> chunks;             //已分配的大块
+    private Map<ByteBuffer, Chunk> owner;   //帧 -> 所属的大块，按引用比较
+    private Chunk current;                  //正在分配的大块，用满后再选最满的大块
+    private int nFree;                      //空闲的帧（含未切分的）
+
+    public PageArena() {
+        this(PagerConfig.PAGE_ARENA, SpaceAllocation.PAGE_SIZE);
+    }
+
+    public PageArena(boolean offHeap, int frameSize) {
+        this.offHeap = offHeap;
+        this.frameSize = frameSize;
+        this.chunkFrames = Math.max(1, PagerConfig.ARENA_CHUNK_SIZE / frameSize);
+        this.chunks = new ArrayList<Chunk>();
+        this.owner = new IdentityHashMap<ByteBuffer, Chunk>();
+    }
+
+    /**
+     * 分配一个帧，帧的内容是上一次使用时留下的，使用前需要清零
+     */
+    public synchronized ByteBuffer alloc(){
+        if(!this.offHeap)
+            return ByteBuffer.allocate(this.frameSize);
+        Chunk chunk = this.current;
+        if(chunk == null || chunk.evacuate || chunk.nUsed >= this.chunkFrames){
+            chunk = null;
+            for(Chunk c : this.chunks){
+                if(!c.evacuate && c.nUsed < this.chunkFrames && (chunk == null || c.nUsed > chunk.nUsed))
+                    chunk = c;
+            }
+            if(chunk == null){
+                chunk = new Chunk(ByteBuffer.allocateDirect(this.chunkFrames * this.frameSize));
+                this.chunks.add(chunk);
+                this.nFree += this.chunkFrames;
+            }
+            this.current = chunk;
+        }
+        ByteBuffer frame;
+        if(chunk.freeFrames.size() > 0){
+            frame = chunk.freeFrames.remove(chunk.freeFrames.size() - 1);
+        }else{
+            ByteBuffer buf = chunk.base.duplicate();
+            buf.position(chunk.nCut * this.frameSize);
+            buf.limit(buf.position() + this.frameSize);
+            chunk.nCut++;
+            frame = buf.slice();
+            this.owner.put(frame, chunk);
+        }
+        chunk.nUsed++;
+        this.nFree--;
+        return frame;
+    }
+
+    /**
+     * 归还一个不再使用的帧，所属大块的帧全部归还后释放该大块
+     */
+    public synchronized void free(ByteBuffer frame){
+        if(!this.offHeap || frame == null)
+            return;
+        Chunk chunk = this.owner.get(frame);
+        if(chunk == null)
+            return;
+        chunk.nUsed--;
+        this.nFree++;
+        if(chunk.nUsed > 0){
+            chunk.freeFrames.add(frame);
+            return;
+        }
+        for(ByteBuffer f : chunk.freeFrames)
+            this.owner.remove(f);
+        this.owner.remove(frame);
+        this.chunks.remove(chunk);
+        this.nFree -= this.chunkFrames;
+        if(this.current == chunk)
+            this.current = null;
+    }
+
+    /**
+     * 开始紧缩：按使用的帧数从多到少保留足够容纳所有使用中的帧的大块，其余的大块标记为腾空
+     * @return 是否有需要腾空的大块
+     */
+    public synchronized boolean startCompact(){
+        if(!this.offHeap)
+            return false;
+        int nUsed = 0;
+        for(Chunk chunk : this.chunks)
+            nUsed += chunk.nUsed;
+        int nKeep = (nUsed + this.chunkFrames - 1) / this.chunkFrames;
+        if(this.chunks.size() <= nKeep)
+            return false;
+        List<Chunk> sorted = new ArrayList<Chunk>(this.chunks);
+        sorted.sort(new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk c1, Chunk c2) {
+                return Integer.compare(c2.nUsed, c1.nUsed);
+            }
+        });
+        for(int i = nKeep; i < sorted.size(); i++)
+            sorted.get(i).evacuate = true;
+        return true;
+    }
+
+    /**
+     * 帧位于正在腾空的大块中时，把内容复制到其他大块的新帧中并归还原来的帧
+     * 调用者保证期间没有其他线程访问该帧
+     * @return 新的帧，不需要搬动时返回null
+     */
+    public synchronized ByteBuffer relocate(ByteBuffer frame){
+        Chunk chunk = this.owner.get(frame);
+        if(chunk == null || !chunk.evacuate)
+            return null;
+        ByteBuffer to = alloc();
+        ByteBuffer src = frame.duplicate();
+        src.clear();
+        ByteBuffer dst = to.duplicate();
+        dst.clear();
+        dst.put(src);
+        free(frame);
+        return to;
+    }
+
+    /**
+     * 结束紧缩，没有腾空的大块恢复分配
+     */
+    public synchronized void endCompact(){
+        for(Chunk chunk : this.chunks)
+            chunk.evacuate = false;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return 已分配的直接内存（字节）
+     */
+    public synchronized long getReserved(){
+        return (long)this.chunks.size() * this.chunkFrames * this.frameSize;
+    }
+
+    public synchronized int getFreeCount(){
+        return this.nFree;
+    }
+}
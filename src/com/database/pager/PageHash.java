@@ -0,0 +1,154 @@
+package com.database.pager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 页号到页面的哈希表（开放定址，线性探测）
+ * 页号直接存放在 int 数组中，不做装箱；删除时回移后续元素，不留墓碑
+ */
+public class PageHash {
+    private int[] keys;
+    private Page[] values;                  //为null表示空槽
+    private int mask;
+    private int shift;                      //取乘积的高位作为槽号
+    private int size;
+    private int threshold;                  //超过该数量时扩容，装载因子 1/2
+
+    public PageHash(int nPage) {
+        allocate(tableSizeFor(nPage));
+    }
+
+    private void allocate(int capacity){
+        this.keys = new int[capacity];
+        this.values = new Page[capacity];
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        this.threshold = capacity / 2;
+        this.size = 0;
+    }
+
+    private static int tableSizeFor(int nPage){
+        int capacity = 16;
+        while(capacity / 2 < nPage)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private int slot(int pgno){
+        return (pgno * 0x9E3779B9) >>> this.shift;
+    }
+
+    /**
+     * @return 页号对应的页面，不存在时返回null
+     */
+    public Page get(int pgno){
+        int i = slot(pgno);
+        Page page;
+        while((page = this.values[i]) != null){
+            if(this.keys[i] == pgno)
+                return page;
+            i = (i + 1) & this.mask;
+        }
+        return null;
+    }
+
+    /**
+     * 加入或替换页号对应的页面
+     */
+    public void put(int pgno, Page page){
+        int i = slot(pgno);
+        while(this.values[i] != null){
+            if(this.keys[i] == pgno){
+                this.values[i] = page;
+                return;
+            }
+            i = (i + 1) & this.mask;
+        }
+        this.keys[i] = pgno;
+        this.values[i] = page;
+        if(++this.size > this.threshold)
+            resize(this.size);
+    }
+
+    /**
+     * 删除页号对应的页面
+     * @return 被删除的页面，不存在时返回null
+     */
+    public Page remove(int pgno){
+        int i = slot(pgno);
+        Page page;
+        while((page = this.values[i]) != null){
+            if(this.keys[i] == pgno)
+                break;
+            i = (i + 1) & this.mask;
+        }
+        if(page == null)
+            return null;
+
+        //将探测链上后续的元素前移，填补空出的槽
+        int hole = i;
+        i = (i + 1) & this.mask;
+        while(this.values[i] != null){
+            int home = slot(this.keys[i]);
+            if(((i - home) & this.mask) >= ((i - hole) & this.mask)){
+                this.keys[hole] = this.keys[i];
+                this.values[hole] = this.values[i];
+                hole = i;
+            }
+            i = (i + 1) & this.mask;
+        }
+        this.values[hole] = null;
+        this.size--;
+        return page;
+    }
+
+    /**
+     * 按缓存页面数调整表的大小，表中至少能放下 nPage 个页面
+     */
+    public void resize(int nPage){
+        int capacity = tableSizeFor(Math.max(nPage, this.size));
+        if(capacity == this.keys.length)
+            return;
+        int[] oldKeys = this.keys;
+        Page[] oldValues = this.values;
+        allocate(capacity);
+        for(int i = 0; i < oldValues.length; i++){
+            if(oldValues[i] != null)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    /**
+     * @return 页号大于 pgno 的所有页面
+     */
+    public List<Page> pagesAbove(int pgno){
+        List<Page> pages = new ArrayList<Page>();
+        for(int i = 0; i < this.values.length; i++){
+            if(this.values[i] != null && this.keys[i] > pgno)
+                pages.add(this.values[i]);
+        }
+        return pages;
+    }
+
+    public int size(){
+        return this.size;
+    }
+
+    public int capacity(){
+        return this.keys.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for(int i = 0; i < this.values.length; i++){
+            if(this.values[i] != null){
+                if(sb.length() > 1)
+                    sb.append(", ");
+                sb.append(this.keys[i]).append('=').append(this.values[i].getPgno());
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,54 @@
+package com.database.pager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 数据库文件的页面读写接口，Pager 通过它访问磁盘
+ */
+public interface PageIO {
+    /**
+     * 读取一个页面，超出文件末尾的部分填充为0
+     * @param pgno 页号（从1开始）
+     * @param data 读入的目标，从 position 读到 limit，读取后 position 等于 limit
+     */
+    void read(int pgno, ByteBuffer data) throws IOException;
+
+    /**
+     * 一次读取页号连续的一组页面，超出文件末尾的部分填充为0
+     * @param firstPgno 第一个页面的页号
+     * @param pages 每个元素是一个完整页面
+     */
+    void read(int firstPgno, ByteBuffer[] pages) throws IOException;
+
+    /**
+     * 将一个页面写入文件
+     * @param pgno 页号（从1开始）
+     * @param data 页面数据，从 position 写到 limit
+     */
+    void write(int pgno, ByteBuffer data) throws IOException;
+
+    /**
+     * 将页号连续的一组页面一次写入文件
+     * @param firstPgno 第一个页面的页号
+     * @param pages 每个元素是一个完整页面
+     */
+    void write(int firstPgno, ByteBuffer[] pages) throws IOException;
+
+    /**
+     * @return 文件当前包含的页面数
+     */
+    int getPageCount() throws IOException;
+
+    /**
+     * 将文件截断为 nPage 个页面
+     */
+    void truncate(int nPage) throws IOException;
+
+    /**
+     * 将写入的数据刷到磁盘
+     */
+    void sync() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,13 @@
+package com.database.pager;
+
+/**
+ * 增量 vacuum 把页面移到新的页号时的通知
+ * 磁盘上的引用由 Pager 修改，内存中保存页号的结构（如B+树结点中的子页面页号）需要自己更新
+ */
+public interface PageMoveListener {
+    /**
+     * @param from 原来的页号
+     * @param to 新的页号
+     */
+    void pageMoved(int from, int to);
+}
@@ -1,23 +1,47 @@
 package com.database.pager;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import com.database.global.*;
 
 
 public class Pager {
 	private Database database;
-	private File journal;
+	private Wal wal;								//预写日志，不使用时为null
 	private PCache pCache;
+	private PageIO pageIO;							//数据库文件的读写方式
+	private String ioPath;							//pageIO 对应的文件
+	private Checkpointer checkpointer;				//后台写回线程，未开启时为null
+	private ReadAhead readAhead;					//顺序扫描的预读窗口
+	private AtomicInteger nScan;					//正在进行的顺序扫描数
+	private AtomicLong nFetch = new AtomicLong();	//累计 aquirePage 次数，包括缓存命中
+	private final Object ioLock = new Object();		//保护 pageIO 的打开和关闭
+	private ThreadLocal<Snapshot> snapshot = new ThreadLocal<Snapshot>();	//当前线程正在进行的快照读
+	private Map<Long, Page> versions;				//快照读共享的只读页面：帧号<<32 | 页号 -> 页面，帧号0表示数据库文件中的版本
+	private int versionSeq;							//versions 中的页面所属的检查点序号
+	private List<PageMoveListener> moveListeners = new ArrayList<PageMoveListener>();	//vacuum 移动页面时通知
+	private Freelist vacuumList;					//上一次 vacuum 后的空闲链表，空闲链表被其他操作改变时作废
 
-	private int mxPgno;
+	private volatile int mxPgno;
 	private int head;
 	private int tableCount;
 
 	public Pager(Database database) {
 		this.database = database;
-//		this.journal = new File(this.database.getDBName()+"-journal");
 		this.pCache = new PCache();
+		this.readAhead = new ReadAhead();
+		this.nScan = new AtomicInteger();
+		this.versions = new LinkedHashMap<Long, Page>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest) {
+				return size() > PagerConfig.SNAPSHOT_CACHE;
+			}
+		};
+		if(PagerConfig.CHECKPOINT)
+			startCheckpointer();
 	}
 
 	public int getMxPgno() {
@@ -33,6 +57,13 @@ public class Pager {
 		return head;
 	}
 
+	/**
+	 * @return 累计获取页面的次数，不区分是否从磁盘读入
+	 */
+	public long getFetchCount() {
+		return nFetch.get();
+	}
+
 	public void setHead(int head) {
 		this.head = head;
 	}
@@ -45,6 +76,160 @@ public class Pager {
 		this.tableCount = tableCount;
 	}
 
+	/**
+	 * 获取数据库文件的读写对象，数据库文件改变时重新打开
+	 */
+	public PageIO getPageIO(){
+		synchronized (this.ioLock){
+			String path = this.database.getDBFile();
+			if(this.pageIO != null && path.equals(this.ioPath))
+				return this.pageIO;
+			closeIO();
+			if(PagerConfig.IO_MODE == PagerConfig.IO_MMAP)
+				this.pageIO = new MmapPageIO(path);
+			else
+				this.pageIO = new RafPageIO(path);
+			this.ioPath = path;
+			if(PagerConfig.WAL){
+				this.wal = new Wal(path + "-wal");
+				try{
+					this.wal.open();
+				}catch (IOException e){
+					e.printStackTrace();
+					this.wal = null;
+				}
+			}
+			return this.pageIO;
+		}
+	}
+
+	/**
+	 * 预写日志，与数据库文件一起打开，不使用预写日志时返回null
+	 */
+	public Wal getWal(){
+		synchronized (this.ioLock){
+			getPageIO();
+			return this.wal;
+		}
+	}
+
+	/**
+	 * 关闭数据库文件，同时停止后台写回线程
+	 * 使用预写日志时先提交并做一次检查点，日志清空后被删除
+	 */
+	public synchronized void close(){
+		stopCheckpointer();
+		if(this.wal != null){
+			commit();
+			checkpoint();
+		}
+		closeIO();
+	}
+
+	private void closeIO(){
+		synchronized (this.ioLock){
+			if(this.wal != null){
+				try{
+					this.wal.close(this.wal.getFrameCount() == 0);
+				}catch (IOException e){
+					e.printStackTrace();
+				}
+				this.wal = null;
+			}
+			if(this.pageIO == null)
+				return;
+			try{
+				this.pageIO.close();
+			}catch (IOException e){
+				e.printStackTrace();
+			}
+			this.pageIO = null;
+			this.ioPath = null;
+		}
+	}
+
+	/**
+	 * 运行时调整页面缓存的大小
+	 * @param nByte 缓存可以使用的内存（字节）
+	 */
+	public synchronized void setCacheSize(long nByte){
+		this.pCache.setCacheBytes(nByte);
+	}
+
+	/**
+	 * 启动后台写回线程，已经启动时不做任何事
+	 */
+	public synchronized void startCheckpointer(){
+		if(this.checkpointer != null)
+			return;
+		this.checkpointer = new Checkpointer(this);
+		this.checkpointer.start();
+	}
+
+	/**
+	 * 停止后台写回线程，剩余的脏页面由下一次 flush 写回
+	 */
+	public void stopCheckpointer(){
+		Checkpointer c;
+		synchronized (this){
+			c = this.checkpointer;
+			this.checkpointer = null;
+		}
+		//在锁外等待，写回线程结束前可能还需要获取 Pager 的锁
+		if(c != null)
+			c.shutdown();
+	}
+
+	public Checkpointer getCheckpointer(){
+		return this.checkpointer;
+	}
+
+	public PCache getPCache(){
+		return this.pCache;
+	}
+
+	/**
+	 * 设置页面大小，缓存中的页面全部丢弃，调用前应先 flush
+	 * @param pageSize 1KB 到 64KB 之间的2的幂
+	 */
+	public synchronized void setPageSize(int pageSize){
+		if(!SpaceAllocation.isValidPageSize(pageSize)){
+			System.out.println("页面大小必须是1KB到64KB之间的2的幂：" + pageSize);
+			return;
+		}
+		//映射段的大小与页面大小有关，重新打开文件
+		closeIO();
+		SpaceAllocation.PAGE_SIZE = pageSize;
+		this.pCache.clear();
+	}
+
+	/**
+	 * 从数据库文件 page 1 的头部读取页面大小
+	 * @return 页面大小，文件太短或没有记录页面大小时返回0
+	 */
+	public int readPageSize(){
+		RandomAccessFile raf = null;
+		try{
+			raf = new RandomAccessFile(this.database.getDBFile(), "r");
+			//page 1 还没有经过检查点写入数据库文件时，使用日志中记录的页面大小
+			if(raf.length() < Position.PAGE_SIZE_IN_FIRST_PAGE + 4)
+				return PagerConfig.WAL ? Wal.readPageSize(this.database.getDBFile() + "-wal") : 0;
+			raf.seek(Position.PAGE_SIZE_IN_FIRST_PAGE);
+			return raf.readInt();
+		}catch (IOException e){
+			e.printStackTrace();
+			return 0;
+		}finally {
+			if(raf != null){
+				try{
+					raf.close();
+				}catch (IOException e){
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
 	public void writeRootPage(Page page){
 		File dbFile = new File(database.getDBFile());
 		byte[] rootPageData = new byte[SpaceAllocation.PAGE_SIZE];
@@ -73,97 +258,404 @@ public class Pager {
 	/**
 	 * 像指定页面中写入数据，即刷新整个页面数据
 	 * @param page 要写入数据的页号
-	 * @param data	要写入的数据，entry中的byte[]可以通过Record的getBytes方法可以简单得到
+	 * @param data	要写入的数据，entry中的byte[]可以通过Record的getBytes方法可以简单得到，为空时清空页面
 	 */
-	public void writeData(Page page, List<Map.Entry<Integer, byte[]>> data){
-		page.fillData(data);
+	public synchronized void writeData(Page page, List<Map.Entry<Integer, byte[]>> data){
+		List<Integer> oldOverflow = overflowPgnos(page);
+		List<Map.Entry<Integer, byte[]>> cells = new ArrayList<Map.Entry<Integer, byte[]>>(data == null ? 0 : data.size());
+		for(int i = 0; data != null && i < data.size(); i++)
+			cells.add(new AbstractMap.SimpleEntry<Integer, byte[]>(data.get(i).getKey(), toCell(page, data.get(i).getValue())));
+		page.fillData(cells);
+		//页面放不下的 cell 没有写入，它们的溢出页也不再需要
+		for(int i = page.getnCell(); i < cells.size(); i++)
+			freeOverflow(cellOverflow(page, cells.get(i).getValue()));
+		for(int pgno : oldOverflow)
+			freeOverflow(pgno);
 		pCache.makeDirty(page);
 //		pCache.printStatus();
 	}
 
 	/**
-	 * 	提交一个事务，将缓存中的数据写入磁盘
+	 * 用前 n 个关键字和子结点页号重写B+树内部结点页面，页面中只有定长的（关键字，子结点页号），没有记录
+	 * @return 页面放不下 n 个子结点时返回 false，页面不变
+	 */
+	public synchronized boolean writeChildren(Page page, int[] keys, int[] pgnos, int n){
+		if(n > page.getMaxChildren())
+			return false;
+		page.fillChildren(keys, pgnos, n);
+		pCache.makeDirty(page);
+		return true;
+	}
+
+	/**
+	 * 提交一个事务，返回时缓存中的修改已经持久化
+	 * 使用预写日志时，脏页面追加到日志末尾，最后一帧为提交帧，然后等待 fsync；
+	 * fsync 在 Pager 的锁外进行，其间其他线程的提交可以继续追加，由下一次 fsync 一起完成（组提交）。
+	 * 日志超过 WAL_AUTOCHECKPOINT 帧时顺便做一次检查点。
+	 * 不使用预写日志时，脏页面直接写回数据库文件后 fsync
 	 */
 	public void commit(){
+		Wal wal = getWal();
+		long end;
+		synchronized (this){
+			vacuumStep();
+			if(wal == null){
+				flush();
+				try{
+					getPageIO().sync();
+				}catch (IOException e){
+					e.printStackTrace();
+				}
+				return;
+			}
+			end = appendCommit(wal);
+		}
+		if(end < 0)
+			return;
+		try{
+			wal.sync(end);
+		}catch (IOException e){
+			e.printStackTrace();
+			return;
+		}
+		if(PagerConfig.WAL_AUTOCHECKPOINT > 0 && wal.getFrameCount() >= PagerConfig.WAL_AUTOCHECKPOINT)
+			checkpoint();
+	}
+
+	/**
+	 * 使用增量 vacuum 的数据库每次提交前最多移走 VACUUM_STEP 个页面，移动的结果随本次提交写入
+	 */
+	private void vacuumStep(){
+		if(PagerConfig.VACUUM_STEP > 0 && isAutoVacuum() && getFreePageCount() > 0)
+			incrementalVacuum(PagerConfig.VACUUM_STEP);
+	}
+
+	/**
+	 * 把脏页面作为一个事务追加到日志，调用者持有 Pager 的锁
+	 * 没有脏页面但日志中有后台写回的未提交帧时，追加 page 1 作为提交帧
+	 * @return 追加后的日志位置，没有需要提交的内容时返回-1
+	 */
+	private long appendCommit(Wal wal){
+		List<Page> pages = prepareWrite(new ArrayList<Page>(pCache.getDirtyPgs()));
+		Page first = null;
+		if(pages.isEmpty()){
+			if(wal.getFrameCount() == wal.getCommitFrame())
+				return -1;
+			first = aquirePage(1);
+			pages = prepareWrite(Collections.singletonList(first));
+		}
+		try{
+			long end = wal.append(pages, Math.max(1, this.mxPgno));
+			for(Page page : pages)
+				pCache.makeClean(page);
+			return end;
+		}catch (IOException e){
+			e.printStackTrace();
+			return -1;
+		}finally {
+			if(first != null)
+				pCache.unpin(first);
+		}
+	}
+
+	/**
+	 * 检查点：把日志中的页面写回数据库文件，然后清空日志
+	 * 日志中有未提交的帧时不做检查点
+	 */
+	public synchronized void checkpoint(){
+		Wal wal = getWal();
+		if(wal == null)
+			return;
+		try{
+			wal.checkpoint(getPageIO());
+		}catch (IOException e){
+			e.printStackTrace();
+		}
 	}
 	/**
-	 * 读取指定页号对应的页面
+	 * 读取指定页号对应的页面，可以由多个线程同时调用
+	 * 返回的页面已被 pin，使用完毕后调用 freePage
+	 * 页面内容在页面对象的锁内装入，其他线程同时获取同一页面时等待装入完成
 	 * @param pgno	要获取的页面的页号
 	 * @return
 	 */
 	public Page aquirePage(int pgno){
+		this.nFetch.incrementAndGet();
+		Snapshot s = this.snapshot.get();
+		if(s != null)
+			return aquireSnapshotPage(s, pgno);
 		Page page = this.pCache.fetch(pgno);
+		wakeCheckpointer();
+
+		synchronized (page){
+			//脏页面的内容比磁盘上的新，即使还没有记录（如空闲链表主干页）也不能重新读入
+			if(page.getOffset() != SpaceAllocation.PAGE_SIZE || page.isDirty()){
+				if(this.nScan.get() > 0)
+					this.readAhead.onHit(pgno);
+			}else{
+				int window = this.nScan.get() > 0 ? this.readAhead.onMiss(pgno) : 0;
+				if(window > 0)
+					loadPages(pgno, page, window);
+				else
+					loadPage(pgno, page);
+			}
+		}
+		raiseMxPgno(page.getPgno());
+		return page;
+	}
 
-		if(page.getOffset() != SpaceAllocation.PAGE_SIZE){
-			if(page.getPgno() > this.mxPgno)
-				this.mxPgno = page.getPgno();
+	/**
+	 * 开始一次快照读，当前线程之后的 aquirePage 只看到此刻已经提交的内容，不受写者后续修改的影响，
+	 * 也不会被写者阻塞。快照读得到的页面是只读副本，不能修改。
+	 * 可以嵌套调用，每次 beginRead 对应一次 endRead。不使用预写日志时不做任何事，读者直接读共享的页面
+	 */
+	public void beginRead(){
+		Snapshot s = this.snapshot.get();
+		if(s != null){
+			s.enter();
+			return;
+		}
+		Wal wal = getWal();
+		if(wal != null)
+			this.snapshot.set(wal.beginRead());
+	}
+
+	/**
+	 * 结束快照读，所有快照读结束后日志才能做检查点
+	 */
+	public void endRead(){
+		Snapshot s = this.snapshot.get();
+		if(s == null || !s.exit())
+			return;
+		this.snapshot.remove();
+		s.getWal().endRead(s);
+	}
+
+	/**
+	 * 在快照中读取页面：日志中不晚于读标记的最新一帧，没有时读数据库文件
+	 * 帧写入后不再改变，有快照读时数据库文件也不变，所以同一版本的页面可以在所有快照读之间共享
+	 */
+	private Page aquireSnapshotPage(Snapshot s, int pgno){
+		int frame = s.getWal().findFrame(pgno, s.getMark());
+		long key = (long)frame << 32 | pgno;
+		Page page;
+		synchronized (this.versions){
+			//检查点之后帧号重新开始，数据库文件也已改变，之前的版本全部作废
+			if(this.versionSeq != s.getCkptSeq()){
+				this.versions.clear();
+				this.versionSeq = s.getCkptSeq();
+			}
+			page = this.versions.get(key);
+		}
+		if(page != null)
 			return page;
+
+		page = new Page();
+		try{
+			if(frame > 0)
+				s.getWal().readFrame(frame, page.getBuffer());
+			else
+				getPageIO().read(pgno, page.getBuffer());
+		}catch (IOException e){
+			e.printStackTrace();
+		}
+		populatePageObj(page);
+		page.setPgno(pgno);
+		synchronized (this.versions){
+			Page old = this.versions.get(key);
+			if(old != null)
+				return old;
+			this.versions.put(key, page);
 		}
-		page = loadPage(pgno, page);
-		if(page.getPgno() > this.mxPgno)
-			this.mxPgno = page.getPgno();
 		return page;
 	}
-	public Page aquireNewPage(){
+
+	/**
+	 * 释放 aquirePage 得到的页面，快照中的页面不需要释放
+	 */
+	void release(Page page){
+		if(this.snapshot.get() == null)
+			this.pCache.unpin(page);
+	}
+
+	private void raiseMxPgno(int pgno){
+		if(pgno <= this.mxPgno)
+			return;
+		synchronized (this){
+			if(pgno > this.mxPgno)
+				this.mxPgno = pgno;
+		}
+	}
+	/**
+	 * 分配一个新页面，优先重新使用空闲链表中的页面，没有空闲页面时使用 mxPgno + 1
+	 * 新页面内容为空，并立即标记为脏，预读不会再用磁盘上的旧内容覆盖它
+	 */
+	public synchronized Page aquireNewPage(){
+		int pgno = this.mxPgno >= 1 ? allocateFromFreelist() : 0;
+		if(pgno != 0){
+			Page page = this.pCache.fetch(pgno);
+			wakeCheckpointer();
+			synchronized (page){
+				page.reset();
+				page.setPgno(pgno);
+			}
+			pCache.makeDirty(page);
+			return page;
+		}
+
 		Page page = this.pCache.fetch(this.mxPgno + 1);
+		wakeCheckpointer();
 
 		if(page.getOffset() != SpaceAllocation.PAGE_SIZE)
 			return null;
 		this.mxPgno ++;
+		pCache.makeDirty(page);
+		//page 1 记录着最大页号，随新页面一起写回
+		if(this.mxPgno > 1){
+			Page first = aquirePage(1);
+			pCache.makeDirty(first);
+			release(first);
+		}
 		return page;
 	}
+
+	/**
+	 * 从空闲链表中取出一个页面：第一个主干页还记录着叶子页时取最后一个叶子，
+	 * 否则取出主干页本身，下一个主干页成为第一个
+	 * @return 取出的页号，空闲链表为空时返回0
+	 */
+	private int allocateFromFreelist(){
+		Page first = aquirePage(1);
+		try{
+			int trunkPgno = first.getInt(Position.FREELIST_TRUNK_IN_FIRST_PAGE);
+			if(trunkPgno == 0)
+				return 0;
+			this.vacuumList = null;
+			int pgno;
+			Page trunk = aquirePage(trunkPgno);
+			try{
+				int nLeaf = trunk.getShort(Position.LEAF_COUNT_IN_TRUNK);
+				if(nLeaf > 0){
+					pgno = trunk.getInt(Position.LEAF_IN_TRUNK + (nLeaf - 1) * 4);
+					trunk.putShort(Position.LEAF_COUNT_IN_TRUNK, (short)(nLeaf - 1));
+					pCache.makeDirty(trunk);
+				}else{
+					pgno = trunkPgno;
+					first.putInt(Position.FREELIST_TRUNK_IN_FIRST_PAGE, trunk.getInt(Position.NEXT_TRUNK_IN_TRUNK));
+				}
+			}finally {
+				release(trunk);
+			}
+			first.putInt(Position.FREELIST_COUNT_IN_FIRST_PAGE, first.getInt(Position.FREELIST_COUNT_IN_FIRST_PAGE) - 1);
+			pCache.makeDirty(first);
+			return pgno;
+		}finally {
+			release(first);
+		}
+	}
+
+	/**
+	 * 把不再使用的页面加入空闲链表，之后 aquireNewPage 优先重新使用它，数据库文件不会因此变大
+	 * 空闲链表挂在 page 1 头部，每个主干页记录下一个主干页和若干叶子页的页号。
+	 * 第一个主干页未满时页面作为叶子记入其中，叶子页的内容不再写回；否则页面本身成为新的第一个主干页。
+	 * 调用者之后不能再修改该页面，但持有的 pin 仍需用 freePage 释放
+	 * @param pgno 要释放的页号
+	 */
+	public synchronized void dropPage(int pgno){
+		if(pgno <= 1 || pgno > this.mxPgno)
+			return;
+		//页面中的记录不再使用，它们的溢出页一起释放
+		Page dropped = aquirePage(pgno);
+		List<Integer> overflow = overflowPgnos(dropped);
+		release(dropped);
+		for(int ovfl : overflow)
+			freeOverflow(ovfl);
+		this.vacuumList = null;
+		Page first = aquirePage(1);
+		try{
+			int trunkPgno = first.getInt(Position.FREELIST_TRUNK_IN_FIRST_PAGE);
+			Page trunk = trunkPgno == 0 ? null : aquirePage(trunkPgno);
+			try{
+				int nLeaf = trunk == null ? 0 : trunk.getShort(Position.LEAF_COUNT_IN_TRUNK);
+				if(trunk != null && Position.LEAF_IN_TRUNK + (nLeaf + 1) * 4 <= trunk.getSize()){
+					trunk.putInt(Position.LEAF_IN_TRUNK + nLeaf * 4, pgno);
+					trunk.putShort(Position.LEAF_COUNT_IN_TRUNK, (short)(nLeaf + 1));
+					pCache.makeDirty(trunk);
+					Page leaf = pCache.lookup(pgno);
+					if(leaf != null)
+						pCache.makeClean(leaf);
+				}else{
+					Page page = aquirePage(pgno);
+					synchronized (page){
+						page.reset();
+						page.setPgno(pgno);
+						page.setPageType(PageType.FREELIST_TRUNK);
+						//主干页没有记录，offset 指向叶子数组，读入后不会再被当作未加载的页面
+						page.setOffset(Position.LEAF_IN_TRUNK);
+						page.putInt(Position.NEXT_TRUNK_IN_TRUNK, trunkPgno);
+					}
+					pCache.makeDirty(page);
+					release(page);
+					first.putInt(Position.FREELIST_TRUNK_IN_FIRST_PAGE, pgno);
+				}
+			}finally {
+				if(trunk != null)
+					release(trunk);
+			}
+			first.putInt(Position.FREELIST_COUNT_IN_FIRST_PAGE, first.getInt(Position.FREELIST_COUNT_IN_FIRST_PAGE) + 1);
+			pCache.makeDirty(first);
+		}finally {
+			release(first);
+		}
+	}
+
+	/**
+	 * @return 空闲链表中的页面数
+	 */
+	public int getFreePageCount(){
+		if(this.mxPgno < 1)
+			return 0;
+		Page first = aquirePage(1);
+		try{
+			return first.getInt(Position.FREELIST_COUNT_IN_FIRST_PAGE);
+		}finally {
+			release(first);
+		}
+	}
+	/**
+	 * @return 脏页面是否超过缓存的 DIRTY_HIGH_PCT。大量写入而不提交时据此提前提交，
+	 * 否则缓存中没有干净的可回收页面，每次获取新页面都要遍历整个置换队列
+	 */
+	public synchronized boolean isDirtyHigh(){
+		return pCache.getDirtyPgs().size() > pCache.getMaxPage() * PagerConfig.DIRTY_HIGH_PCT / 100;
+	}
+	/**
+	 * 缓存中已经没有干净的可回收页面时唤醒后台写回线程
+	 */
+	private void wakeCheckpointer(){
+		if(this.checkpointer != null && this.pCache.isStarved())
+			this.checkpointer.wake();
+	}
 	/**
 	 * 读取指定页面中的数据
+	 * 在 cell 指针数组中按 rowid 二分查找，只解析找到的这一条记录
 	 * @param pgno 要读取的页号
 	 * @param rowid 要读取的rowid
-	 * @return 指定页面的数据
+	 * @return 指定页面的数据，没有该记录时为null
 	 */
 	public Map.Entry<Integer,String>  readDataByRowid(int pgno, int rowid){
 		if(pgno <= 0 )
 			return null;
-		Map.Entry<Integer,String> entry = null;			//返回的结果
-		Page page = aquirePage(pgno);
-		byte[] data = page.getData();
-		int offset = page.getOffset();
-		if(offset == SpaceAllocation.PAGE_SIZE)
-			return null;
-		int szHdr = Utils.loadIntFromBytes(data, offset+4);
-		int skip = szHdr;
-		int[] types = new int[szHdr - SpaceAllocation.RECORD_HEADER];
-		for(int col = 0 ; col< szHdr - SpaceAllocation.RECORD_HEADER; col++){
-			switch (data[offset + SpaceAllocation.RECORD_HEADER + col]){
-				case DataType.INTEGER:
-					skip += 4;
-					types[col] = DataType.INTEGER;
-					break;
-				case DataType.LONG:
-					skip += 8;
-					types[col] = DataType.LONG;
-					break;
-				case DataType.TINY_INT:
-					skip += 1;
-					types[col] = DataType.TINY_INT;
-					break;
-				case DataType.SMALL_INT:
-					skip += 2;
-					types[col] = DataType.SMALL_INT;
-					break;
-				case DataType.TEXT:
-					skip += 50;
-					types[col] = DataType.TEXT;
-					break;
-			}
-		}
-
-		for(; offset < page.getSize(); offset += skip){
-			if(Utils.loadIntFromBytes(data, offset) == rowid){
-				List<String> cols = null;
-				entry = loadEntryFromBytes(data, szHdr, types, offset);
-				break;
-			}
+		RecordCursor cursor = new RecordCursor(this);
+		try{
+			if(!cursor.open(pgno) || !cursor.seek(rowid))
+				return null;
+			return new AbstractMap.SimpleEntry<Integer, String>(rowid, cursor.toRow());
+		}finally {
+			cursor.close();
 		}
-		return entry;
 	}
+
 	/**
 	 * 读取指定页面中的数据返回记录
 	 * @param pgno 要写入数据的页号
@@ -172,141 +664,284 @@ public class Pager {
 	public List<Map.Entry<Integer, String>> readRecord(int pgno){
 		if(pgno <= 0 )
 			return null;
-		List<String> result = new ArrayList<String>();
-		Page page  = aquirePage(pgno);
-		int offset = page.getOffset();
-		if(offset == page.getSize() || offset <= SpaceAllocation.PAGE_HEADER_SIZE)
-			return null;
-		byte[] data = page.getData();
-		int hdrSz = Utils.loadIntFromBytes(data, offset + 4);
-		int[] types = new int[hdrSz - SpaceAllocation.RECORD_HEADER];
-		int dataSize = 0;
-		for(int i =0; i < hdrSz - SpaceAllocation.RECORD_HEADER; i++){
-			byte type = data[offset+SpaceAllocation.RECORD_HEADER + i];
-			switch(type){
-				case DataType.INTEGER:
-					dataSize += 4;
-					types[i] = DataType.INTEGER;
-					break;
-				case DataType.SMALL_INT:
-					dataSize += 2;
-					types[i] = DataType.SMALL_INT;
-					break;
-				case DataType.TINY_INT:
-					dataSize += 1;
-					types[i] = DataType.TINY_INT;
-					break;
-				case DataType.TEXT:
-					dataSize += 50;
-					types[i] = DataType.TEXT;
-					break;
-				case DataType.LONG:
-					dataSize += 8;
-					types[i] = DataType.LONG;
-					break;
-			}
+		RecordCursor cursor = new RecordCursor(this);
+		try{
+			if(!cursor.open(pgno) || !cursor.first())
+				return null;
+			List<Map.Entry<Integer, String>> list = new ArrayList<Map.Entry<Integer, String>>(cursor.getCount());
+			do{
+				list.add(new AbstractMap.SimpleEntry<Integer, String>(cursor.getRowid(), cursor.toRow()));
+			}while(cursor.next());
+			return list;
+		}finally {
+			cursor.close();
 		}
-		List<Map.Entry<Integer, String>> list = new ArrayList<Map.Entry<Integer, String>>();
+	}
 
-		for(int index = offset; index < page.getSize(); ){
-			Map.Entry<Integer, String> entry = loadEntryFromBytes(data, hdrSz, types, index);
-			list.add(entry);
-			index += hdrSz + dataSize;
+	/**
+	 * 打开一个定位在 pgno 页第一条记录之前的游标，用完后调用 close
+	 */
+	public RecordCursor openCursor(int pgno){
+		RecordCursor cursor = new RecordCursor(this);
+		cursor.open(pgno);
+		return cursor;
+	}
+
+	/**
+	 * 读取页面中 cell 处的一条记录，B+ 树的叶子结点按自己保存的 cell 偏移读取，不再查找指针数组
+	 * @return 各列以逗号连接的字符串
+	 */
+	public String readRow(Page page, int cell){
+		RecordCursor cursor = new RecordCursor(this);
+		try{
+			if(!cursor.open(page.getPgno()) || !cursor.moveToCell(cell))
+				return null;
+			return cursor.toRow();
+		}finally {
+			cursor.close();
 		}
+	}
 
-		return list;
+	/**
+	 * 读取页面中第 index 条记录的完整内容，分裂结点时直接搬移记录，不经过字符串
+	 * @return 与 TableSchema.getBytes 格式相同的记录
+	 */
+	public byte[] readRecordBytes(Page page, int index){
+		return readCell(page, page.getCellOffset(index), null);
 	}
 
-	public String colsToRow(List<String> cols){
-		StringBuilder row = new StringBuilder();
-		for(String col : cols){
-			row.append(col+",");
+	/**
+	 * 读取 cell 处的完整记录，payload 有溢出时依次读入溢出页中的部分
+	 * @param buf 足够大时记录读入其中，否则分配新的数组
+	 * @return 从0开始是与 TableSchema.getBytes 格式相同的记录
+	 */
+	byte[] readCell(Page page, int cell, byte[] buf){
+		int payload = page.getPayloadSize(cell);
+		int header = Position.PAYLOAD_IN_RECORD + page.getVarIntLength(cell + Position.PAYLOAD_IN_RECORD);
+		int local = Math.min(payload, page.getMaxLocal());
+		int end = header + payload;
+		byte[] record = buf != null && buf.length >= end ? buf : new byte[end];
+		page.getBytes(cell, record, 0, header + local);
+		int pos = header + local;
+		int pgno = pos < end ? page.getInt(cell + pos) : 0;
+		int chunk = SpaceAllocation.PAGE_SIZE - SpaceAllocation.PAGE_HEADER_SIZE;
+		while(pos < end && pgno != 0){
+			Page ovfl = aquirePage(pgno);
+			try{
+				int len = Math.min(chunk, end - pos);
+				ovfl.getBytes(SpaceAllocation.PAGE_HEADER_SIZE, record, pos, len);
+				pos += len;
+				pgno = ovfl.getpNext();
+			}finally {
+				release(ovfl);
+			}
 		}
-		return row.substring(0,row.length()-1);
+		return record;
 	}
-	public void appendData(Page page, Map.Entry<Integer, byte[]> data){
-		page.appendData(data);
-		pCache.makeDirty(page);
 
+	/**
+	 * 把一条记录转换为页面中的 cell：payload 不超过 getMaxLocal 时 cell 就是记录本身，
+	 * 否则页面中只保存前 getMaxLocal 个字节，其余部分写入新分配的溢出页，cell 的最后4个字节是第一个溢出页的页号
+	 * @param owner 保存该 cell 的页面
+	 */
+	private byte[] toCell(Page owner, byte[] record){
+		if(record == null || record.length == 0)
+			return record;
+		int payload = Utils.loadVarIntFromBytes(record, Position.PAYLOAD_IN_RECORD);
+		if(payload <= owner.getMaxLocal())
+			return record;
+		int local = Position.PAYLOAD_IN_RECORD + Utils.loadVarIntLength(record, Position.PAYLOAD_IN_RECORD) + owner.getMaxLocal();
+		byte[] cell = new byte[local + 4];
+		System.arraycopy(record, 0, cell, 0, local);
+		Utils.fillInt(writeOverflow(owner.getPgno(), record, local), cell, local);
+		return cell;
+	}
+
+	/**
+	 * 把 record 中从 start 开始的内容依次写入新分配的溢出页
+	 * 溢出页的数据从页头之后开始，pNext 是下一个溢出页，pPrev 是前一个溢出页，
+	 * 第一个溢出页的 pParent 是保存 cell 的页面，vacuum 移动溢出页时据此修改引用它的页号
+	 * @return 第一个溢出页的页号
+	 */
+	private int writeOverflow(int owner, byte[] record, int start){
+		int chunk = SpaceAllocation.PAGE_SIZE - SpaceAllocation.PAGE_HEADER_SIZE;
+		int first = 0;
+		Page prev = null;
+		for(int pos = start; pos < record.length; pos += chunk){
+			Page page = aquireNewPage();
+			synchronized (page){
+				page.setPageType(PageType.TABLE_OVERFLOW);
+				//offset 指向数据的开始，读入后不会再被当作未加载的页面
+				page.setOffset(SpaceAllocation.PAGE_HEADER_SIZE);
+				page.putBytes(SpaceAllocation.PAGE_HEADER_SIZE, record, pos, Math.min(chunk, record.length - pos));
+				if(prev == null){
+					page.setpParent(owner);
+					first = page.getPgno();
+				}else{
+					page.setpPrev(prev.getPgno());
+					prev.setpNext(page.getPgno());
+				}
+			}
+			pCache.makeDirty(page);
+			if(prev != null)
+				release(prev);
+			prev = page;
+		}
+		if(prev != null)
+			release(prev);
+		return first;
+	}
 
+	/**
+	 * @return cell 的第一个溢出页，没有溢出时为0
+	 */
+	private int cellOverflow(Page page, byte[] cell){
+		if(cell == null || Utils.loadVarIntFromBytes(cell, Position.PAYLOAD_IN_RECORD) <= page.getMaxLocal())
+			return 0;
+		return Utils.loadIntFromBytes(cell, cell.length - 4);
 	}
-	public void updateHeader(Page page){
-		pCache.makeDirty(page);
+
+	/**
+	 * @return 页面中所有溢出的 cell 的第一个溢出页
+	 */
+	private List<Integer> overflowPgnos(Page page){
+		List<Integer> pgnos = new ArrayList<Integer>();
+		if(!page.hasRecords())
+			return pgnos;
+		for(int i = 0; i < page.getnCell(); i++){
+			int pgno = page.getCellOverflow(page.getCellOffset(i));
+			if(pgno != 0)
+				pgnos.add(pgno);
+		}
+		return pgnos;
 	}
+
 	/**
-	 * 从指定字节数组中加载一条entry（格式：rowid，行记录String）
-	 * @param data		读取的来源
-	 * @param types		类型数组
-	 * @param hdrSz
-	 * @param start		加载起始位置
-	 * @return 一条记录对应的Entry
-	 */
-	private Map.Entry<Integer, String> loadEntryFromBytes(byte[] data, int hdrSz, int[] types, int start){
-		Map<Integer, String> entry = new HashMap<Integer, String>();
-		List<String> cols = new ArrayList<String>();
-		int colNum = types.length;
-		int rowid = Utils.loadIntFromBytes(data, start);
-		start += hdrSz;
-		for (int i = 0; i < colNum; i++) {
-			switch (types[i]) {
-				case DataType.INTEGER:
-					cols.add(new Integer(Utils.loadIntFromBytes(data, start)).toString());
-					start += 4;
-					break;
-				case DataType.SMALL_INT:
-					cols.add(new Short(Utils.loadShortFromBytes(data, start)).toString());
-					start += 2;
-					break;
-				case DataType.TINY_INT:
-					cols.add(new Byte(data[start]).toString());
-					start += 1;
-					break;
-				case DataType.TEXT:
-					cols.add(Utils.loadStrFromBytes(data, start, 50));
-					start += 50;
-					break;
-				case DataType.LONG:
-					cols.add(new Long(Utils.loadLongFromBytes(data, start)).toString());
-					start += 8;
-					break;
-			}
+	 * 把从 pgno 开始的一串溢出页加入空闲链表
+	 */
+	private void freeOverflow(int pgno){
+		while(pgno != 0){
+			Page ovfl = aquirePage(pgno);
+			int next = ovfl.getpNext();
+			release(ovfl);
+			dropPage(pgno);
+			pgno = next;
 		}
+	}
 
-		entry.put(rowid, colsToRow(cols));
-		return entry.entrySet().iterator().next();
+	/**
+	 * 向页面插入一条记录，rowid 已存在时替换，只改动这一个 cell
+	 * @return 页面空间不足时返回 false
+	 */
+	public synchronized boolean appendData(Page page, Map.Entry<Integer, byte[]> data){
+		int index = page.findCell(data.getKey());
+		int oldOverflow = index >= 0 ? page.getCellOverflow(page.getCellOffset(index)) : 0;
+		byte[] cell = toCell(page, data.getValue());
+		boolean ok = page.appendData(new AbstractMap.SimpleEntry<Integer, byte[]>(data.getKey(), cell));
+		//替换成功时释放原来记录的溢出页，插入失败时释放刚写入的溢出页
+		freeOverflow(ok ? oldOverflow : cellOverflow(page, cell));
+		pCache.makeDirty(page);
+		return ok;
 	}
 
+	/**
+	 * 从页面中删除 rowid 对应的记录，释放的空间由之后的插入重新使用
+	 */
+	public synchronized boolean deleteData(Page page, int rowid){
+		int index = page.findCell(rowid);
+		if(index < 0)
+			return false;
+		int overflow = page.getCellOverflow(page.getCellOffset(index));
+		page.deleteCell(index);
+		freeOverflow(overflow);
+		pCache.makeDirty(page);
+		return true;
+	}
+	public synchronized void updateHeader(Page page){
+		pCache.makeDirty(page);
+	}
 	/**
 	 * 刷新页面，写磁盘
+	 * 脏页面按页号排序后写回，页号连续的页面合并为一次聚集写入，写回后的页面不再是脏页面
 	 */
 	public void flush(){
-		if(this.mxPgno < this.database.getDbSize()){
-			truncate(this.mxPgno);
+		//使用预写日志时不再直接改写数据库文件，flush 即提交
+		if(getWal() != null){
+			commit();
+			return;
 		}
-		RandomAccessFile raf = null;
+		synchronized (this){
+			if(this.mxPgno < this.database.getDbSize()){
+				truncate(this.mxPgno);
+			}
+			if(pCache.getDirtyPgs().isEmpty())
+				return;
+			writePages(new ArrayList<Page>(pCache.getDirtyPgs()));
+		}
+	}
+
+	/**
+	 * 将指定的脏页面写回磁盘，写回后从脏页面中移除
+	 * 使用预写日志时页面作为未提交的帧追加到日志，由下一次提交一起提交
+	 * @param pages 要写回的页面，顺序任意
+	 * @return 实际写回的页面数
+	 */
+	public synchronized int writePages(List<Page> pages){
+		List<Page> dirtyPgs = prepareWrite(pages);
 		try{
-			raf = new RandomAccessFile(this.database.getDBFile(),"rw");
-			for(int i = 0; i < pCache.getDirtyPgs().size(); i++)
-			{
-				List<Page> dirtyPgs = pCache.getDirtyPgs();
-				for(Page page : dirtyPgs){
-					if(page.getPgno() == 1){
-						Utils.fillInt(this.mxPgno, page.getData(), Position.MAX_PGNO_IN_FIRST_PAGE);
-					}
-					raf.seek((page.getPgno()-1)*SpaceAllocation.PAGE_SIZE);
-					raf.write(page.getData());
+			Wal wal = getWal();
+			if(wal != null){
+				if(!dirtyPgs.isEmpty())
+					wal.append(dirtyPgs, 0);
+			}else{
+				PageIO io = getPageIO();
+				int start = 0;
+				while(start < dirtyPgs.size()){
+					int end = start + 1;
+					while(end < dirtyPgs.size() && dirtyPgs.get(end).getPgno() == dirtyPgs.get(end - 1).getPgno() + 1)
+						end++;
+					ByteBuffer[] run = new ByteBuffer[end - start];
+					for(int i = start; i < end; i++)
+						run[i - start] = dirtyPgs.get(i).getBuffer();
+					io.write(dirtyPgs.get(start).getPgno(), run);
+					start = end;
 				}
 			}
 		}catch (IOException e){
 			e.printStackTrace();
-		}finally {
-			try{
-				if(raf != null) raf.close();
-			}catch (IOException e){
-				e.printStackTrace();
-			}
+			return 0;
+		}
+		for(Page page : dirtyPgs)
+			pCache.makeClean(page);
+		return dirtyPgs.size();
+	}
 
+	/**
+	 * 写回前的准备：去掉已经不在缓存中的旧页面，按页号排序，在 page 1 中填入最大页号和页面大小
+	 * @return 需要写回的页面
+	 */
+	private List<Page> prepareWrite(List<Page> pages){
+		List<Page> dirtyPgs = new ArrayList<Page>(pages.size());
+		for(Page page : pages){
+			//已经不在缓存中的旧页面不再写回
+			if(pCache.lookup(page.getPgno()) == page)
+				dirtyPgs.add(page);
+			else
+				pCache.makeClean(page);
 		}
+		Collections.sort(dirtyPgs, new Comparator<Page>() {
+			@Override
+			public int compare(Page p1, Page p2) {
+				return Integer.compare(p1.getPgno(), p2.getPgno());
+			}
+		});
+		for(Page page : dirtyPgs){
+			if(page.getPgno() == 1){
+				page.putInt(Position.MAX_PGNO_IN_FIRST_PAGE, this.mxPgno);
+				page.putInt(Position.PAGE_SIZE_IN_FIRST_PAGE, SpaceAllocation.PAGE_SIZE);
+			}
+		}
+		return dirtyPgs;
 	}
 
 	/**
@@ -318,60 +953,428 @@ public class Pager {
 		if(pgno <= 0)
 			return null;
 
-		RandomAccessFile raf = null;
-
 		try{
-			raf = new RandomAccessFile(this.database.getDBFile(),"rw");
-			raf.seek((pgno-1) * SpaceAllocation.PAGE_SIZE);
-
-			byte[] data = new byte[SpaceAllocation.PAGE_SIZE];
-			raf.read(data, 0 , SpaceAllocation.PAGE_SIZE);
-			newPage.copyData(data);
+			PageIO io = getPageIO();
+			Wal wal = getWal();
+			//日志中有该页面时以日志中最新的一帧为准
+			if(wal == null || !wal.read(pgno, newPage.getBuffer()))
+				io.read(pgno, newPage.getBuffer());
 			populatePageObj(newPage);
-			return newPage;
 		}catch (IOException e){
 			e.printStackTrace();
-		}finally {
-			try{
-				if(raf != null) raf.close();
-			}catch (IOException e){
-				e.printStackTrace();
-			}
 		}
 		return newPage;
 	}
 
+	/**
+	 * 加载 pgno 对应的页面，同时预读其后最多 window 个页号连续、不在缓存中的页面，所有页面一次读入
+	 * 预读的页面不被 pin，可以被置换。调用者持有 newPage 的锁
+	 */
+	private Page loadPages(int pgno, Page newPage, int window){
+		List<Page> pages = new ArrayList<Page>();
+		pages.add(newPage);
+		int nRead = 0;
+		try{
+			PageIO io = getPageIO();
+			int last = Math.min(io.getPageCount(), pgno + Math.min(window, this.pCache.getMaxPage() / 4));
+			for(int p = pgno + 1; p <= last && this.pCache.lookup(p) == null; p++)
+				pages.add(this.pCache.fetch(p));
+			nRead = lockAndRead(pages, 0, pgno, io);
+		}catch (IOException e){
+			e.printStackTrace();
+		}
+		for(int i = 1; i < pages.size(); i++)
+			this.pCache.unpin(pages.get(i));
+		this.readAhead.onPrefetch(pgno + 1, Math.max(0, nRead - 1));
+		return newPage;
+	}
+
+	/**
+	 * 按页号递增的顺序依次锁住 pages[i..]，遇到已经装入或已经变脏的页面时停止，
+	 * 然后把前面锁住的页面一次读入。所有线程都按页号递增的顺序加锁，不会死锁
+	 * @return 读入的页面数
+	 */
+	private int lockAndRead(List<Page> pages, int i, int pgno, PageIO io) throws IOException {
+		if(i < pages.size()){
+			Page page = pages.get(i);
+			synchronized (page){
+				if(i == 0 || page.getOffset() == SpaceAllocation.PAGE_SIZE && !page.isDirty())
+					return lockAndRead(pages, i + 1, pgno, io);
+			}
+		}
+		ByteBuffer[] bufs = new ByteBuffer[i];
+		for(int k = 0; k < i; k++)
+			bufs[k] = pages.get(k).getBuffer();
+		io.read(pgno, bufs);
+		Wal wal = getWal();
+		for(int k = 0; k < i; k++){
+			if(wal != null)
+				wal.read(pgno + k, pages.get(k).getBuffer());
+			populatePageObj(pages.get(k));
+		}
+		return i;
+	}
+
+	/**
+	 * 开始一次顺序扫描，扫描期间未命中的页面会触发预读，必须与 endScan 成对调用
+	 */
+	public void beginScan(){
+		this.nScan.incrementAndGet();
+	}
+
+	public void endScan(){
+		this.nScan.decrementAndGet();
+	}
+
+	public ReadAhead getReadAhead(){
+		return this.readAhead;
+	}
+
 	/**
 	 * 根据page对象中的数据域（有效）对page对象进行初始化
 	 * @param page
 	 */
 	private void populatePageObj(Page page){
-		page.setPgno(Utils.loadIntFromBytes(page.getData(), Position.PGNO_IN_PAGE));
+		page.setPgno(page.getInt(Position.PGNO_IN_PAGE));
 		if(page.getPgno() == 1)
-			page.setTableCount(Utils.loadIntFromBytes(page.getData(), Position.TABLE_COUNT_IN_FIRST_PAGE));
-		page.setPageType(page.getData()[Position.PGTYPE_IN_PAGE]);
-		page.setOffset(Utils.loadIntFromBytes(page.getData(), Position.OFFSET_IN_PAGE));
-		page.setOverflowPgno(Utils.loadIntFromBytes(page.getData(), Position.OVERFLOWPGNO_IN_PAGE));
-		page.setpParent(Utils.loadIntFromBytes(page.getData(), Position.PARENT_PAGE_IN_PAGE));
-		page.setpPrev(Utils.loadIntFromBytes(page.getData(), Position.PREV_PAGE_IN_PAGE));
-		page.setpNext(Utils.loadIntFromBytes(page.getData(), Position.NEXT_PAGE_IN_PAGE));
-		page.setOrder(page.getData()[Position.ORDER_IN_BPLUS_ROOT]);
-		page.setHead(Utils.loadIntFromBytes(page.getData(), Position.HEAD_IN_BPLUS_ROOT));
-		page.setMaxRowID(Utils.loadIntFromBytes(page.getData(), Position.MAX_ROWID_IN_BPLIS_ROOT));
+			page.setTableCount(page.getInt(Position.TABLE_COUNT_IN_FIRST_PAGE));
+		page.setPageType(page.getByte(Position.PGTYPE_IN_PAGE));
+		page.setOffset(page.getInt(Position.OFFSET_IN_PAGE));
+		page.setOverflowPgno(page.getInt(Position.OVERFLOWPGNO_IN_PAGE));
+		page.setpParent(page.getInt(Position.PARENT_PAGE_IN_PAGE));
+		page.setpPrev(page.getInt(Position.PREV_PAGE_IN_PAGE));
+		page.setpNext(page.getInt(Position.NEXT_PAGE_IN_PAGE));
+		page.setOrder(page.getByte(Position.ORDER_IN_BPLUS_ROOT));
+		page.setHead(page.getInt(Position.HEAD_IN_BPLUS_ROOT));
+		page.setMaxRowID(page.getInt(Position.MAX_ROWID_IN_BPLIS_ROOT));
+
+		//空闲链表主干页在 CELLNUM 的位置记录叶子页数，没有 cell
+		if(page.getPageType() == PageType.FREELIST_TRUNK)
+			return;
+		page.setnCell(page.getShort(Position.CELLNUM_IN_PAGE));
+	}
+
+	/**
+	 * 将数据库截断为 nPage 个页面，缓存中更大页号的页面被丢弃
+	 * 不使用预写日志时立即截断文件，否则在下一次检查点时按提交时的页面数截断
+	 * @param nPage 新的页面数
+	 */
+	public synchronized void truncate(int nPage){
+		pCache.truncate(nPage);
+		if(getWal() != null)
+			return;
+		try{
+			PageIO io = getPageIO();
+			if(io.getPageCount() > nPage)
+				io.truncate(nPage);
+		}catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return 数据库是否使用增量 vacuum，记录在 page 1 头部
+	 */
+	public boolean isAutoVacuum(){
+		if(this.mxPgno < 1)
+			return false;
+		Page first = aquirePage(1);
+		try{
+			return first.getByte(Position.AUTOVACUUM_IN_FIRST_PAGE) != 0;
+		}finally {
+			release(first);
+		}
+	}
+
+	/**
+	 * 设置数据库是否使用增量 vacuum，应在创建 page 1 之后、建表之前设置
+	 */
+	public synchronized void setAutoVacuum(boolean autoVacuum){
+		Page first = aquirePage(1);
+		first.putByte(Position.AUTOVACUUM_IN_FIRST_PAGE, (byte)(autoVacuum ? 1 : 0));
+		pCache.makeDirty(first);
+		release(first);
+	}
+
+	/**
+	 * 增量 vacuum：最多把文件末尾的 nStep 个页面移走，然后截断文件
+	 * 末尾的页面是空闲页面时直接去掉；否则把它移到页号最小的空闲页面，并修改引用它的
+	 * 父页面、子页面、前后叶子、B+树根页的头指针和 page 1 中的根页号，溢出页则修改前后的溢出页或保存 cell 的页面。
+	 * 每次调用的工作量由 nStep 限定，可以在每次提交后做一小步，不会造成长时间停顿
+	 * @param nStep 最多去掉的页面数
+	 * @return 实际去掉的页面数
+	 */
+	public synchronized int incrementalVacuum(int nStep){
+		if(this.mxPgno <= 1 || getFreePageCount() == 0)
+			return 0;
+		//空闲链表在两次 vacuum 之间没有改变时沿用上一次读出的结构，每次调用的工作量与空闲页面数无关
+		Freelist free = this.vacuumList != null ? this.vacuumList : readFreelist();
+		this.vacuumList = null;
+		int nRemoved = 0;
+		while(nRemoved < nStep && !free.pgnos.isEmpty() && this.mxPgno > 1){
+			int last = this.mxPgno;
+			if(free.pgnos.contains(last)){
+				free.remove(last);
+			}else{
+				//移到最小的空闲页面，它在截断后仍然保留，页面不会被再次移动
+				int to = free.pgnos.first();
+				free.remove(to);
+				movePage(last, to);
+			}
+			pCache.drop(last);
+			this.mxPgno--;
+			nRemoved++;
+		}
+		writeFreelist(free);
+		free.changed.clear();
+		this.vacuumList = free;
+		truncate(this.mxPgno);
+		return nRemoved;
+	}
+
+	/**
+	 * 内存中的空闲链表，vacuum 时从中取出页面，只重写内容改变了的主干页
+	 */
+	private static class Freelist {
+		TreeSet<Integer> pgnos = new TreeSet<Integer>();				//所有空闲页面，包括主干页
+		List<Integer> trunks = new ArrayList<Integer>();				//主干页，按链表顺序
+		Map<Integer, List<Integer>> leaves = new HashMap<Integer, List<Integer>>();	//每个主干页记录的叶子
+		Map<Integer, Integer> owner = new HashMap<Integer, Integer>();	//叶子所在的主干页
+		Set<Integer> changed = new HashSet<Integer>();					//需要重写的主干页
+
+		void remove(int pgno){
+			this.pgnos.remove(pgno);
+			Integer trunk = this.owner.remove(pgno);
+			if(trunk != null){
+				this.leaves.get(trunk).remove(Integer.valueOf(pgno));
+				this.changed.add(trunk);
+				return;
+			}
+			//去掉主干页：由它的最后一个叶子接替，没有叶子时从链表中摘除，前一个主干页的 next 随之改变
+			int index = this.trunks.indexOf(pgno);
+			List<Integer> rest = this.leaves.remove(pgno);
+			this.changed.remove(pgno);
+			if(rest.isEmpty()){
+				this.trunks.remove(index);
+				if(index > 0)
+					this.changed.add(this.trunks.get(index - 1));
+				return;
+			}
+			int next = rest.remove(rest.size() - 1);
+			this.trunks.set(index, next);
+			this.leaves.put(next, rest);
+			this.owner.remove(next);
+			for(Integer leaf : rest)
+				this.owner.put(leaf, next);
+			this.changed.add(next);
+			if(index > 0)
+				this.changed.add(this.trunks.get(index - 1));
+		}
+	}
+
+	private Freelist readFreelist(){
+		Freelist free = new Freelist();
+		Page first = aquirePage(1);
+		int trunkPgno = first.getInt(Position.FREELIST_TRUNK_IN_FIRST_PAGE);
+		release(first);
+		while(trunkPgno != 0 && free.pgnos.add(trunkPgno)){
+			Page trunk = aquirePage(trunkPgno);
+			int nLeaf = trunk.getShort(Position.LEAF_COUNT_IN_TRUNK);
+			List<Integer> leaves = new ArrayList<Integer>(nLeaf);
+			for(int i = 0; i < nLeaf; i++){
+				int leaf = trunk.getInt(Position.LEAF_IN_TRUNK + i * 4);
+				leaves.add(leaf);
+				free.pgnos.add(leaf);
+				free.owner.put(leaf, trunkPgno);
+			}
+			free.trunks.add(trunkPgno);
+			free.leaves.put(trunkPgno, leaves);
+			trunkPgno = trunk.getInt(Position.NEXT_TRUNK_IN_TRUNK);
+			release(trunk);
+		}
+		return free;
+	}
+
+	/**
+	 * 重写内容改变了的主干页和 page 1 中的空闲链表头部
+	 */
+	private void writeFreelist(Freelist free){
+		for(int t = 0; t < free.trunks.size(); t++){
+			int pgno = free.trunks.get(t);
+			if(!free.changed.contains(pgno))
+				continue;
+			List<Integer> leaves = free.leaves.get(pgno);
+			Page trunk = aquirePage(pgno);
+			synchronized (trunk){
+				trunk.reset();
+				trunk.setPgno(pgno);
+				trunk.setPageType(PageType.FREELIST_TRUNK);
+				trunk.setOffset(Position.LEAF_IN_TRUNK);
+				trunk.putInt(Position.NEXT_TRUNK_IN_TRUNK, t + 1 < free.trunks.size() ? free.trunks.get(t + 1) : 0);
+				for(int k = 0; k < leaves.size(); k++)
+					trunk.putInt(Position.LEAF_IN_TRUNK + k * 4, leaves.get(k));
+				trunk.putShort(Position.LEAF_COUNT_IN_TRUNK, (short)leaves.size());
+			}
+			pCache.makeDirty(trunk);
+			release(trunk);
+		}
+		Page first = aquirePage(1);
+		first.putInt(Position.FREELIST_TRUNK_IN_FIRST_PAGE, free.trunks.isEmpty() ? 0 : free.trunks.get(0));
+		first.putInt(Position.FREELIST_COUNT_IN_FIRST_PAGE, free.pgnos.size());
+		pCache.makeDirty(first);
+		release(first);
+	}
+
+	/**
+	 * 把页面 from 的内容移到空闲页面 to，缓存中的页面对象不变，只改变页号，
+	 * 内存中引用该页面对象的B+树结点因此仍然有效；磁盘上引用 from 的页号改为 to
+	 */
+	private void movePage(int from, int to){
+		Page page = aquirePage(from);
+		synchronized (page){			//rekey 丢弃 to 上原有的页面
+			pCache.rekey(page, to);
+			page.setPgno(to);
+		}
+		pCache.makeDirty(page);
+
+		if(page.getPageType() == PageType.TABLE_OVERFLOW)
+			relinkOverflow(page, from, to);
+		else
+			relinkTreePage(page, from, to);
+		release(page);
+		for(PageMoveListener listener : this.moveListeners)
+			listener.pageMoved(from, to);
+	}
+
+	/**
+	 * 溢出页移到 to 后，修改前一个溢出页（第一个溢出页则是保存 cell 的页面）和后一个溢出页中的页号
+	 */
+	private void relinkOverflow(Page page, int from, int to){
+		if(page.getpPrev() != 0){
+			Page prev = aquirePage(page.getpPrev());
+			prev.setpNext(to);
+			pCache.makeDirty(prev);
+			release(prev);
+		}else{
+			Page owner = aquirePage(page.getpParent());
+			for(int i = 0; i < owner.getnCell(); i++){
+				int cell = owner.getCellOffset(i);
+				if(owner.getCellOverflow(cell) == from){
+					owner.setCellOverflow(cell, to);
+					pCache.makeDirty(owner);
+				}
+			}
+			release(owner);
+		}
+		if(page.getpNext() != 0){
+			Page next = aquirePage(page.getpNext());
+			next.setpPrev(to);
+			pCache.makeDirty(next);
+			release(next);
+		}
+	}
+
+	/**
+	 * B+树页面移到 to 后，修改父页面、子页面、前后叶子、根页的头指针、page 1 和溢出页中的页号
+	 */
+	private void relinkTreePage(Page page, int from, int to){
+		byte type = page.getPageType();
+		int parent = page.getpParent();
+		if(parent != 0){
+			Page p = aquirePage(parent);
+			replaceChild(p, from, to);
+			release(p);
+		}else{
+			//没有父页面的是B+树根页，page 1 中以根页号为 rowid 记录表名和建表语句
+			Page first = aquirePage(1);
+			replaceRowid(first, from, to);
+			release(first);
+		}
+		if(page.getHead() == from && parent == 0)
+			page.setHead(to);
 
-		byte nCell = page.getData()[Position.CELLNUM_IN_PAGE];
-		List<Integer> cells = new ArrayList<>();
-		for(int i = 0 ; i<nCell; i++){
-			page.addCell(Utils.loadIntFromBytes(page.getData(), Position.CELL_IN_PAGE + (i*4) ));
+		if(type == PageType.TABLE_ROOT || type == PageType.TABLE_INTERNAL){
+			for(int child : childPgnos(page)){
+				Page c = aquirePage(child);
+				c.setpParent(to);
+				pCache.makeDirty(c);
+				release(c);
+			}
+		}else if(type == PageType.TABLE_LEAF){
+			if(page.getpPrev() != 0){
+				Page prev = aquirePage(page.getpPrev());
+				prev.setpNext(to);
+				pCache.makeDirty(prev);
+				release(prev);
+			}else if(parent != 0){
+				//第一个叶子，根页记录着它的页号
+				Page root = aquirePage(parent);
+				while(root.getpParent() != 0){
+					Page up = aquirePage(root.getpParent());
+					release(root);
+					root = up;
+				}
+				if(root.getHead() == from){
+					root.setHead(to);
+					pCache.makeDirty(root);
+				}
+				release(root);
+			}
+			if(page.getpNext() != 0){
+				Page next = aquirePage(page.getpNext());
+				next.setpPrev(to);
+				pCache.makeDirty(next);
+				release(next);
+			}
+		}
+		for(int pgno : overflowPgnos(page)){
+			Page ovfl = aquirePage(pgno);
+			ovfl.setpParent(to);
+			pCache.makeDirty(ovfl);
+			release(ovfl);
 		}
 	}
 
 	/**
-	 *
-	 * @param nPage 新的页面大小
+	 * @return 内部结点所有子页面的页号
 	 */
-	public void truncate(int nPage){
+	private List<Integer> childPgnos(Page page){
+		List<Integer> children = new ArrayList<Integer>();
+		for(int i = 0; i < page.getnCell(); i++)
+			children.add(page.getChildPgno(i));
+		return children;
+	}
 
+	/**
+	 * 把内部结点中指向 from 的子页面页号改为 to
+	 */
+	private void replaceChild(Page page, int from, int to){
+		for(int i = 0; i < page.getnCell(); i++){
+			if(page.getChildPgno(i) == from){
+				page.setChildPgno(i, to);
+				pCache.makeDirty(page);
+			}
+		}
+	}
+
+	/**
+	 * 把 page 1 中 rowid 为 from 的记录的 rowid 改为 to，记录重新按 rowid 排序插入
+	 */
+	private void replaceRowid(Page first, int from, int to){
+		int index = first.findCell(from);
+		if(index < 0)
+			return;
+		int cell = first.getCellOffset(index);
+		byte[] record = new byte[first.cellSize(cell)];
+		first.getBytes(cell, record, 0, record.length);
+		first.deleteCell(index);
+		ByteBuffer.wrap(record).putInt(Position.ROWID_IN_RECORD, to);
+		first.appendData(new AbstractMap.SimpleEntry<Integer, byte[]>(to, record));
+		pCache.makeDirty(first);
+	}
+
+	public void addPageMoveListener(PageMoveListener listener){
+		this.moveListeners.add(listener);
 	}
 
 	/**
@@ -385,7 +1388,20 @@ public class Pager {
 //		this.mxPgno ++;
 //		return page;
 //	}
+	/**
+	 * 释放一次 aquirePage 得到的页面，nRef 减到0后页面可以被置换
+	 */
 	public void freePage(int pgno){
+		if(this.snapshot.get() != null)
+			return;
 		pCache.free(pgno);
 	}
+	/**
+	 * 同 freePage(int)，调用者还持有 aquirePage 返回的页面时省去一次按页号的查找
+	 */
+	public void freePage(Page page){
+		if(this.snapshot.get() != null)
+			return;
+		pCache.free(page);
+	}
 }
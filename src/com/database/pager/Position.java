@@ -16,12 +16,25 @@ public class Position {
     public static int MAX_ROWID_IN_BPLIS_ROOT = 30;
     public static int MAX_PGNO_IN_FIRST_PAGE = 34;
     //page 1 header
+    public static int PAGE_SIZE_IN_FIRST_PAGE = 30;         //页面大小，与B+树根页的 MAX_ROWID 位置相同，page 1 不使用 MAX_ROWID
     public static int TABLE_COUNT_IN_FIRST_PAGE = 38;
-    public static byte CELLNUM_IN_PAGE = 42;
-    public static int CELL_IN_PAGE = 43;
+    public static int FREELIST_COUNT_IN_FIRST_PAGE = 13;    //空闲页面总数，page 1 没有父页面，使用 PARENT_PAGE 的位置
+    public static int FREELIST_TRUNK_IN_FIRST_PAGE = 26;    //第一个空闲链表主干页，page 1 不是B+树根页，使用 HEAD 的位置
+    public static int AUTOVACUUM_IN_FIRST_PAGE = 25;        //是否使用增量 vacuum（byte），page 1 不使用 ORDER 的位置
+    public static int CELLNUM_IN_PAGE = 42;                 //short
+    public static int FREEBLOCK_IN_PAGE = 44;               //第一个空闲块的偏移，0 表示没有
+    public static int FRAGMENTED_IN_PAGE = 48;              //碎片字节数（short）
+    public static int CELL_POINTER_IN_PAGE = 50;            //cell 指针数组，每个指针2字节，按 rowid 升序
+    //B+树内部结点页
+    public static int CHILD_IN_INTERNAL = 50;               //（关键字，子结点页号）数组，每项8字节，按关键字升序
+    public static int CHILD_PGNO_IN_ENTRY = 4;
+    //空闲链表主干页
+    public static int NEXT_TRUNK_IN_TRUNK = 21;             //下一个主干页，与 NEXT_PAGE 位置相同
+    public static int LEAF_COUNT_IN_TRUNK = 42;             //记录的叶子页数（short），与 CELLNUM 位置相同
+    public static int LEAF_IN_TRUNK = 44;                   //叶子页的页号数组
 
     public static int ROWID_IN_RECORD = 0;
-    public static int HEADER_IN_RECORD = 4;
+    public static int PAYLOAD_IN_RECORD = 4;               //payload 长度（变长整数）
 
 
 
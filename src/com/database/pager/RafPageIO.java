@@ -0,0 +1,105 @@
+package com.database.pager;
+
+import com.database.global.SpaceAllocation;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基于 RandomAccessFile 的页面读写，文件在第一次访问时打开，之后一直复用
+ * 单页读写使用带位置的 read/write，可以由多个线程同时进行；多页读写要移动 channel 的位置，需要同步
+ */
+public class RafPageIO implements PageIO {
+    private String path;
+    private RandomAccessFile raf;
+
+    public RafPageIO(String path) {
+        this.path = path;
+    }
+
+    private synchronized RandomAccessFile getFile() throws IOException {
+        if(this.raf == null)
+            this.raf = new RandomAccessFile(this.path, "rw");
+        return this.raf;
+    }
+
+    @Override
+    public void read(int pgno, ByteBuffer data) throws IOException {
+        FileChannel channel = getFile().getChannel();
+        long pos = (long)(pgno - 1) * SpaceAllocation.PAGE_SIZE;
+        while(data.hasRemaining()){
+            int len = channel.read(data, pos);
+            if(len < 0)
+                break;
+            pos += len;
+        }
+        //超出文件末尾的部分填充为0
+        while(data.hasRemaining())
+            data.put((byte)0);
+    }
+
+    @Override
+    public synchronized void read(int firstPgno, ByteBuffer[] pages) throws IOException {
+        FileChannel channel = getFile().getChannel();
+        channel.position((long)(firstPgno - 1) * SpaceAllocation.PAGE_SIZE);
+        long remaining = 0;
+        for(ByteBuffer page : pages)
+            remaining += page.remaining();
+        while(remaining > 0){
+            long len = channel.read(pages);
+            if(len < 0)
+                break;
+            remaining -= len;
+        }
+        //超出文件末尾的部分填充为0
+        for(ByteBuffer page : pages){
+            while(page.hasRemaining())
+                page.put((byte)0);
+        }
+    }
+
+    @Override
+    public void write(int pgno, ByteBuffer data) throws IOException {
+        FileChannel channel = getFile().getChannel();
+        long pos = (long)(pgno - 1) * SpaceAllocation.PAGE_SIZE;
+        while(data.hasRemaining())
+            pos += channel.write(data, pos);
+    }
+
+    @Override
+    public synchronized void write(int firstPgno, ByteBuffer[] pages) throws IOException {
+        FileChannel channel = getFile().getChannel();
+        channel.position((long)(firstPgno - 1) * SpaceAllocation.PAGE_SIZE);
+        long remaining = 0;
+        for(ByteBuffer page : pages)
+            remaining += page.remaining();
+        while(remaining > 0)
+            remaining -= channel.write(pages);
+    }
+
+    @Override
+    public int getPageCount() throws IOException {
+        return (int)(getFile().length() / SpaceAllocation.PAGE_SIZE);
+    }
+
+    @Override
+    public void truncate(int nPage) throws IOException {
+        getFile().setLength((long)nPage * SpaceAllocation.PAGE_SIZE);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if(this.raf != null)
+            this.raf.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(this.raf != null){
+            this.raf.close();
+            this.raf = null;
+        }
+    }
+}
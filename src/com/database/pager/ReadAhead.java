@@ -0,0 +1,89 @@
+package com.database.pager;
+
+import com.database.global.PagerConfig;
+
+import java.util.BitSet;
+
+/**
+ * 顺序扫描时的预读窗口
+ * 扫描中某个页面未命中时，Pager 连同其后页号连续的 window 个页面一次读入。
+ * 下一次预读前统计上一个窗口中被扫描用到的比例：
+ * 不少于四分之三时窗口加倍，少于一半时窗口减半，叶子链不连续时窗口会逐渐缩小到 READAHEAD_MIN。
+ * 窗口为0时不再预读，直到再次出现页号连续的未命中。
+ */
+public class ReadAhead {
+    private int initial;                //初始窗口，为0时不预读
+    private int window;                 //当前预读的页面数
+    private int lastMiss;               //上一次未命中的页号
+    private int first;                  //上一个窗口的第一个页号
+    private BitSet pending;             //上一个窗口中尚未用到的页面，下标为 pgno - first
+    private int nPrefetch;              //上一个窗口预读的页面数
+    private int nUsed;                  //上一个窗口中用到的页面数
+    private long totalPrefetch;         //累计预读的页面数
+    private long totalUsed;             //累计用到的预读页面数
+
+    public ReadAhead() {
+        this.initial = PagerConfig.READAHEAD;
+        this.window = this.initial;
+        this.lastMiss = -1;
+        this.pending = new BitSet();
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * 扫描中 pgno 未命中
+     * @return 本次应当预读的页面数
+     */
+    public synchronized int onMiss(int pgno){
+        if(this.window == 0 && this.initial > 0 && pgno == this.lastMiss + 1)
+            this.window = this.initial;
+        this.lastMiss = pgno;
+        return this.window;
+    }
+
+    /**
+     * 扫描命中了缓存中的页面
+     */
+    public synchronized void onHit(int pgno){
+        int index = pgno - this.first;
+        if(index >= 0 && this.pending.get(index)){
+            this.pending.clear(index);
+            this.nUsed++;
+            this.totalUsed++;
+        }
+    }
+
+    /**
+     * 预读了从 first 开始的 n 个页面，先根据上一个窗口的命中率调整窗口大小
+     */
+    public synchronized void onPrefetch(int first, int n){
+        if(this.nPrefetch > 0){
+            if(this.nUsed * 4 >= this.nPrefetch * 3)
+                this.window = Math.min(this.window * 2, PagerConfig.READAHEAD_MAX);
+            else if(this.nUsed * 2 < this.nPrefetch)
+                this.window = Math.max(this.window / 2, PagerConfig.READAHEAD_MIN);
+        }
+        this.first = first;
+        this.pending.clear();
+        this.pending.set(0, n);
+        this.nPrefetch = n;
+        this.nUsed = 0;
+        this.totalPrefetch += n;
+    }
+
+    public long getTotalPrefetch() {
+        return totalPrefetch;
+    }
+
+    public long getTotalUsed() {
+        return totalUsed;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadAhead{window=" + window + ", prefetched=" + totalPrefetch + ", used=" + totalUsed + '}';
+    }
+}
@@ -0,0 +1,292 @@
+package com.database.pager;
+
+import com.database.global.DataType;
+import com.database.global.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 页面记录的游标
+ * 游标直接在页面帧上解析当前记录的记录头，按列返回整数或 TEXT 的字节视图，
+ * 移动到下一条记录时不分配对象。payload 有溢出的记录先拼接到游标自己的缓冲区中再解析。
+ * 打开的页面一直被 pin，换页或 close 时释放；getText 返回的视图在游标移动后失效。
+ */
+public class RecordCursor {
+    private Pager pager;
+    private Page page;                      //当前页面，未打开时为null
+    private int index;                      //当前记录在指针数组中的下标
+    private ByteBuffer data;                //当前记录所在的缓冲区：页面帧或 spillBuf，没有当前记录时为null
+    private int base;                       //当前记录在 data 中的开始
+    private int nCol;
+    private int[] types = new int[8];       //各列的类型码
+    private int[] offsets = new int[8];     //各列的值在 data 中的偏移
+
+    private ByteBuffer frame;               //当前页面的帧
+    private ByteBuffer frameView;           //frame 的视图，getText 使用
+    private byte[] spill = new byte[0];     //有溢出的记录拼接后的内容
+    private ByteBuffer spillBuf;
+    private ByteBuffer spillView;
+    private byte[] scratch = new byte[64];  //toRow 解码 TEXT 时使用
+
+    public RecordCursor(Pager pager) {
+        this.pager = pager;
+        this.spillBuf = ByteBuffer.wrap(this.spill);
+        this.spillView = this.spillBuf.duplicate();
+    }
+
+    /**
+     * 打开 pgno 页，游标定位在第一条记录之前，之前打开的页面被释放
+     * @return 页面是否打开
+     */
+    public boolean open(int pgno) {
+        close();
+        if (pgno <= 0)
+            return false;
+        this.page = this.pager.aquirePage(pgno);
+        this.frame = this.page.getFrame();
+        this.frameView = this.frame.duplicate();
+        this.index = -1;
+        return true;
+    }
+
+    /**
+     * 释放打开的页面，之后可以再次 open
+     */
+    public void close() {
+        if (this.page != null)
+            this.pager.release(this.page);
+        this.page = null;
+        this.frame = null;
+        this.frameView = null;
+        this.data = null;
+    }
+
+    public Page getPage() {
+        return page;
+    }
+
+    /**
+     * @return 当前页面的后一个页面，沿叶子链扫描时使用
+     */
+    public int getNextPgno() {
+        return this.page == null ? 0 : this.page.getpNext();
+    }
+
+    /**
+     * @return 当前页面的记录数，溢出页、空闲链表主干页和B+树内部结点页没有记录
+     */
+    public int getCount() {
+        if (this.page == null || !this.page.hasRecords())
+            return 0;
+        return this.page.getnCell();
+    }
+
+    public boolean first() {
+        return moveTo(0);
+    }
+
+    public boolean next() {
+        return moveTo(this.index + 1);
+    }
+
+    /**
+     * 在指针数组中二分查找 rowid
+     * @return 是否找到，找到时游标定位在该记录上
+     */
+    public boolean seek(int rowid) {
+        if (getCount() == 0)
+            return false;
+        int found = this.page.findCell(rowid);
+        if (found < 0) {
+            this.data = null;
+            return false;
+        }
+        return moveTo(found);
+    }
+
+    /**
+     * 定位到第 i 条记录并解析记录头
+     * @return 是否有第 i 条记录
+     */
+    public boolean moveTo(int i) {
+        int count = getCount();
+        if (i < 0 || i >= count) {
+            this.index = count;
+            this.data = null;
+            return false;
+        }
+        this.index = i;
+        moveToCell(this.page.getCellOffset(i));
+        return true;
+    }
+
+    /**
+     * 定位到页面中 cell 处的记录并解析记录头，cell 是调用者保存的 cell 偏移
+     */
+    boolean moveToCell(int cell) {
+        if (this.page == null)
+            return false;
+        int payload = Utils.loadVarIntFromBuffer(this.frame, cell + Position.PAYLOAD_IN_RECORD);
+        if (payload <= this.page.getMaxLocal()) {
+            this.data = this.frame;
+            this.base = cell;
+        } else {
+            byte[] record = this.pager.readCell(this.page, cell, this.spill);
+            if (record != this.spill) {
+                this.spill = record;
+                this.spillBuf = ByteBuffer.wrap(record);
+                this.spillView = this.spillBuf.duplicate();
+            }
+            this.data = this.spillBuf;
+            this.base = 0;
+        }
+        parseHeader();
+        return true;
+    }
+
+    private void parseHeader() {
+        int hdr = this.base + Position.PAYLOAD_IN_RECORD + Utils.loadVarIntLength(this.data, this.base + Position.PAYLOAD_IN_RECORD);
+        int hdrEnd = hdr + Utils.loadVarIntFromBuffer(this.data, hdr);
+        int offset = hdrEnd;
+        int n = 0;
+        for (int i = hdr + Utils.loadVarIntLength(this.data, hdr); i < hdrEnd; i += Utils.loadVarIntLength(this.data, i)) {
+            int type = Utils.loadVarIntFromBuffer(this.data, i);
+            if (n == this.types.length) {
+                this.types = Arrays.copyOf(this.types, n * 2);
+                this.offsets = Arrays.copyOf(this.offsets, n * 2);
+            }
+            this.types[n] = type;
+            this.offsets[n] = offset;
+            offset += columnSize(type);
+            n++;
+        }
+        this.nCol = n;
+    }
+
+    private static int columnSize(int type) {
+        switch (type) {
+            case DataType.TINY_INT:
+                return 1;
+            case DataType.SMALL_INT:
+                return 2;
+            case DataType.INTEGER:
+                return 4;
+            case DataType.LONG:
+                return 8;
+            default:
+                return DataType.textLength(type);
+        }
+    }
+
+    /**
+     * @return 游标是否定位在一条记录上
+     */
+    public boolean isValid() {
+        return this.data != null;
+    }
+
+    public int getRowid() {
+        return this.data.getInt(this.base + Position.ROWID_IN_RECORD);
+    }
+
+    public int getColumnCount() {
+        return this.nCol;
+    }
+
+    /**
+     * @return 第 col 列的类型码，TEXT 为 DataType.textSerialType(长度)
+     */
+    public int getType(int col) {
+        return this.types[col];
+    }
+
+    public boolean isText(int col) {
+        return this.types[col] >= DataType.TEXT_SERIAL;
+    }
+
+    public int getInt(int col) {
+        return (int) getLong(col);
+    }
+
+    /**
+     * @return 第 col 列的整数值，TINY_INT、SMALL_INT、INTEGER 都扩展为 long，TEXT 列为0
+     */
+    public long getLong(int col) {
+        int offset = this.offsets[col];
+        switch (this.types[col]) {
+            case DataType.TINY_INT:
+                return this.data.get(offset);
+            case DataType.SMALL_INT:
+                return this.data.getShort(offset);
+            case DataType.INTEGER:
+                return this.data.getInt(offset);
+            case DataType.LONG:
+                return this.data.getLong(offset);
+            default:
+                return 0;
+        }
+    }
+
+    public int getTextLength(int col) {
+        return isText(col) ? DataType.textLength(this.types[col]) : 0;
+    }
+
+    /**
+     * @return 第 col 列 TEXT 值的字节视图，position 到 limit 是值的内容，游标移动后失效
+     */
+    public ByteBuffer getText(int col) {
+        ByteBuffer view = this.data == this.frame ? this.frameView : this.spillView;
+        view.clear();
+        view.position(this.offsets[col]);
+        view.limit(this.offsets[col] + getTextLength(col));
+        return view;
+    }
+
+    /**
+     * 第 col 列去掉首尾空白后是否与 value 相同，value 已去掉首尾空白
+     */
+    public boolean textEquals(int col, byte[] value) {
+        int start = this.offsets[col];
+        int end = start + getTextLength(col);
+        while (start < end && (this.data.get(start) & 0xFF) <= ' ')
+            start++;
+        while (end > start && (this.data.get(end - 1) & 0xFF) <= ' ')
+            end--;
+        if (end - start != value.length)
+            return false;
+        for (int i = 0; i < value.length; i++) {
+            if (this.data.get(start + i) != value[i])
+                return false;
+        }
+        return true;
+    }
+
+    public String getString(int col) {
+        if (!isText(col))
+            return String.valueOf(getLong(col));
+        int len = getTextLength(col);
+        if (this.scratch.length < len)
+            this.scratch = new byte[Math.max(len, this.scratch.length * 2)];
+        int offset = this.offsets[col];
+        for (int i = 0; i < len; i++)
+            this.scratch[i] = this.data.get(offset + i);
+        return new String(this.scratch, 0, len);
+    }
+
+    /**
+     * @return 当前记录各列以逗号连接的字符串，与 TableSchema.getBytes 的参数格式相同
+     */
+    public String toRow() {
+        StringBuilder row = new StringBuilder();
+        for (int col = 0; col < this.nCol; col++) {
+            if (col > 0)
+                row.append(',');
+            if (isText(col))
+                row.append(getString(col));
+            else
+                row.append(getLong(col));
+        }
+        return row.toString();
+    }
+}
@@ -0,0 +1,46 @@
+package com.database.pager;
+
+/**
+ * 一个线程正在进行的快照读，由 Wal.beginRead 创建
+ * 读标记之前的帧可见；检查点序号用来区分不同检查点之间的帧号和数据库文件内容，
+ * 有快照读时不做检查点，所以同时进行的快照读检查点序号都相同。
+ */
+public class Snapshot {
+    private Wal wal;
+    private int mark;                   //读标记，不晚于它的帧可见
+    private int ckptSeq;                //开始时日志的检查点序号
+    private int depth;                  //beginRead 的嵌套层数
+
+    public Snapshot(Wal wal, int mark, int ckptSeq) {
+        this.wal = wal;
+        this.mark = mark;
+        this.ckptSeq = ckptSeq;
+        this.depth = 1;
+    }
+
+    public Wal getWal() {
+        return wal;
+    }
+
+    public int getMark() {
+        return mark;
+    }
+
+    public int getCkptSeq() {
+        return ckptSeq;
+    }
+
+    /**
+     * 嵌套的 beginRead 共用外层的快照
+     */
+    public void enter(){
+        this.depth++;
+    }
+
+    /**
+     * @return 是否是最外层的 endRead
+     */
+    public boolean exit(){
+        return --this.depth == 0;
+    }
+}
@@ -2,7 +2,6 @@ package com.database.pager;
 
 import com.database.global.ColumnConstraint;
 import com.database.global.DataType;
-import com.database.global.SpaceAllocation;
 import com.database.global.Utils;
 
 import java.util.ArrayList;
@@ -78,15 +77,16 @@ public class TableSchema {
     }
 
     /**
-     * 计算一条记录所占空间总大小
+     * 估计一条记录所占空间的大小，TEXT 列按50字节计算
+     * 记录是变长的，实际长度由 getBytes 的结果决定，这里只用于估计页面能放下的记录数
      * @return
      */
     public int calculateSize(){
         if(this.columns == null || this.columns.size() == 0)
             return 0;
 
-        int size = getColNum() + SpaceAllocation.RECORD_HEADER ;
-
+        int size = 0;
+        int hdrSz = 0;
         for(int i = 0; i < getColNum(); i++){
             byte type = this.columns.get(i).getType();
             switch (type){
@@ -106,8 +106,11 @@ public class TableSchema {
                     size += 1;
                     break;
             }
+            hdrSz += type == DataType.TEXT ? Utils.varIntLength(DataType.textSerialType(50)) : 1;
         }
-        return size;
+        hdrSz += 1;
+        int payload = hdrSz + size;
+        return 4 + Utils.varIntLength(payload) + payload;
     }
 
     public int getSize(){
@@ -130,7 +133,9 @@ public class TableSchema {
     }
 
     /**
-     *
+     * 记录格式：rowid（4字节），payload 长度（变长整数），payload。
+     * payload 由记录头和各列的值组成，记录头是头部长度（变长整数，包括它自己）和每列的类型码（变长整数），
+     * 定长类型的类型码就是 DataType 中的值，TEXT 的类型码见 DataType.textSerialType，按实际字节数保存
      * @param rowid 与该记录对应的rowid
      * @param record 一条记录的所有列构成的列表
      * @return 一条记录的二进制表示
@@ -143,44 +148,53 @@ public class TableSchema {
             return null;
 
         int colNum = getColNum();
-        byte[] data = new byte[calculateSize()];
-        int headerSize = SpaceAllocation.RECORD_HEADER + colNum;
-
-        Utils.fillInt(rowid, data, Position.ROWID_IN_RECORD);
-        Utils.fillInt(headerSize, data, Position.HEADER_IN_RECORD );
-        for(int i = 0 ; i < colNum; i++){
-            data[SpaceAllocation.RECORD_HEADER+i] = this.columns.get(i).getType();
-        }
-        int offset = 0 ;
-
+        byte[][] values = new byte[colNum][];
+        int[] serialTypes = new int[colNum];
+        int typesSize = 0;
+        int bodySize = 0;
         for(int i = 0 ; i < colNum; i++){
             Column col = this.columns.get(i);
+            byte[] value;
             switch (col.getType()){
                 case DataType.INTEGER:
-                    int intValue = Integer.parseInt(record.get(i));
-                    Utils.fillInt(intValue, data, headerSize+offset);
-                    offset += 4;
+                    value = Utils.fillInt(Integer.parseInt(record.get(i)), new byte[4], 0);
                     break;
                 case DataType.LONG:
-                    long longValue = Long.parseLong(record.get(i));
-                    Utils.fillLong(longValue, data, headerSize+offset);
-                    offset += 8;
+                    value = Utils.fillLong(Long.parseLong(record.get(i)), new byte[8], 0);
                     break;
                 case DataType.SMALL_INT:
-                    short shortValue = Short.parseShort(record.get(i));
-                    Utils.fillInt(shortValue, data, headerSize+offset);
-                    offset += 2;
+                    value = Utils.fillShort(Short.parseShort(record.get(i)), new byte[2], 0);
                     break;
                 case DataType.TINY_INT:
-                    byte byteValue = Byte.parseByte(record.get(i));
-                    data[headerSize + offset] = byteValue;
-                    offset += 1;
+                    value = new byte[]{Byte.parseByte(record.get(i))};
                     break;
                 case DataType.TEXT:
-                    Utils.fillString(record.get(i), data, headerSize+offset);
-                    offset += 50;
+                    value = record.get(i).getBytes();
                     break;
+                default:
+                    value = new byte[0];
             }
+            values[i] = value;
+            serialTypes[i] = col.getType() == DataType.TEXT ? DataType.textSerialType(value.length) : col.getType();
+            typesSize += Utils.varIntLength(serialTypes[i]);
+            bodySize += value.length;
+        }
+        //头部长度包括它自己的变长编码
+        int hdrSz = typesSize + 1;
+        while(typesSize + Utils.varIntLength(hdrSz) != hdrSz)
+            hdrSz = typesSize + Utils.varIntLength(hdrSz);
+        int payload = hdrSz + bodySize;
+
+        byte[] data = new byte[4 + Utils.varIntLength(payload) + payload];
+        Utils.fillInt(rowid, data, Position.ROWID_IN_RECORD);
+        int offset = Position.PAYLOAD_IN_RECORD;
+        offset += Utils.fillVarInt(payload, data, offset);
+        offset += Utils.fillVarInt(hdrSz, data, offset);
+        for(int i = 0 ; i < colNum; i++)
+            offset += Utils.fillVarInt(serialTypes[i], data, offset);
+        for(int i = 0 ; i < colNum; i++){
+            Utils.fillBytes(values[i], data, offset);
+            offset += values[i].length;
         }
         return data;
     }
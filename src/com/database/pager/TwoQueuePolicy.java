@@ -0,0 +1,106 @@
+package com.database.pager;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 2Q 置换（Johnson & Shasha）
+ * 第一次被访问的页面进入 A1in，从 A1in 置换出去的页号记入 A1out；
+ * 页面在 A1in 中被 unpin 之后再次被访问，或页号仍在 A1out 中时再次被访问，说明是热点页面，进入 Am（LRU）。
+ * 同一次使用中的重复 pin 不算再次访问。顺序扫描的页面只经过 A1in，不会把 Am 中的热点页面挤出缓存。
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+    private LinkedHashSet<Page> a1in = new LinkedHashSet<Page>();          //可回收的新页面
+    private LinkedHashSet<Page> am = new LinkedHashSet<Page>();            //可回收的热点页面
+    private Set<Page> hot = Collections.newSetFromMap(new IdentityHashMap<Page, Boolean>());    //属于 Am 的页面（含被 pin 的）
+    private LinkedHashSet<Integer> a1out = new LinkedHashSet<Integer>();    //最近从 A1in 置换出去的页号
+    private int kin;                                                        //A1in 的目标大小
+    private int kout;                                                       //A1out 的最大长度
+
+    public TwoQueuePolicy(int nPage) {
+        setCapacity(nPage);
+    }
+
+    @Override
+    public void setCapacity(int nPage) {
+        this.kin = Math.max(1, nPage / 4);
+        this.kout = Math.max(1, nPage / 2);
+        trimGhost();
+    }
+
+    @Override
+    public void pin(Page page) {
+        if(this.a1in.remove(page))
+            this.hot.add(page);
+        else if(!this.am.remove(page) && !this.hot.contains(page) && this.a1out.remove(page.getPgno()))
+            this.hot.add(page);
+    }
+
+    /**
+     * victim 从 A1in 选出的脏页面不能被置换，PCache 通过 unpin 交还，页面仍在缓存中，从 A1out 中删去它的页号
+     */
+    @Override
+    public void unpin(Page page) {
+        if(this.hot.contains(page)){
+            this.am.remove(page);
+            this.am.add(page);
+        }else if(!this.a1in.contains(page)){
+            this.a1out.remove(page.getPgno());
+            this.a1in.add(page);
+        }
+    }
+
+    @Override
+    public void remove(Page page) {
+        this.a1in.remove(page);
+        this.am.remove(page);
+        this.hot.remove(page);
+    }
+
+    @Override
+    public Page victim() {
+        Page page;
+        if(this.a1in.size() > this.kin || this.am.isEmpty()){
+            page = removeFirst(this.a1in);
+            if(page != null){
+                this.a1out.add(page.getPgno());
+                trimGhost();
+                return page;
+            }
+        }
+        page = removeFirst(this.am);
+        if(page != null)
+            this.hot.remove(page);
+        return page;
+    }
+
+    private static Page removeFirst(LinkedHashSet<Page> list){
+        Iterator<Page> it = list.iterator();
+        if(!it.hasNext())
+            return null;
+        Page page = it.next();
+        it.remove();
+        return page;
+    }
+
+    private void trimGhost(){
+        Iterator<Integer> it = this.a1out.iterator();
+        while(this.a1out.size() > this.kout && it.hasNext()){
+            it.next();
+            it.remove();
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.a1in.size() + this.am.size();
+    }
+
+    @Override
+    public String toString() {
+        return "2q{a1in=" + this.a1in + ", am=" + this.am + ", a1out=" + this.a1out + "}";
+    }
+}
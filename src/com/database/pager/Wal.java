@@ -0,0 +1,456 @@
+package com.database.pager;
+
+import com.database.global.SpaceAllocation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * 预写日志（WAL），文件名为数据库文件名加 "-wal"
+ * 提交时把脏页面的完整内容按顺序追加到日志末尾，一个事务的最后一帧带有提交标记，
+ * 数据库文件本身只在检查点时被改写，改写中途崩溃时日志中仍有完整的页面，重新打开后再次检查点即可。
+ *
+ * 文件格式：
+ * 文件头 WAL_HEADER_SIZE 字节：magic、版本、页面大小、检查点序号、salt、文件头校验和
+ * 之后是若干帧，每帧为 FRAME_HEADER_SIZE 字节的帧头加一个页面：
+ * 页号、提交后的数据库页面数（非0表示提交帧）、salt、校验和
+ * 校验和是 CRC32，从上一帧的校验和开始累积，salt 与文件头不同或校验和不对的帧及其后的帧都是无效的。
+ *
+ * 组提交：追加帧在日志的锁内进行，fsync 在锁外进行。
+ * 同时有多个事务等待 fsync 时，只有一个线程执行 fsync，它覆盖了开始前已经追加的所有帧，其余线程等待后直接返回。
+ *
+ * 快照读：读者开始时取当前最后一个提交帧作为读标记，之后每个页面读取不晚于读标记的最新一帧，
+ * 日志中没有时读数据库文件。帧写入后不再改变，有读者时不做检查点，数据库文件也不变，
+ * 所以读者看到的始终是开始时已提交的状态，写者可以继续追加。
+ */
+public class Wal {
+    public static final int MAGIC = 0x57414C31;                //"WAL1"
+    public static final int VERSION = 1;
+    public static final int WAL_HEADER_SIZE = 24;
+    public static final int FRAME_HEADER_SIZE = 16;
+
+    private String path;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private int pageSize;
+    private int ckptSeq;                    //检查点序号，每次检查点后加一
+    private int salt;                       //每次检查点后重新生成，旧的帧因此失效
+    private int lastChecksum;               //最后一帧的校验和
+    private int mxFrame;                    //已追加的帧数
+    private int commitFrame;                //最后一个提交帧的帧号（从1开始），0表示没有
+    private int commitDbSize;               //最后一次提交时的数据库页面数
+    private Map<Integer, Integer> index;    //页号 -> 该页最新的帧号
+    private int[] prevFrame;                //帧号 -> 同一页面上一个版本的帧号，0表示没有
+    private List<Integer> readMarks;        //正在进行的快照读的读标记
+    private long writtenEnd;                //已追加到的文件位置
+    private long syncedEnd;                 //已经 fsync 到的文件位置
+    private boolean syncing;                //有线程正在 fsync
+    private long nSync;                     //累计 fsync 次数
+    private long nCommit;                   //累计提交次数
+
+    public Wal(String path) {
+        this.path = path;
+        this.pageSize = SpaceAllocation.PAGE_SIZE;
+        this.index = new HashMap<Integer, Integer>();
+        this.prevFrame = new int[64];
+        this.readMarks = new ArrayList<Integer>();
+    }
+
+    /**
+     * 打开日志文件，文件中已有的帧按校验和恢复到最后一个提交帧，之后的帧被丢弃
+     * 页面大小与当前不一致的日志无法使用，会被清空
+     */
+    public synchronized void open() throws IOException {
+        this.raf = new RandomAccessFile(this.path, "rw");
+        this.channel = this.raf.getChannel();
+        if(!recover())
+            reset(new Random().nextInt());
+    }
+
+    private boolean recover() throws IOException {
+        if(this.channel.size() < WAL_HEADER_SIZE)
+            return false;
+        ByteBuffer header = ByteBuffer.allocate(WAL_HEADER_SIZE);
+        readFully(header, 0);
+        if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || header.getInt(20) != checksum(0, header, 0, 20))
+            return false;
+        if(header.getInt(8) != this.pageSize){
+            System.out.println("日志的页面大小与数据库不一致，日志被丢弃：" + this.path);
+            return false;
+        }
+        this.ckptSeq = header.getInt(12);
+        this.salt = header.getInt(16);
+        this.lastChecksum = header.getInt(20);
+
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        ByteBuffer data = ByteBuffer.allocate(this.pageSize);
+        Map<Integer, Integer> pending = new HashMap<Integer, Integer>();    //尚未遇到提交帧的页面
+        long size = this.channel.size();
+        int checksum = this.lastChecksum;
+        int frame = 0;
+        long pos = WAL_HEADER_SIZE;
+        while(pos + FRAME_HEADER_SIZE + this.pageSize <= size){
+            frameHeader.clear();
+            readFully(frameHeader, pos);
+            data.clear();
+            readFully(data, pos + FRAME_HEADER_SIZE);
+            data.flip();
+            if(frameHeader.getInt(8) != this.salt)
+                break;
+            checksum = frameChecksum(checksum, frameHeader, data);
+            if(frameHeader.getInt(12) != checksum)
+                break;
+            frame++;
+            pending.put(frameHeader.getInt(0), frame);
+            if(frameHeader.getInt(4) != 0){
+                for(Map.Entry<Integer, Integer> entry : pending.entrySet())
+                    addFrame(entry.getKey(), entry.getValue());
+                pending.clear();
+                this.commitFrame = frame;
+                this.commitDbSize = frameHeader.getInt(4);
+                this.lastChecksum = checksum;
+            }
+            pos += FRAME_HEADER_SIZE + this.pageSize;
+        }
+        //最后一个提交帧之后的帧被丢弃，之后的追加从这里开始覆盖
+        this.mxFrame = this.commitFrame;
+        this.writtenEnd = frameOffset(this.mxFrame + 1);
+        this.syncedEnd = this.writtenEnd;
+        return true;
+    }
+
+    /**
+     * 清空日志，写入新的文件头
+     */
+    private void reset(int newSalt) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(WAL_HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, this.pageSize);
+        header.putInt(12, this.ckptSeq);
+        header.putInt(16, newSalt);
+        header.putInt(20, checksum(0, header, 0, 20));
+        this.channel.truncate(0);
+        while(header.hasRemaining())
+            this.channel.write(header, header.position());
+        this.channel.force(false);
+
+        this.salt = newSalt;
+        this.lastChecksum = header.getInt(20);
+        this.mxFrame = 0;
+        this.commitFrame = 0;
+        this.commitDbSize = 0;
+        this.index.clear();
+        this.writtenEnd = WAL_HEADER_SIZE;
+        this.syncedEnd = WAL_HEADER_SIZE;
+    }
+
+    /**
+     * 把页面追加到日志末尾，此时还没有 fsync，需要持久化时调用 sync
+     * @param pages 要追加的页面
+     * @param dbSize 大于0时最后一帧是提交帧，记录提交后的数据库页面数；为0时这些帧尚未提交
+     * @return 追加后的文件位置，作为 sync 的参数
+     */
+    public synchronized long append(List<Page> pages, int dbSize) throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[pages.size() * 2];
+        int checksum = this.lastChecksum;
+        for(int i = 0; i < pages.size(); i++){
+            Page page = pages.get(i);
+            ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            ByteBuffer data = page.getBuffer();
+            frameHeader.putInt(0, page.getPgno());
+            frameHeader.putInt(4, i == pages.size() - 1 ? dbSize : 0);
+            frameHeader.putInt(8, this.salt);
+            checksum = frameChecksum(checksum, frameHeader, data);
+            frameHeader.putInt(12, checksum);
+            bufs[i * 2] = frameHeader;
+            bufs[i * 2 + 1] = data;
+        }
+
+        long remaining = (long)pages.size() * (FRAME_HEADER_SIZE + this.pageSize);
+        this.channel.position(this.writtenEnd);
+        while(remaining > 0)
+            remaining -= this.channel.write(bufs);
+
+        for(Page page : pages)
+            addFrame(page.getPgno(), ++this.mxFrame);
+        this.lastChecksum = checksum;
+        this.writtenEnd = frameOffset(this.mxFrame + 1);
+        if(dbSize > 0){
+            this.commitFrame = this.mxFrame;
+            this.commitDbSize = dbSize;
+            this.nCommit++;
+        }
+        return this.writtenEnd;
+    }
+
+    private void addFrame(int pgno, int frame){
+        if(frame >= this.prevFrame.length)
+            this.prevFrame = Arrays.copyOf(this.prevFrame, Math.max(frame + 1, this.prevFrame.length * 2));
+        Integer prev = this.index.put(pgno, frame);
+        this.prevFrame[frame] = prev == null ? 0 : prev;
+    }
+
+    /**
+     * 确保 end 之前追加的帧都已写到磁盘
+     * 已经有线程在 fsync 时等待它完成，它覆盖不到 end 时由本线程再做一次，
+     * 这样并发提交的事务共用一次 fsync
+     */
+    public void sync(long end) throws IOException {
+        long target;
+        synchronized (this){
+            while(this.syncing && this.syncedEnd < end){
+                try{
+                    wait();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if(this.syncedEnd >= end)
+                return;
+            this.syncing = true;
+            target = this.writtenEnd;
+        }
+        boolean done = false;
+        try{
+            this.channel.force(false);
+            done = true;
+        }finally {
+            synchronized (this){
+                this.syncing = false;
+                if(done){
+                    this.syncedEnd = Math.max(this.syncedEnd, target);
+                    this.nSync++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 如果日志中有 pgno 的帧，读入最新的一帧（包括尚未提交的帧）
+     * @return 日志中没有该页面时返回false，data 不变
+     */
+    public synchronized boolean read(int pgno, ByteBuffer data) throws IOException {
+        return read(pgno, data, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 读入 pgno 不晚于读标记 mark 的最新一帧
+     * @return 读标记之前日志中没有该页面时返回false，data 不变，应读数据库文件
+     */
+    public synchronized boolean read(int pgno, ByteBuffer data, int mark) throws IOException {
+        int frame = findFrame(pgno, mark);
+        if(frame == 0)
+            return false;
+        readFrame(frame, data);
+        return true;
+    }
+
+    /**
+     * @return pgno 不晚于读标记 mark 的最新一帧的帧号，没有时返回0
+     */
+    public synchronized int findFrame(int pgno, int mark){
+        Integer newest = this.index.get(pgno);
+        int frame = newest == null ? 0 : newest;
+        while(frame > mark)
+            frame = this.prevFrame[frame];
+        return frame;
+    }
+
+    /**
+     * 读入一帧中的页面数据
+     */
+    public synchronized void readFrame(int frame, ByteBuffer data) throws IOException {
+        readFully(data, frameOffset(frame) + FRAME_HEADER_SIZE);
+    }
+
+    /**
+     * 开始一次快照读，读标记为当前最后一个提交帧，结束时调用 endRead
+     */
+    public synchronized Snapshot beginRead(){
+        this.readMarks.add(this.commitFrame);
+        return new Snapshot(this, this.commitFrame, this.ckptSeq);
+    }
+
+    public synchronized void endRead(Snapshot snapshot){
+        this.readMarks.remove(Integer.valueOf(snapshot.getMark()));
+    }
+
+    public synchronized int getReaderCount(){
+        return this.readMarks.size();
+    }
+
+    /**
+     * 检查点：把日志中每个页面最新的帧写回数据库文件，文件截断为最后一次提交时的页面数，fsync 后清空日志
+     * 只在所有帧都已提交、并且没有快照读时进行，否则返回false
+     * @param io 数据库文件
+     * @return 是否完成了检查点
+     */
+    public synchronized boolean checkpoint(PageIO io) throws IOException {
+        if(this.mxFrame != this.commitFrame || !this.readMarks.isEmpty())
+            return false;
+        if(this.mxFrame == 0)
+            return true;
+
+        //页号超过提交时页面数的页面已被 vacuum 截断，不再写回
+        List<Integer> pgnos = new ArrayList<Integer>();
+        for(Integer pgno : this.index.keySet()){
+            if(this.commitDbSize == 0 || pgno <= this.commitDbSize)
+                pgnos.add(pgno);
+        }
+        Collections.sort(pgnos);
+        int start = 0;
+        while(start < pgnos.size()){
+            //页号连续的页面一次写入，每次最多64页
+            int end = start + 1;
+            while(end < pgnos.size() && end - start < 64 && pgnos.get(end) == pgnos.get(end - 1) + 1)
+                end++;
+            ByteBuffer[] run = new ByteBuffer[end - start];
+            for(int i = start; i < end; i++){
+                run[i - start] = ByteBuffer.allocate(this.pageSize);
+                readFully(run[i - start], frameOffset(this.index.get(pgnos.get(i))) + FRAME_HEADER_SIZE);
+                run[i - start].flip();
+            }
+            io.write(pgnos.get(start), run);
+            start = end;
+        }
+        if(this.commitDbSize > 0 && io.getPageCount() > this.commitDbSize)
+            io.truncate(this.commitDbSize);
+        io.sync();
+
+        this.ckptSeq++;
+        reset(this.salt + 1 + new Random().nextInt(Integer.MAX_VALUE));
+        return true;
+    }
+
+    private long frameOffset(int frame){
+        return WAL_HEADER_SIZE + (long)(frame - 1) * (FRAME_HEADER_SIZE + this.pageSize);
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while(buf.hasRemaining()){
+            int len = this.channel.read(buf, pos);
+            if(len < 0)
+                throw new IOException("日志文件不完整：" + this.path);
+            pos += len;
+        }
+    }
+
+    private static int checksum(int seed, ByteBuffer buf, int from, int to){
+        CRC32 crc = new CRC32();
+        ByteBuffer s = ByteBuffer.allocate(4);
+        s.putInt(0, seed);
+        crc.update(s);
+        ByteBuffer b = buf.duplicate();
+        b.position(from);
+        b.limit(to);
+        crc.update(b);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * 帧的校验和：上一帧的校验和、帧头的前12个字节、页面数据
+     */
+    private static int frameChecksum(int prev, ByteBuffer frameHeader, ByteBuffer data){
+        CRC32 crc = new CRC32();
+        ByteBuffer seed = ByteBuffer.allocate(4);
+        seed.putInt(0, prev);
+        crc.update(seed);
+        ByteBuffer h = frameHeader.duplicate();
+        h.clear();
+        h.limit(12);
+        crc.update(h);
+        crc.update(data.duplicate());
+        return (int)crc.getValue();
+    }
+
+    /**
+     * 从日志文件头读取页面大小，用于数据库文件还没有经过检查点的情况
+     * @return 页面大小，日志不存在或文件头无效时返回0
+     */
+    public static int readPageSize(String path){
+        File file = new File(path);
+        if(!file.exists() || file.length() < WAL_HEADER_SIZE)
+            return 0;
+        RandomAccessFile raf = null;
+        try{
+            raf = new RandomAccessFile(file, "r");
+            if(raf.readInt() != MAGIC)
+                return 0;
+            raf.readInt();
+            return raf.readInt();
+        }catch (IOException e){
+            e.printStackTrace();
+            return 0;
+        }finally {
+            if(raf != null){
+                try{
+                    raf.close();
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 关闭日志文件，delete 为true时删除文件（应在检查点之后）
+     */
+    public synchronized void close(boolean delete) throws IOException {
+        if(this.channel == null)
+            return;
+        this.channel.close();
+        this.raf.close();
+        this.channel = null;
+        this.raf = null;
+        if(delete)
+            new File(this.path).delete();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public synchronized int getFrameCount() {
+        return mxFrame;
+    }
+
+    public synchronized int getCommitFrame() {
+        return commitFrame;
+    }
+
+    public synchronized int getCommitDbSize() {
+        return commitDbSize;
+    }
+
+    public synchronized long getSyncCount() {
+        return nSync;
+    }
+
+    public synchronized long getCommitCount() {
+        return nCommit;
+    }
+
+    public synchronized int getCheckpointSeq() {
+        return ckptSeq;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Wal{frames=" + mxFrame + ", commits=" + nCommit + ", syncs=" + nSync + ", checkpoints=" + ckptSeq + '}';
+    }
+}
@@ -108,6 +108,25 @@ public class parser {
     }
 
 
+    /**
+     *  建表语句末尾的表选项，如 fanout=16 或 fanout 16
+     * @param options   CreateTable.getTableOptionsStrings 的结果，可以为null
+     * @return 选项的值，没有该选项时返回null
+     */
+    public static String getTableOption(List<?> options, String name){
+        if(options == null)
+            return null;
+        for(int i=0;i<options.size()-1;i++){
+            if(options.get(i).toString().equalsIgnoreCase(name)){
+                String value = options.get(i+1).toString();
+                if(value.equals("=") && i+2 < options.size())
+                    value = options.get(i+2).toString();
+                return value;
+            }
+        }
+        return null;
+    }
+
     public static void parserCRUD(String sql){
         CCJSqlParserManager pm = new CCJSqlParserManager();
         try{
@@ -133,6 +152,7 @@ public class parser {
                     results[0]="10";
                     results[1]=create.getTable().getName(); //表名
                     results[2]=colDef.toString();   // 表结构
+                    results[3]=getTableOption(create.getTableOptionsStrings(), "fanout");   // B+树的阶数，没有时为null
                 }else{
                     System.out.println("非标准SQL");
                     results[0]="ERROR";
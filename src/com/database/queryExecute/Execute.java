@@ -49,10 +49,13 @@ public class Execute {
 				if (!file.exists()) {
                     file.createNewFile();
 					db.setDBFile(file);
+					/* 新数据库使用配置的页面大小，写回page1时记录在头部 */
+					pager.setPageSize(PagerConfig.PAGE_SIZE);
 					/* 调用pager对象创建page1 */
 					Page page1 = pager.aquireNewPage();
 					page1.setTableCount(0);			//设置目前表的计数为0
 					pager.updateHeader(page1);
+					pager.setAutoVacuum(PagerConfig.AUTO_VACUUM);
 					db.setPage1(page1);
 					//打开该数据库
 					if(db.getStat() == 0){
@@ -79,7 +82,21 @@ public class Execute {
 			}else{
 				String schemaSQL = param[2].substring(param[2].indexOf('[')+1,param[2].indexOf(']'));
 				TableSchema schema = TableSchema.buildTableSchema(schemaSQL);
-				BplusTree tree = new BplusTree(3,db,schema);
+				//默认按页面填充分裂，建表语句可以用 fanout=n 指定树阶
+				int order = BplusTree.FILL_ORDER;
+				if(param[3] != null){
+					try{
+						order = Integer.parseInt(param[3].trim());
+					}catch(NumberFormatException e){
+						System.out.println("fanout必须是整数！");
+						break;
+					}
+				}
+				if(!BplusTree.isValidOrder(order)){
+					System.out.println("fanout必须在3到"+BplusTree.MAX_ORDER+"之间！");
+					break;
+				}
+				BplusTree tree = new BplusTree(order,db,schema);
 				db.addTableTree(param[1], sql, tree);
 				System.out.println("创建表"+param[1]+"成功");
 			}